@@ -25,14 +25,18 @@ import android.os.ParcelFileDescriptor;
 import android.util.Log;
 import org.openintents.openpgp.IOpenPgpService;
 import org.openintents.openpgp.OpenPgpError;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class OpenPgpApi {
 
     public static final String TAG = "OpenPgp API";
 
-    public static final int API_VERSION = 2;
+    public static final int API_VERSION = 3;
     public static final String SERVICE_INTENT = "org.openintents.openpgp.IOpenPgpService";
     
     /**
@@ -123,6 +127,25 @@ public class OpenPgpApi {
      */
     public static final String ACTION_GET_KEY = "org.openintents.openpgp.action.GET_KEY";
 
+    /**
+     * Batch of ACTION_SIGN, ACTION_ENCRYPT or ACTION_SIGN_AND_ENCRYPT
+     *
+     * Not an action itself, use executeApiBatch() with one of the actions above to process
+     * several input streams in one call. The passphrase, the signing key and the keys of
+     * recipients are looked up once for the whole batch. The extras of data apply to all items.
+     *
+     * optional extras:
+     * ArrayList<Intent> EXTRA_BATCH_ITEMS       (one Intent per item with extras overriding those of data, e.g. EXTRA_USER_IDS or EXTRA_PASSPHRASE)
+     *
+     * returned extras:
+     * ArrayList<Intent> RESULT_BATCH_RESULTS    (one result per item, with RESULT_CODE and RESULT_ERROR or RESULT_INTENT)
+     *
+     * RESULT_CODE of the batch is RESULT_CODE_SUCCESS if the items have been processed, check the
+     * results of the items. If the user ids of an item can not be resolved, its result contains a
+     * PendingIntent to select keys, the item can then be repeated with executeApi().
+     */
+    public static final int MAX_BATCH_SIZE = 100;
+
     /* Intent extras */
     public static final String EXTRA_API_VERSION = "api_version";
 
@@ -140,6 +163,9 @@ public class OpenPgpApi {
     // GET_KEY
     public static final String EXTRA_KEY_ID = "key_id";
 
+    // batch of SIGN, ENCRYPT, SIGN_AND_ENCRYPT
+    public static final String EXTRA_BATCH_ITEMS = "batch_items";
+
     /* Service Intent returns */
     public static final String RESULT_CODE = "result_code";
 
@@ -157,6 +183,25 @@ public class OpenPgpApi {
     // DECRYPT_VERIFY
     public static final String RESULT_SIGNATURE = "signature";
 
+    // batch of SIGN, ENCRYPT, SIGN_AND_ENCRYPT
+    public static final String RESULT_BATCH_RESULTS = "batch_results";
+
+    // added on the client side to results of calls with input and output streams
+    // long: bytes copied from the InputStream to the service and from the service to the
+    // OutputStream
+    public static final String RESULT_METRICS_INPUT_BYTES = "metrics_input_bytes";
+    public static final String RESULT_METRICS_OUTPUT_BYTES = "metrics_output_bytes";
+    // long: milliseconds from the start of the call until the output has been written, for
+    // batches the whole batch
+    public static final String RESULT_METRICS_DURATION = "metrics_duration";
+
+    // the service has returned, so at most the content of the pipe is left to be written
+    private static final long OUTPUT_TIMEOUT_MILLIS = 10 * 1000;
+
+    // items of a batch whose transfers run at the same time, the next item is ready while the
+    // output of the previous one is written
+    private static final int BATCH_TRANSFER_WINDOW = 2;
+
     IOpenPgpService mService;
     Context mContext;
 
@@ -206,7 +251,20 @@ public class OpenPgpApi {
         }
     }
 
+    /**
+     * Calls the service and pipes is to it and its output to os, blocking until the output has
+     * been written.
+     * <p/>
+     * Each call needs two transfer threads of ParcelFileDescriptorUtil. If all of them are busy,
+     * i.e. more than half of {@link ParcelFileDescriptorUtil#getMaxTransferThreads()} calls are
+     * running at the same time, the call fails right away with RESULT_CODE_ERROR and a
+     * CLIENT_SIDE_ERROR instead of waiting. Apps running many calls in parallel can raise the
+     * limit with {@link ParcelFileDescriptorUtil#setMaxTransferThreads(int)} or use
+     * executeApiBatch().
+     */
     public Intent executeApi(Intent data, InputStream is, OutputStream os) {
+        ParcelFileDescriptor input = null;
+        ParcelFileDescriptor output = null;
         try {
             data.putExtra(EXTRA_API_VERSION, OpenPgpApi.API_VERSION);
 
@@ -216,29 +274,48 @@ public class OpenPgpApi {
                 result = mService.execute(data, null, null);
                 return result;
             } else {
+                long startTime = System.nanoTime();
+                ParcelFileDescriptorUtil.TransferMetrics inputMetrics =
+                        new ParcelFileDescriptorUtil.TransferMetrics();
+                ParcelFileDescriptorUtil.TransferMetrics outputMetrics =
+                        new ParcelFileDescriptorUtil.TransferMetrics();
+
                 // pipe the input and output
-                ParcelFileDescriptor input = ParcelFileDescriptorUtil.pipeFrom(is,
+                input = ParcelFileDescriptorUtil.pipeFrom(is,
                         new ParcelFileDescriptorUtil.IThreadListener() {
 
                             @Override
                             public void onThreadFinished(Thread thread) {
                                 //Log.d(OpenPgpApi.TAG, "Copy to service finished");
                             }
-                        });
-                ParcelFileDescriptor output = ParcelFileDescriptorUtil.pipeTo(os,
+                        }, inputMetrics);
+                output = ParcelFileDescriptorUtil.pipeTo(os,
                         new ParcelFileDescriptorUtil.IThreadListener() {
 
                             @Override
                             public void onThreadFinished(Thread thread) {
                                 //Log.d(OpenPgpApi.TAG, "Service finished writing!");
                             }
-                        });
+                        }, outputMetrics);
 
                 // blocks until result is ready
                 result = mService.execute(data, input, output);
-                // close() is required to halt the TransferThread
+                // close() is required to halt the transfers, the service has its own copies
+                // of the file descriptors
+                input.close();
                 output.close();
 
+                // on success the service has closed its side of the output, wait until
+                // everything has been written to os
+                if (result.getIntExtra(RESULT_CODE, RESULT_CODE_ERROR) == RESULT_CODE_SUCCESS
+                        && !outputMetrics.awaitFinished(OUTPUT_TIMEOUT_MILLIS,
+                        TimeUnit.MILLISECONDS)) {
+                    result = createOutputTimeoutResult();
+                }
+                result.putExtra(RESULT_METRICS_INPUT_BYTES, inputMetrics.getBytes());
+                result.putExtra(RESULT_METRICS_OUTPUT_BYTES, outputMetrics.getBytes());
+                result.putExtra(RESULT_METRICS_DURATION, (System.nanoTime() - startTime) / 1000000);
+
                 // set class loader to current context to allow unparcelling
                 // of OpenPgpError and OpenPgpSignatureResult
                 // http://stackoverflow.com/a/3806769
@@ -248,6 +325,110 @@ public class OpenPgpApi {
             }
         } catch (Exception e) {
             Log.e(OpenPgpApi.TAG, "Exception", e);
+            // e.g. no thread for the output transfer, halt the input transfer
+            close(new ParcelFileDescriptor[]{input, output});
+            Intent result = new Intent();
+            result.putExtra(RESULT_CODE, RESULT_CODE_ERROR);
+            result.putExtra(RESULT_ERROR,
+                    new OpenPgpError(OpenPgpError.CLIENT_SIDE_ERROR, e.getMessage()));
+            return result;
+        }
+    }
+
+    /**
+     * Signs and/or encrypts every input stream into the output stream with the same index in one
+     * call to the service, see MAX_BATCH_SIZE. The results of the items are returned in
+     * RESULT_BATCH_RESULTS.
+     * <p/>
+     * The transfers of at most two items run at the same time. An item whose transfers can not
+     * be started, because all transfer threads are busy, is cancelled and fails, see
+     * executeApi().
+     */
+    public Intent executeApiBatch(Intent data, InputStream[] is, OutputStream[] os) {
+        ParcelFileDescriptor[] inputs = new ParcelFileDescriptor[is.length];
+        ParcelFileDescriptor[] outputs = new ParcelFileDescriptor[os.length];
+        final ParcelFileDescriptorUtil.PendingTransfer[] inputTransfers =
+                new ParcelFileDescriptorUtil.PendingTransfer[is.length];
+        final ParcelFileDescriptorUtil.PendingTransfer[] outputTransfers =
+                new ParcelFileDescriptorUtil.PendingTransfer[os.length];
+        try {
+            if (is.length != os.length) {
+                throw new IllegalArgumentException("Number of input and output streams differs!");
+            }
+            if (is.length > MAX_BATCH_SIZE) {
+                throw new IllegalArgumentException("Batch exceeds " + MAX_BATCH_SIZE + " items!");
+            }
+            data.putExtra(EXTRA_API_VERSION, OpenPgpApi.API_VERSION);
+
+            long startTime = System.nanoTime();
+            ParcelFileDescriptorUtil.TransferMetrics[] inputMetrics =
+                    new ParcelFileDescriptorUtil.TransferMetrics[is.length];
+            ParcelFileDescriptorUtil.TransferMetrics[] outputMetrics =
+                    new ParcelFileDescriptorUtil.TransferMetrics[os.length];
+
+            // pipe the inputs and outputs, the service processes the items one after another,
+            // so the transfers of an item are started when an earlier item has been written
+            final AtomicInteger nextItem = new AtomicInteger(0);
+            ParcelFileDescriptorUtil.IThreadListener startNextItem =
+                    new ParcelFileDescriptorUtil.IThreadListener() {
+                        @Override
+                        public void onThreadFinished(Thread thread) {
+                            startNextBatchItem(inputTransfers, outputTransfers, nextItem);
+                        }
+                    };
+            for (int i = 0; i < is.length; i++) {
+                inputMetrics[i] = new ParcelFileDescriptorUtil.TransferMetrics();
+                outputMetrics[i] = new ParcelFileDescriptorUtil.TransferMetrics();
+                inputTransfers[i] = ParcelFileDescriptorUtil.createPipeFrom(is[i], null,
+                        inputMetrics[i]);
+                inputs[i] = inputTransfers[i].getServiceSide();
+                outputTransfers[i] = ParcelFileDescriptorUtil.createPipeTo(os[i], startNextItem,
+                        outputMetrics[i]);
+                outputs[i] = outputTransfers[i].getServiceSide();
+            }
+            for (int i = 0; i < BATCH_TRANSFER_WINDOW; i++) {
+                startNextBatchItem(inputTransfers, outputTransfers, nextItem);
+            }
+
+            // blocks until all items have been processed
+            Intent result = mService.executeBatch(data, inputs, outputs);
+            close(inputs);
+            close(outputs);
+            // items the service has skipped
+            cancel(inputTransfers);
+            cancel(outputTransfers);
+
+            // set class loader to current context to allow unparcelling
+            // of OpenPgpError and the results of the items
+            result.setExtrasClassLoader(mContext.getClassLoader());
+
+            ArrayList<Intent> itemResults = result.getParcelableArrayListExtra(RESULT_BATCH_RESULTS);
+            if (itemResults != null) {
+                // the outputs are written in parallel, so they share the timeout
+                long deadline = System.nanoTime() + OUTPUT_TIMEOUT_MILLIS * 1000000;
+                for (int i = 0; i < itemResults.size(); i++) {
+                    Intent itemResult = itemResults.get(i);
+                    itemResult.setExtrasClassLoader(mContext.getClassLoader());
+                    if (itemResult.getIntExtra(RESULT_CODE, RESULT_CODE_ERROR) == RESULT_CODE_SUCCESS
+                            && !outputMetrics[i].awaitFinished(deadline - System.nanoTime(),
+                            TimeUnit.NANOSECONDS)) {
+                        itemResult = createOutputTimeoutResult();
+                        itemResults.set(i, itemResult);
+                    }
+                    itemResult.putExtra(RESULT_METRICS_INPUT_BYTES, inputMetrics[i].getBytes());
+                    itemResult.putExtra(RESULT_METRICS_OUTPUT_BYTES, outputMetrics[i].getBytes());
+                }
+                result.putParcelableArrayListExtra(RESULT_BATCH_RESULTS, itemResults);
+            }
+            result.putExtra(RESULT_METRICS_DURATION, (System.nanoTime() - startTime) / 1000000);
+
+            return result;
+        } catch (Exception e) {
+            Log.e(OpenPgpApi.TAG, "Exception", e);
+            close(inputs);
+            close(outputs);
+            cancel(inputTransfers);
+            cancel(outputTransfers);
             Intent result = new Intent();
             result.putExtra(RESULT_CODE, RESULT_CODE_ERROR);
             result.putExtra(RESULT_ERROR,
@@ -256,4 +437,60 @@ public class OpenPgpApi {
         }
     }
 
+    /**
+     * Starts the transfers of the next batch item that has not been started yet. An item whose
+     * transfers can not be started is cancelled, so the service fails it, and the next one is
+     * started instead.
+     */
+    private static void startNextBatchItem(ParcelFileDescriptorUtil.PendingTransfer[] inputs,
+                                           ParcelFileDescriptorUtil.PendingTransfer[] outputs,
+                                           AtomicInteger nextItem) {
+        int i;
+        while ((i = nextItem.getAndIncrement()) < inputs.length) {
+            try {
+                inputs[i].start();
+                outputs[i].start();
+                return;
+            } catch (IOException e) {
+                Log.e(OpenPgpApi.TAG, "Starting transfers of batch item " + i + " failed", e);
+                inputs[i].cancel();
+                outputs[i].cancel();
+            }
+        }
+    }
+
+    private static void cancel(ParcelFileDescriptorUtil.PendingTransfer[] transfers) {
+        for (ParcelFileDescriptorUtil.PendingTransfer transfer : transfers) {
+            if (transfer != null) {
+                transfer.cancel();
+            }
+        }
+    }
+
+    /**
+     * The service succeeded, but the output has not been written completely to the
+     * OutputStream of the caller
+     */
+    private static Intent createOutputTimeoutResult() {
+        Log.e(OpenPgpApi.TAG, "Writing output timed out after " + OUTPUT_TIMEOUT_MILLIS + " ms");
+        Intent result = new Intent();
+        result.putExtra(RESULT_CODE, RESULT_CODE_ERROR);
+        result.putExtra(RESULT_ERROR, new OpenPgpError(OpenPgpError.CLIENT_SIDE_ERROR,
+                "Writing output timed out"));
+        return result;
+    }
+
+    private static void close(ParcelFileDescriptor[] fds) {
+        for (ParcelFileDescriptor fd : fds) {
+            if (fd == null) {
+                continue;
+            }
+            try {
+                fd.close();
+            } catch (IOException e) {
+                Log.e(OpenPgpApi.TAG, "IOException when closing ParcelFileDescriptor", e);
+            }
+        }
+    }
+
 }
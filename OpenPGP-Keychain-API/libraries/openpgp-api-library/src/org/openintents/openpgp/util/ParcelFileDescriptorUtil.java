@@ -19,68 +19,318 @@ package org.openintents.openpgp.util;
 
 import android.os.ParcelFileDescriptor;
 
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ParcelFileDescriptorUtil {
 
+    public static final int MIN_BUFFER_SIZE = 64 * 1024;
+    public static final int MAX_BUFFER_SIZE = 256 * 1024;
+
+    // idle buffers kept for reuse, two per call in flight is plenty
+    private static final int MAX_POOLED_BUFFERS = 8;
+
+    private static volatile int sBufferSize = MIN_BUFFER_SIZE;
+    private static volatile boolean sUseFileChannels = true;
+
+    private static final ConcurrentLinkedQueue<byte[]> sBufferPool =
+            new ConcurrentLinkedQueue<byte[]>();
+    private static final AtomicInteger sPooledBuffers = new AtomicInteger();
+
+    // two per call, so 32 concurrent executeApi calls, see setMaxTransferThreads
+    public static final int DEFAULT_MAX_TRANSFER_THREADS = 64;
+
+    /*
+     * Transfers block until the other side reads or writes, so transfers must never be queued,
+     * otherwise the transfer the service waits for could wait for a thread itself. Beyond the
+     * maximum number of threads a transfer fails right away instead. Idle threads are reused by
+     * the next call and end after a minute.
+     */
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(0,
+            DEFAULT_MAX_TRANSFER_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r,
+                            "ParcelFileDescriptor Transfer Thread #" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
     public interface IThreadListener {
         void onThreadFinished(final Thread thread);
     }
 
+    /**
+     * Bytes and time of a single transfer, updated while the transfer runs
+     */
+    public static class TransferMetrics {
+        private final CountDownLatch mFinished = new CountDownLatch(1);
+        private volatile long mBytes;
+        private volatile long mStartTime;
+        private volatile long mEndTime;
+        private volatile boolean mFileChannel;
+        private volatile IOException mError;
+
+        public long getBytes() {
+            return mBytes;
+        }
+
+        /**
+         * @return milliseconds from start to end of the transfer, up to now if it is still
+         * running
+         */
+        public long getDurationMillis() {
+            long end = mEndTime != 0 ? mEndTime : System.nanoTime();
+            return mStartTime != 0 ? (end - mStartTime) / 1000000 : 0;
+        }
+
+        public boolean isFinished() {
+            return mFinished.getCount() == 0;
+        }
+
+        /**
+         * @return true if the bytes were copied by FileChannel.transferTo
+         */
+        public boolean usedFileChannel() {
+            return mFileChannel;
+        }
+
+        /**
+         * @return the error that ended the transfer early, null if there was none
+         */
+        public IOException getError() {
+            return mError;
+        }
+
+        /**
+         * @return false if the transfer has not finished within the timeout
+         */
+        boolean awaitFinished(long timeout, TimeUnit unit) throws InterruptedException {
+            return mFinished.await(timeout, unit);
+        }
+    }
+
+    /**
+     * @param bufferSize size of the buffers used to copy, between {@link #MIN_BUFFER_SIZE} and
+     *                   {@link #MAX_BUFFER_SIZE}
+     */
+    public static void setBufferSize(int bufferSize) {
+        sBufferSize = Math.max(MIN_BUFFER_SIZE, Math.min(MAX_BUFFER_SIZE, bufferSize));
+        sBufferPool.clear();
+        sPooledBuffers.set(0);
+    }
+
+    /**
+     * @param useFileChannels copy with FileChannel.transferTo if the InputStream of the caller
+     *                        is a file, enabled by default
+     */
+    public static void setUseFileChannels(boolean useFileChannels) {
+        sUseFileChannels = useFileChannels;
+    }
+
+    /**
+     * @param maxThreads number of transfers that can run at the same time, each executeApi call
+     *                   needs two and each batch up to four, at least 2. Further transfers fail
+     *                   with an IOException.
+     */
+    public static void setMaxTransferThreads(int maxThreads) {
+        sExecutor.setMaximumPoolSize(Math.max(2, maxThreads));
+    }
+
+    public static int getMaxTransferThreads() {
+        return sExecutor.getMaximumPoolSize();
+    }
+
     public static ParcelFileDescriptor pipeFrom(InputStream inputStream, IThreadListener listener)
             throws IOException {
+        return pipeFrom(inputStream, listener, null);
+    }
+
+    public static ParcelFileDescriptor pipeFrom(InputStream inputStream, IThreadListener listener,
+                                                TransferMetrics metrics)
+            throws IOException {
+        return start(createPipeFrom(inputStream, listener, metrics));
+    }
+
+    public static ParcelFileDescriptor pipeTo(OutputStream outputStream, IThreadListener listener)
+            throws IOException {
+        return pipeTo(outputStream, listener, null);
+    }
+
+    public static ParcelFileDescriptor pipeTo(OutputStream outputStream, IThreadListener listener,
+                                              TransferMetrics metrics)
+            throws IOException {
+        return start(createPipeTo(outputStream, listener, metrics));
+    }
+
+    /**
+     * Like pipeFrom, but the transfer is only started by PendingTransfer.start()
+     */
+    public static PendingTransfer createPipeFrom(InputStream inputStream,
+                                                 IThreadListener listener,
+                                                 TransferMetrics metrics) throws IOException {
         ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
         ParcelFileDescriptor readSide = pipe[0];
         ParcelFileDescriptor writeSide = pipe[1];
 
-        // start the transfer thread
-        new TransferThread(inputStream, new ParcelFileDescriptor.AutoCloseOutputStream(writeSide),
-                listener)
-                .start();
-
-        return readSide;
+        return new PendingTransfer(new TransferTask(inputStream,
+                new ParcelFileDescriptor.AutoCloseOutputStream(writeSide), listener, metrics),
+                writeSide, readSide);
     }
 
-    public static ParcelFileDescriptor pipeTo(OutputStream outputStream, IThreadListener listener)
-            throws IOException {
+    /**
+     * Like pipeTo, but the transfer is only started by PendingTransfer.start()
+     */
+    public static PendingTransfer createPipeTo(OutputStream outputStream,
+                                               IThreadListener listener,
+                                               TransferMetrics metrics) throws IOException {
         ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
         ParcelFileDescriptor readSide = pipe[0];
         ParcelFileDescriptor writeSide = pipe[1];
 
-        // start the transfer thread
-        new TransferThread(new ParcelFileDescriptor.AutoCloseInputStream(readSide), outputStream,
-                listener)
-                .start();
+        return new PendingTransfer(new TransferTask(
+                new ParcelFileDescriptor.AutoCloseInputStream(readSide), outputStream, listener,
+                metrics), readSide, writeSide);
+    }
+
+    private static ParcelFileDescriptor start(PendingTransfer transfer) throws IOException {
+        try {
+            transfer.start();
+        } catch (IOException e) {
+            transfer.getServiceSide().close();
+            throw e;
+        }
+        return transfer.getServiceSide();
+    }
+
+    /**
+     * A pipe whose transfer has not been started yet, so many pipes can be handed to the service
+     * at once while only a few transfers run
+     */
+    public static class PendingTransfer {
+        private final TransferTask mTask;
+        private final ParcelFileDescriptor mOwnSide;
+        private final ParcelFileDescriptor mServiceSide;
+        private boolean mStarted;
+        private boolean mCancelled;
+
+        private PendingTransfer(TransferTask task, ParcelFileDescriptor ownSide,
+                                ParcelFileDescriptor serviceSide) {
+            mTask = task;
+            mOwnSide = ownSide;
+            mServiceSide = serviceSide;
+        }
+
+        /**
+         * @return the side of the pipe to pass to the service
+         */
+        public ParcelFileDescriptor getServiceSide() {
+            return mServiceSide;
+        }
+
+        /**
+         * Starts the transfer, does nothing if it has been cancelled
+         *
+         * @throws IOException if {@link #getMaxTransferThreads()} transfers are running, the
+         *                     transfer is cancelled then
+         */
+        public synchronized void start() throws IOException {
+            if (mStarted || mCancelled) {
+                return;
+            }
+            try {
+                sExecutor.execute(mTask);
+                mStarted = true;
+            } catch (RejectedExecutionException e) {
+                cancel();
+                throw new IOException("More than " + getMaxTransferThreads()
+                        + " transfers running!");
+            }
+        }
+
+        /**
+         * Closes the side of the caller if the transfer has not been started, so the service
+         * reads nothing or fails to write
+         */
+        public synchronized void cancel() {
+            if (mStarted || mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            try {
+                mOwnSide.close();
+            } catch (IOException e) {
+                //Log.e(OpenPgpApi.TAG, "Closing pipe failed", e);
+            }
+        }
+    }
+
+    private static byte[] obtainBuffer() {
+        byte[] buf = sBufferPool.poll();
+        if (buf != null) {
+            sPooledBuffers.decrementAndGet();
+            if (buf.length == sBufferSize) {
+                return buf;
+            }
+        }
+        return new byte[sBufferSize];
+    }
 
-        return writeSide;
+    private static void recycleBuffer(byte[] buf) {
+        if (buf.length != sBufferSize) {
+            return;
+        }
+        if (sPooledBuffers.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            sBufferPool.offer(buf);
+        } else {
+            sPooledBuffers.decrementAndGet();
+        }
     }
 
-    static class TransferThread extends Thread {
+    static class TransferTask implements Runnable {
         final InputStream mIn;
         final OutputStream mOut;
         final IThreadListener mListener;
+        final TransferMetrics mMetrics;
 
-        TransferThread(InputStream in, OutputStream out, IThreadListener listener) {
-            super("ParcelFileDescriptor Transfer Thread");
+        TransferTask(InputStream in, OutputStream out, IThreadListener listener,
+                     TransferMetrics metrics) {
             mIn = in;
             mOut = out;
             mListener = listener;
-            setDaemon(true);
+            mMetrics = metrics != null ? metrics : new TransferMetrics();
         }
 
         @Override
         public void run() {
-            byte[] buf = new byte[1024];
-            int len;
-
+            mMetrics.mStartTime = System.nanoTime();
             try {
-                while ((len = mIn.read(buf)) > 0) {
-                    mOut.write(buf, 0, len);
+                // only from a file to the pipe, a pipe can not be the source of transferFrom
+                if (!(sUseFileChannels && mIn instanceof FileInputStream
+                        && !(mIn instanceof ParcelFileDescriptor.AutoCloseInputStream)
+                        && mOut instanceof FileOutputStream
+                        && transferFile(((FileInputStream) mIn).getChannel(),
+                        ((FileOutputStream) mOut).getChannel()))) {
+                    transferStreams();
                 }
-                mOut.flush(); // just to be safe
             } catch (IOException e) {
+                mMetrics.mError = e;
                 //Log.e(OpenPgpApi.TAG, "TransferThread" + getId() + ": writing failed", e);
             } finally {
                 try {
@@ -93,11 +343,54 @@ public class ParcelFileDescriptorUtil {
                 } catch (IOException e) {
                     //Log.e(OpenPgpApi.TAG, "TransferThread" + getId(), e);
                 }
+                mMetrics.mEndTime = System.nanoTime();
+                mMetrics.mFinished.countDown();
             }
             if (mListener != null) {
                 //Log.d(OpenPgpApi.TAG, "TransferThread " + getId() + " finished!");
-                mListener.onThreadFinished(this);
+                mListener.onThreadFinished(Thread.currentThread());
+            }
+        }
+
+        private void transferStreams() throws IOException {
+            byte[] buf = obtainBuffer();
+            try {
+                int len;
+                while ((len = mIn.read(buf)) > 0) {
+                    mOut.write(buf, 0, len);
+                    mMetrics.mBytes += len;
+                }
+                mOut.flush(); // just to be safe
+            } finally {
+                recycleBuffer(buf);
+            }
+        }
+
+        /**
+         * Copies a file to the pipe, the kernel can do this without going through a buffer in
+         * Java.
+         *
+         * @return false if the stream of the caller is no seekable file, nothing has been
+         * copied then
+         */
+        private boolean transferFile(FileChannel in, FileChannel out) throws IOException {
+            long position;
+            try {
+                position = in.position();
+            } catch (IOException e) {
+                // e.g. the caller passed another pipe
+                return false;
+            }
+
+            mMetrics.mFileChannel = true;
+            long n;
+            while ((n = in.transferTo(position, sBufferSize, out)) > 0) {
+                position += n;
+                mMetrics.mBytes += n;
             }
+            // transferTo does not update the position of the file
+            in.position(position);
+            return true;
         }
     }
-}
\ No newline at end of file
+}
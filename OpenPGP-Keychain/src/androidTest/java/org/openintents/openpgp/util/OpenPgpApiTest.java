@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.openintents.openpgp.util;
+
+import android.content.Intent;
+import android.os.ParcelFileDescriptor;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import org.openintents.openpgp.IOpenPgpService;
+import org.openintents.openpgp.OpenPgpError;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Runs OpenPgpApi against a service stub in the same process, which copies the input to the
+ * output, so only the transfers are measured
+ */
+public class OpenPgpApiTest extends AndroidTestCase {
+    private static final long MB = 1024 * 1024;
+
+    /**
+     * Copies the input to the output. Calls count down started and wait for release before
+     * reading, so the transfers of several calls can be blocked at the same time.
+     */
+    private static class CopyingService extends IOpenPgpService.Stub {
+        private final CountDownLatch mStarted;
+        private final CountDownLatch mRelease;
+
+        CopyingService() {
+            this(new CountDownLatch(0), new CountDownLatch(0));
+        }
+
+        CopyingService(CountDownLatch started, CountDownLatch release) {
+            mStarted = started;
+            mRelease = release;
+        }
+
+        @Override
+        public Intent execute(Intent data, ParcelFileDescriptor input,
+                              ParcelFileDescriptor output) {
+            Intent result = new Intent();
+            InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(input);
+            OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(output);
+            try {
+                mStarted.countDown();
+                mRelease.await(10, TimeUnit.SECONDS);
+
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+            } catch (Exception e) {
+                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+                result.putExtra(OpenPgpApi.RESULT_ERROR,
+                        new OpenPgpError(OpenPgpError.GENERIC_ERROR, e.getMessage()));
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public Intent executeBatch(Intent data, ParcelFileDescriptor[] inputs,
+                                   ParcelFileDescriptor[] outputs) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Pseudo random bytes of the given length, without holding them in memory
+     */
+    private static class PatternInputStream extends InputStream {
+        private final CRC32 mChecksum = new CRC32();
+        private long mRemaining;
+        private int mState = 42;
+
+        PatternInputStream(long size) {
+            mRemaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining == 0) {
+                return -1;
+            }
+            int n = (int) Math.min(len, mRemaining);
+            for (int i = off; i < off + n; i++) {
+                mState = mState * 1103515245 + 12345;
+                b[i] = (byte) (mState >>> 24);
+            }
+            mChecksum.update(b, off, n);
+            mRemaining -= n;
+            return n;
+        }
+
+        long getChecksum() {
+            return mChecksum.getValue();
+        }
+    }
+
+    private static class ChecksumOutputStream extends OutputStream {
+        private final CRC32 mChecksum = new CRC32();
+
+        @Override
+        public void write(int b) {
+            mChecksum.update(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mChecksum.update(b, off, len);
+        }
+
+        long getChecksum() {
+            return mChecksum.getValue();
+        }
+    }
+
+    private Intent execute(IOpenPgpService service, PatternInputStream in,
+                           ChecksumOutputStream out) {
+        Intent data = new Intent();
+        data.setAction(OpenPgpApi.ACTION_ENCRYPT);
+        return new OpenPgpApi(getContext(), service).executeApi(data, in, out);
+    }
+
+    private static void assertSuccess(Intent result) {
+        OpenPgpError error = result.getParcelableExtra(OpenPgpApi.RESULT_ERROR);
+        assertEquals(error != null ? error.getMessage() : null, OpenPgpApi.RESULT_CODE_SUCCESS,
+                result.getIntExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR));
+    }
+
+    public void testRoundTrip() throws Exception {
+        long size = 3 * MB + 4097;
+        PatternInputStream in = new PatternInputStream(size);
+        ChecksumOutputStream out = new ChecksumOutputStream();
+
+        Intent result = execute(new CopyingService(), in, out);
+
+        assertSuccess(result);
+        assertEquals(in.getChecksum(), out.getChecksum());
+        assertEquals(size, result.getLongExtra(OpenPgpApi.RESULT_METRICS_INPUT_BYTES, -1));
+        assertEquals(size, result.getLongExtra(OpenPgpApi.RESULT_METRICS_OUTPUT_BYTES, -1));
+    }
+
+    /**
+     * Runs a call on its own thread
+     */
+    private Thread executeInBackground(final IOpenPgpService service, final Intent[] results,
+                                       final int index) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                results[index] = execute(service, new PatternInputStream(MB),
+                        new ChecksumOutputStream());
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    public void testConcurrentCalls() throws Exception {
+        // more transfer threads than the 16 of the first pooled version are blocked at once
+        int count = 16;
+        CountDownLatch started = new CountDownLatch(count);
+        CopyingService service = new CopyingService(started, started);
+        Intent[] results = new Intent[count];
+        Thread[] threads = new Thread[count];
+        for (int i = 0; i < count; i++) {
+            threads[i] = executeInBackground(service, results, i);
+        }
+        for (int i = 0; i < count; i++) {
+            threads[i].join();
+            assertSuccess(results[i]);
+        }
+    }
+
+    public void testCallBeyondTransferThreadsFails() throws Exception {
+        ParcelFileDescriptorUtil.setMaxTransferThreads(4);
+        try {
+            CountDownLatch started = new CountDownLatch(2);
+            CountDownLatch release = new CountDownLatch(1);
+            CopyingService service = new CopyingService(started, release);
+            Intent[] results = new Intent[2];
+            Thread first = executeInBackground(service, results, 0);
+            Thread second = executeInBackground(service, results, 1);
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            // all four transfer threads are blocked by the two calls
+            Intent result = execute(service, new PatternInputStream(MB),
+                    new ChecksumOutputStream());
+            assertEquals(OpenPgpApi.RESULT_CODE_ERROR,
+                    result.getIntExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR));
+            OpenPgpError error = result.getParcelableExtra(OpenPgpApi.RESULT_ERROR);
+            assertEquals(OpenPgpError.CLIENT_SIDE_ERROR, error.getErrorId());
+
+            release.countDown();
+            first.join();
+            second.join();
+            assertSuccess(results[0]);
+            assertSuccess(results[1]);
+        } finally {
+            ParcelFileDescriptorUtil.setMaxTransferThreads(
+                    ParcelFileDescriptorUtil.DEFAULT_MAX_TRANSFER_THREADS);
+        }
+    }
+
+    @LargeTest
+    public void testThroughput() throws Exception {
+        long size = 1024 * MB;
+        PatternInputStream in = new PatternInputStream(size);
+        ChecksumOutputStream out = new ChecksumOutputStream();
+
+        long startTime = System.nanoTime();
+        Intent result = execute(new CopyingService(), in, out);
+        long nanos = System.nanoTime() - startTime;
+
+        assertSuccess(result);
+        assertEquals(in.getChecksum(), out.getChecksum());
+        Log.i(OpenPgpApi.TAG, "1 GB through the API in " + (nanos / 1000000) + " ms ("
+                + (size * 1000 / Math.max(1, nanos)) + " MB/s)");
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import junit.framework.TestCase;
+
+public class PgpKeyHelperTest extends TestCase {
+
+    public void testNormalizedEmailInAngleBrackets() {
+        assertEquals("max@example.com",
+                PgpKeyHelper.getNormalizedEmail("Max Mustermann <Max@Example.com>"));
+    }
+
+    public void testNormalizedEmailWithCommentAfterEmail() {
+        assertEquals("max@example.com",
+                PgpKeyHelper.getNormalizedEmail("Max Mustermann <max@example.com> (work)"));
+    }
+
+    public void testNormalizedEmailUsesLastAngleBrackets() {
+        assertEquals("max@example.com",
+                PgpKeyHelper.getNormalizedEmail("Max <Mustermann> <max@example.com>"));
+    }
+
+    public void testNormalizedEmailOnlyEmail() {
+        assertEquals("max@example.com", PgpKeyHelper.getNormalizedEmail(" max@example.com "));
+    }
+
+    public void testNormalizedEmailWithoutEmail() {
+        assertNull(PgpKeyHelper.getNormalizedEmail("Max Mustermann"));
+        assertNull(PgpKeyHelper.getNormalizedEmail("Max Mustermann <>"));
+        assertNull(PgpKeyHelper.getNormalizedEmail("Max Mustermann <max@example.com"));
+        assertNull(PgpKeyHelper.getNormalizedEmail(null));
+    }
+}
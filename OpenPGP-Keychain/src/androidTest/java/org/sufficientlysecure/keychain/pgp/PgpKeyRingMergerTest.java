@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import junit.framework.TestCase;
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.openpgp.PGPEncryptedData;
+import org.spongycastle.openpgp.PGPKeyPair;
+import org.spongycastle.openpgp.PGPKeyRingGenerator;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPSignatureGenerator;
+import org.spongycastle.openpgp.operator.PGPDigestCalculator;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
+import org.sufficientlysecure.keychain.Constants;
+
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.util.Date;
+import java.util.Iterator;
+
+public class PgpKeyRingMergerTest extends TestCase {
+
+    private static final String USER_ID = "Max Mustermann <max@example.com>";
+
+    private PGPKeyPair mMasterKey;
+    private PGPKeyPair mOtherKey;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        if (Security.getProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+        mMasterKey = createKeyPair();
+        mOtherKey = createKeyPair();
+    }
+
+    private static PGPKeyPair createKeyPair() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA",
+                Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        // small keys keep the test fast, they are never used for real data
+        generator.initialize(1024);
+        return new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, generator.generateKeyPair(),
+                new Date());
+    }
+
+    /**
+     * @param subKey may be null
+     */
+    private static PGPPublicKeyRing createKeyRing(PGPKeyPair masterKey, PGPKeyPair subKey)
+            throws Exception {
+        PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder()
+                .build().get(HashAlgorithmTags.SHA1);
+        PGPKeyRingGenerator generator = new PGPKeyRingGenerator(
+                PGPSignature.POSITIVE_CERTIFICATION, masterKey, USER_ID, sha1Calc, null, null,
+                new JcaPGPContentSignerBuilder(masterKey.getPublicKey().getAlgorithm(),
+                        HashAlgorithmTags.SHA1),
+                new JcePBESecretKeyEncryptorBuilder(PGPEncryptedData.CAST5, sha1Calc)
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                        .build("test".toCharArray()));
+        if (subKey != null) {
+            generator.addSubKey(subKey);
+        }
+        return generator.generatePublicKeyRing();
+    }
+
+    private static PGPSignature certify(PGPKeyPair signer, String userId, PGPPublicKey key)
+            throws Exception {
+        PGPSignatureGenerator generator = new PGPSignatureGenerator(
+                new JcaPGPContentSignerBuilder(signer.getPublicKey().getAlgorithm(),
+                        HashAlgorithmTags.SHA1)
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME));
+        generator.init(PGPSignature.DEFAULT_CERTIFICATION, signer.getPrivateKey());
+        return generator.generateCertification(userId, key);
+    }
+
+    private static PGPPublicKeyRing addCertification(PGPPublicKeyRing keyRing, PGPSignature sig) {
+        PGPPublicKey masterKey = PGPPublicKey.addCertification(keyRing.getPublicKey(), USER_ID,
+                sig);
+        return PGPPublicKeyRing.insertPublicKey(keyRing, masterKey);
+    }
+
+    private static int countCertifications(PGPPublicKeyRing keyRing) {
+        int count = 0;
+        for (Iterator it = keyRing.getPublicKey().getSignaturesForID(USER_ID); it.hasNext(); ) {
+            it.next();
+            ++count;
+        }
+        return count;
+    }
+
+    public void testUnchangedKeyRing() throws Exception {
+        PGPPublicKeyRing stored = createKeyRing(mMasterKey, null);
+
+        assertSame(stored, PgpKeyRingMerger.merge(stored, stored));
+    }
+
+    public void testAddsSubkeyWithValidBinding() throws Exception {
+        PGPPublicKeyRing stored = createKeyRing(mMasterKey, null);
+        PGPKeyPair subKey = createKeyPair();
+        PGPPublicKeyRing incoming = createKeyRing(mMasterKey, subKey);
+
+        PGPPublicKeyRing merged = PgpKeyRingMerger.merge(stored, incoming);
+
+        assertNotNull(merged.getPublicKey(subKey.getKeyID()));
+    }
+
+    public void testSkipsSubkeyBoundByOtherKey() throws Exception {
+        PGPPublicKeyRing stored = createKeyRing(mMasterKey, null);
+        PGPKeyPair subKey = createKeyPair();
+        PGPPublicKey foreignSubKey = createKeyRing(mOtherKey, subKey)
+                .getPublicKey(subKey.getKeyID());
+        PGPPublicKeyRing incoming = PGPPublicKeyRing.insertPublicKey(stored, foreignSubKey);
+
+        PGPPublicKeyRing merged = PgpKeyRingMerger.merge(stored, incoming);
+
+        assertNull(merged.getPublicKey(subKey.getKeyID()));
+    }
+
+    private PgpKeyRingMerger.SignerKeyLookup lookupOtherKey(final PGPPublicKey otherKey) {
+        return new PgpKeyRingMerger.SignerKeyLookup() {
+            @Override
+            public PGPPublicKey getPublicKey(long keyId) {
+                return keyId == mOtherKey.getKeyID() ? otherKey : null;
+            }
+        };
+    }
+
+    public void testAddsCertificationOfKnownSigner() throws Exception {
+        PGPPublicKeyRing stored = createKeyRing(mMasterKey, null);
+        PGPPublicKeyRing incoming = addCertification(stored,
+                certify(mOtherKey, USER_ID, stored.getPublicKey()));
+
+        PGPPublicKeyRing merged = PgpKeyRingMerger.merge(stored, incoming,
+                lookupOtherKey(mOtherKey.getPublicKey()));
+        assertEquals(countCertifications(stored) + 1, countCertifications(merged));
+    }
+
+    public void testKeepsCertificationOfUnknownSigner() throws Exception {
+        PGPPublicKeyRing stored = createKeyRing(mMasterKey, null);
+        PGPPublicKeyRing incoming = addCertification(stored,
+                certify(mOtherKey, USER_ID, stored.getPublicKey()));
+
+        // cannot be verified, but is kept like on the first import
+        PGPPublicKeyRing merged = PgpKeyRingMerger.merge(stored, incoming);
+        assertEquals(countCertifications(stored) + 1, countCertifications(merged));
+        // and only once
+        assertSame(merged, PgpKeyRingMerger.merge(merged, incoming));
+    }
+
+    public void testSkipsCertificationFailingVerification() throws Exception {
+        PGPPublicKeyRing stored = createKeyRing(mMasterKey, null);
+        PGPPublicKeyRing incoming = addCertification(stored,
+                certify(mOtherKey, USER_ID, stored.getPublicKey()));
+
+        // the known key with this id did not make the signature
+        assertSame(stored, PgpKeyRingMerger.merge(stored, incoming,
+                lookupOtherKey(createKeyPair().getPublicKey())));
+    }
+
+    public void testSkipsUserIdCertifiedOnlyByUnknownSigner() throws Exception {
+        PGPPublicKeyRing stored = createKeyRing(mMasterKey, null);
+        String userId = "Eve <eve@example.com>";
+        PGPPublicKey masterKey = PGPPublicKey.addCertification(stored.getPublicKey(), userId,
+                certify(mOtherKey, userId, stored.getPublicKey()));
+        PGPPublicKeyRing incoming = PGPPublicKeyRing.insertPublicKey(stored, masterKey);
+
+        assertSame(stored, PgpKeyRingMerger.merge(stored, incoming));
+    }
+
+    public void testSkipsCertificationOfOtherUserId() throws Exception {
+        PGPPublicKeyRing stored = createKeyRing(mMasterKey, null);
+        // a valid signature by the master key, but over another user id
+        PGPPublicKeyRing incoming = addCertification(stored,
+                certify(mMasterKey, "Eve <eve@example.com>", stored.getPublicKey()));
+
+        assertSame(stored, PgpKeyRingMerger.merge(stored, incoming));
+    }
+
+    public void testRejectsOtherMasterKey() throws Exception {
+        PGPPublicKeyRing stored = createKeyRing(mMasterKey, null);
+        PGPPublicKeyRing incoming = createKeyRing(mOtherKey, null);
+
+        assertNull(PgpKeyRingMerger.merge(stored, incoming));
+    }
+}
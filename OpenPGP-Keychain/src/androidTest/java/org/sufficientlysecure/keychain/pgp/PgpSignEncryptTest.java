@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2012-2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.openpgp.PGPEncryptedData;
+import org.spongycastle.openpgp.PGPKeyPair;
+import org.spongycastle.openpgp.PGPKeyRingGenerator;
+import org.spongycastle.openpgp.PGPLiteralData;
+import org.spongycastle.openpgp.PGPObjectFactory;
+import org.spongycastle.openpgp.PGPOnePassSignature;
+import org.spongycastle.openpgp.PGPOnePassSignatureList;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPSignatureList;
+import org.spongycastle.openpgp.operator.PGPDigestCalculator;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.Id;
+import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+
+public class PgpSignEncryptTest extends AndroidTestCase {
+
+    private static final String USER_ID = "Max Mustermann <max@example.com>";
+    private static final String PASSPHRASE = "test";
+
+    private PGPSecretKeyRing mKeyRing;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        if (Security.getProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME) == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+        mKeyRing = createKeyRing();
+    }
+
+    private static PGPSecretKeyRing createKeyRing() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA",
+                Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+        // small key keeps the test fast, it is never used for real data
+        generator.initialize(1024);
+        PGPKeyPair keyPair = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL,
+                generator.generateKeyPair(), new Date());
+
+        PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder()
+                .build().get(HashAlgorithmTags.SHA1);
+        return new PGPKeyRingGenerator(PGPSignature.POSITIVE_CERTIFICATION, keyPair, USER_ID,
+                sha1Calc, null, null,
+                new JcaPGPContentSignerBuilder(keyPair.getPublicKey().getAlgorithm(),
+                        HashAlgorithmTags.SHA1),
+                new JcePBESecretKeyEncryptorBuilder(PGPEncryptedData.CAST5, sha1Calc)
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                        .build(PASSPHRASE.toCharArray()))
+                .generateSecretKeyRing();
+    }
+
+    /**
+     * Keys of the generated key ring instead of the database
+     */
+    private class TestKeys extends PgpSignEncryptKeys {
+        TestKeys() {
+            super(getContext());
+        }
+
+        @Override
+        PGPSecretKey getSigningKey(long keyId) {
+            return mKeyRing.getSecretKey();
+        }
+
+        @Override
+        String getSigningUserId(long keyId) {
+            return USER_ID;
+        }
+
+        @Override
+        PGPPublicKey getEncryptPublicKey(long masterKeyId) {
+            return mKeyRing.getPublicKey();
+        }
+    }
+
+    /**
+     * Input of the given size repeating a block of random bytes, so large inputs need no memory
+     */
+    static class PatternInputStream extends InputStream {
+        private final byte[] mBlock = createInput(65521);
+        private long mRemaining;
+        private int mPosition;
+
+        PatternInputStream(long size) {
+            mRemaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining == 0) {
+                return -1;
+            }
+            int n = (int) Math.min(Math.min(len, mRemaining), mBlock.length - mPosition);
+            System.arraycopy(mBlock, mPosition, b, off, n);
+            mPosition = (mPosition + n) % mBlock.length;
+            mRemaining -= n;
+            return n;
+        }
+    }
+
+    static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    static byte[] createInput(int size) {
+        byte[] input = new byte[size];
+        new Random(42).nextBytes(input);
+        return input;
+    }
+
+    static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 16];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private PgpSignEncrypt.Builder signBuilder(InputData data, OutputStream out) {
+        return new PgpSignEncrypt.Builder(getContext(), data, out)
+                .keys(new TestKeys())
+                .signatureKeyId(mKeyRing.getSecretKey().getKeyID())
+                .signaturePassphrase(PASSPHRASE)
+                .signatureHashAlgorithm(HashAlgorithmTags.SHA256)
+                .binaryInput(true);
+    }
+
+    private PgpSignEncrypt.Builder encryptBuilder(InputData data, OutputStream out) {
+        return new PgpSignEncrypt.Builder(getContext(), data, out)
+                .keys(new TestKeys())
+                .encryptionKeyIds(new long[]{mKeyRing.getPublicKey().getKeyID()})
+                .symmetricEncryptionAlgorithm(PGPEncryptedData.AES_256);
+    }
+
+    public void testSignOnlyBinaryInput() throws Exception {
+        byte[] input = createInput((1 << 20) + 17);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        signBuilder(new InputData(new ByteArrayInputStream(input), input.length), out)
+                .build().execute();
+
+        PGPObjectFactory factory = new PGPObjectFactory(out.toByteArray());
+        PGPOnePassSignature onePass = ((PGPOnePassSignatureList) factory.nextObject()).get(0);
+        onePass.init(new JcaPGPContentVerifierBuilderProvider()
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME), mKeyRing.getPublicKey());
+        byte[] signed = readAll(((PGPLiteralData) factory.nextObject()).getInputStream());
+        onePass.update(signed);
+        PGPSignature signature = ((PGPSignatureList) factory.nextObject()).get(0);
+
+        assertTrue(Arrays.equals(input, signed));
+        assertEquals(PGPSignature.BINARY_DOCUMENT, signature.getSignatureType());
+        assertTrue(onePass.verify(signature));
+    }
+
+    public void testDetachedSignatureOfBinaryInput() throws Exception {
+        byte[] input = createInput((1 << 20) + 17);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        signBuilder(new InputData(new ByteArrayInputStream(input), input.length), out)
+                .build().generateSignature();
+
+        PGPObjectFactory factory = new PGPObjectFactory(out.toByteArray());
+        PGPSignature signature = ((PGPSignatureList) factory.nextObject()).get(0);
+        signature.init(new JcaPGPContentVerifierBuilderProvider()
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME), mKeyRing.getPublicKey());
+        signature.update(input);
+
+        assertEquals(PGPSignature.BINARY_DOCUMENT, signature.getSignatureType());
+        assertTrue(signature.verify());
+    }
+
+    /**
+     * Benchmark of signing binary data against encrypting it, results are logged
+     */
+    @LargeTest
+    public void testSignOnlyThroughput() throws Exception {
+        long size = 64L << 20;
+
+        long start = System.nanoTime();
+        signBuilder(new InputData(new PatternInputStream(size), size), new NullOutputStream())
+                .build().execute();
+        long signTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        encryptBuilder(new InputData(new PatternInputStream(size), size), new NullOutputStream())
+                .build().execute();
+        long encryptTime = System.nanoTime() - start;
+
+        Log.i(Constants.TAG, "sign-only: " + throughput(size, signTime) + ", encrypt: "
+                + throughput(size, encryptTime));
+    }
+
+    private byte[] encryptSymmetric(byte[] input, boolean armor, int compressionId,
+                                    boolean sign, boolean pipelined) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PgpSignEncrypt.Builder builder = sign
+                ? signBuilder(new InputData(new ByteArrayInputStream(input), input.length), out)
+                : new PgpSignEncrypt.Builder(getContext(),
+                new InputData(new ByteArrayInputStream(input), input.length), out);
+        builder.encryptionPassphrase(PASSPHRASE)
+                .symmetricEncryptionAlgorithm(PGPEncryptedData.AES_256)
+                .compressionId(compressionId)
+                .enableAsciiArmorOutput(armor)
+                .pipelined(pipelined)
+                .build().execute();
+        return out.toByteArray();
+    }
+
+    private byte[] decryptSymmetric(byte[] encrypted) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new PgpDecryptVerify.Builder(getContext(),
+                new InputData(new ByteArrayInputStream(encrypted), encrypted.length), out)
+                .assumeSymmetric(true)
+                .passphrase(PASSPHRASE)
+                .build().execute();
+        return out.toByteArray();
+    }
+
+    /**
+     * Encrypts the input serially and pipelined, both must decrypt to the input. The encrypted
+     * bytes differ because of the random session keys.
+     */
+    private void assertPipelinedRoundTrip(boolean armor, int compressionId, boolean sign)
+            throws Exception {
+        // not a multiple of the 64 KiB chunks
+        byte[] input = createInput((3 << 20) + 4097);
+
+        byte[] serial = encryptSymmetric(input, armor, compressionId, sign, false);
+        byte[] pipelined = encryptSymmetric(input, armor, compressionId, sign, true);
+
+        assertTrue(Arrays.equals(input, decryptSymmetric(serial)));
+        assertTrue(Arrays.equals(input, decryptSymmetric(pipelined)));
+    }
+
+    public void testPipelinedEncryption() throws Exception {
+        assertPipelinedRoundTrip(false, Id.choice.compression.none, false);
+    }
+
+    public void testPipelinedEncryptionWithCompression() throws Exception {
+        assertPipelinedRoundTrip(false, Id.choice.compression.zlib, false);
+    }
+
+    public void testPipelinedEncryptionWithArmor() throws Exception {
+        assertPipelinedRoundTrip(true, Id.choice.compression.zlib, false);
+    }
+
+    public void testPipelinedSignAndEncrypt() throws Exception {
+        assertPipelinedRoundTrip(true, Id.choice.compression.zlib, true);
+    }
+
+    /**
+     * Benchmark of serial against pipelined encryption of 1 MB, 100 MB and 1 GB with compression,
+     * results are logged
+     */
+    @LargeTest
+    public void testPipelinedThroughput() throws Exception {
+        for (long size : new long[]{1L << 20, 100L << 20, 1L << 30}) {
+            long[] times = new long[2];
+            for (int i = 0; i < times.length; ++i) {
+                long start = System.nanoTime();
+                encryptBuilder(new InputData(new PatternInputStream(size), size),
+                        new NullOutputStream())
+                        .compressionId(Id.choice.compression.zlib)
+                        .pipelined(i == 1)
+                        .build().execute();
+                times[i] = System.nanoTime() - start;
+            }
+            Log.i(Constants.TAG, "serial: " + throughput(size, times[0]) + ", pipelined: "
+                    + throughput(size, times[1]));
+        }
+    }
+
+    static String throughput(long size, long nanos) {
+        return (size >> 20) + " MB in " + (nanos / 1000000) + "ms ("
+                + (size * 1000 / Math.max(1, nanos)) + " MB/s)";
+    }
+}
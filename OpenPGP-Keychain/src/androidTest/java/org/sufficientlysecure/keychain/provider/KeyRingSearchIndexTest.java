@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import junit.framework.TestCase;
+
+public class KeyRingSearchIndexTest extends TestCase {
+
+    public void testMatchQueryRequiresEveryWordAsPrefix() {
+        assertEquals("max* exa*", KeyRingSearchIndex.buildMatchQuery("Max exa"));
+    }
+
+    public void testMatchQuerySplitsAtPunctuation() {
+        assertEquals("max* example* com*",
+                KeyRingSearchIndex.buildMatchQuery("<max@example.com>"));
+    }
+
+    public void testMatchQueryDropsKeyIdPrefix() {
+        assertEquals("5d1a2b3c*", KeyRingSearchIndex.buildMatchQuery("0x5D1A2B3C"));
+        assertEquals("0*", KeyRingSearchIndex.buildMatchQuery("0"));
+    }
+
+    public void testMatchQueryLowerCasesOperators() {
+        assertEquals("max* or* near*", KeyRingSearchIndex.buildMatchQuery("max OR NEAR"));
+    }
+
+    public void testMatchQueryKeepsNonAsciiCharacters() {
+        assertEquals("jürgen*", KeyRingSearchIndex.buildMatchQuery("Jürgen"));
+    }
+
+    public void testMatchQueryWithoutWords() {
+        assertNull(KeyRingSearchIndex.buildMatchQuery(""));
+        assertNull(KeyRingSearchIndex.buildMatchQuery(" \"*-( "));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2012-2013 Dominik Schürmann <dominik@dominikschuermann.de>
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserIdEmails;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserIds;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+
+import java.util.List;
+
+/**
+ * Checks that the queries of all uri patterns are answered using the indexes of the key tables
+ */
+public class KeychainProviderTest extends AndroidTestCase {
+
+    private static final String MASTER_KEY_ID = "6706442476468166769";
+    private static final String KEY_ID = "-6917529027641081856";
+
+    private KeychainProvider mProvider;
+    private SQLiteDatabase mDatabase;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new KeychainProvider();
+        mProvider.attachInfo(getContext(), null);
+        mDatabase = KeychainDatabase.getKeychainDatabase(getContext()).getReadableDatabase();
+    }
+
+    private void assertFullTableScans(Uri uri, int maxScans) {
+        String query = mProvider.buildQuery(uri, null, null, null, null);
+        List<String> scans = KeychainProvider.getFullTableScans(mDatabase, query, null,
+                Tables.KEY_RINGS, Tables.KEYS, Tables.USER_IDS, Tables.USER_ID_EMAILS);
+        assertTrue(uri + " scans " + scans + ": " + query, scans.size() <= maxScans);
+    }
+
+    /**
+     * Uris returning single rows must not scan any table
+     */
+    private void assertLookup(Uri uri) {
+        assertFullTableScans(uri, 0);
+    }
+
+    /**
+     * Uris returning lists have to scan one table, but must join the other ones by index
+     */
+    private void assertList(Uri uri) {
+        assertFullTableScans(uri, 1);
+    }
+
+    public void testKeyRingLookups() {
+        assertLookup(KeyRings.buildPublicKeyRingsUri("1"));
+        assertLookup(KeyRings.buildSecretKeyRingsUri("1"));
+        assertLookup(KeyRings.buildPublicKeyRingsByMasterKeyIdUri(MASTER_KEY_ID));
+        assertLookup(KeyRings.buildSecretKeyRingsByMasterKeyIdUri(MASTER_KEY_ID));
+        assertLookup(KeyRings.buildPublicKeyRingsByKeyIdUri(KEY_ID));
+        assertLookup(KeyRings.buildSecretKeyRingsByKeyIdUri(KEY_ID));
+    }
+
+    public void testKeyRingLists() {
+        assertList(KeyRings.buildUnifiedKeyRingsUri());
+        assertList(KeyRings.buildUnifiedKeyRingsSearchUri("max exa"));
+        assertList(KeyRings.buildPublicKeyRingsUri());
+        assertList(KeyRings.buildPublicKeyRingsSearchUri("max"));
+        assertList(KeyRings.buildSecretKeyRingsUri());
+        assertList(KeyRings.buildSecretKeyRingsSearchUri("max"));
+        assertList(KeyRings.buildPublicKeyRingsByKeyIdsUri(MASTER_KEY_ID + "," + KEY_ID));
+        assertList(KeyRings.buildSecretKeyRingsByKeyIdsUri(MASTER_KEY_ID + "," + KEY_ID));
+        assertList(KeyRings.buildPublicKeyRingsByEmailsUri("max@example.com,a@b.c"));
+        assertList(KeyRings.buildSecretKeyRingsByEmailsUri("max@example.com,a@b.c"));
+        assertList(KeyRings.buildPublicKeyRingsByLikeEmailUri("example"));
+        assertList(KeyRings.buildSecretKeyRingsByLikeEmails("example"));
+        assertList(UserIdEmails.buildPublicLookupUri("max@example.com,a@b.c"));
+    }
+
+    public void testKeysAndUserIds() {
+        assertLookup(Keys.buildPublicKeysUri("1"));
+        assertLookup(Keys.buildSecretKeysUri("1"));
+        assertLookup(Keys.buildPublicKeysUri("1", "2"));
+        assertLookup(Keys.buildSecretKeysUri("1", "2"));
+        assertLookup(UserIds.buildPublicUserIdsUri("1"));
+        assertLookup(UserIds.buildSecretUserIdsUri("1"));
+        assertLookup(UserIds.buildPublicUserIdsUri("1", "2"));
+        assertLookup(UserIds.buildSecretUserIdsUri("1", "2"));
+        assertLookup(UserIds.buildUserIdsUri(
+                KeyRings.buildPublicKeyRingsByMasterKeyIdUri(MASTER_KEY_ID)));
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service.remote;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class RemoteRequestSchedulerTest extends TestCase {
+
+    private RemoteRequestScheduler mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // fewer workers than MIN_WORKERS are requested
+        mScheduler = new RemoteRequestScheduler("test", 1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mScheduler.shutdown();
+        super.tearDown();
+    }
+
+    /**
+     * Runs a request that blocks until release is counted down, on its own thread
+     */
+    private Thread executeBlocking(final int uid, final CountDownLatch started,
+                                   final CountDownLatch release) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mScheduler.execute(uid, new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            started.countDown();
+                            release.await();
+                            return null;
+                        }
+                    });
+                } catch (Exception e) {
+                    // cancelled on shutdown
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    public void testBlockedRequestDoesNotStallOtherApps() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread blocked = executeBlocking(1, started, release);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        String result = mScheduler.execute(2, new Callable<String>() {
+            @Override
+            public String call() {
+                return "done";
+            }
+        });
+        assertEquals("done", result);
+
+        release.countDown();
+        blocked.join();
+    }
+
+    public void testTwoBlockedRequestsOfOneAppDoNotStallOtherApps() throws Exception {
+        CountDownLatch startedFirst = new CountDownLatch(1);
+        CountDownLatch startedSecond = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread first = executeBlocking(1, startedFirst, release);
+        assertTrue(startedFirst.await(5, TimeUnit.SECONDS));
+        // would take the last worker
+        Thread second = executeBlocking(1, startedSecond, release);
+        // give it time to be queued
+        Thread.sleep(200);
+        assertEquals(1, startedSecond.getCount());
+
+        final String[] result = new String[1];
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = mScheduler.execute(2, new Callable<String>() {
+                        @Override
+                        public String call() {
+                            return "done";
+                        }
+                    });
+                } catch (Exception e) {
+                    // fails below
+                }
+            }
+        });
+        other.start();
+        other.join(5000);
+        assertEquals("done", result[0]);
+        assertEquals(1, startedSecond.getCount());
+
+        // the second request runs when the first one has finished
+        release.countDown();
+        assertTrue(startedSecond.await(5, TimeUnit.SECONDS));
+        first.join();
+        second.join();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+public class ByteBufferInputStreamTest extends TestCase {
+    // not a multiple of the chunk sizes read below
+    private static final int FILE_SIZE = 3 * (1 << 16) + 1234;
+
+    private File mFile;
+    private byte[] mData;
+
+    @Override
+    protected void setUp() throws Exception {
+        mData = new byte[FILE_SIZE];
+        new Random(42).nextBytes(mData);
+
+        mFile = File.createTempFile("input", null);
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(mData);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    private static byte[] readAll(InputStream in, int chunkSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[chunkSize];
+        int n;
+        while ((n = in.read(buffer, 0, buffer.length)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        assertEquals(-1, in.read(buffer, 0, buffer.length));
+        return out.toByteArray();
+    }
+
+    public void testReadFileInChunks() throws Exception {
+        for (int chunkSize : new int[]{1, 1000, 1 << 16, 1 << 20}) {
+            InputData inputData = InputData.fromFile(mFile.getPath());
+            try {
+                assertEquals(FILE_SIZE, inputData.getSize());
+                assertTrue("chunk size " + chunkSize,
+                        Arrays.equals(mData, readAll(inputData.getInputStream(), chunkSize)));
+            } finally {
+                inputData.close();
+            }
+        }
+    }
+
+    public void testReadFileBytewise() throws Exception {
+        InputData inputData = InputData.fromFile(mFile.getPath());
+        try {
+            InputStream in = inputData.getInputStream();
+            for (int i = 0; i < FILE_SIZE; ++i) {
+                assertEquals("byte " + i, mData[i] & 0xff, in.read());
+            }
+            assertEquals(-1, in.read());
+        } finally {
+            inputData.close();
+        }
+    }
+
+    public void testReadByteBuffer() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(FILE_SIZE);
+        buffer.put(mData);
+        buffer.flip();
+
+        InputData inputData = new InputData(buffer);
+        assertEquals(FILE_SIZE, inputData.getSize());
+        assertTrue(Arrays.equals(mData, readAll(inputData.getInputStream(), 4096)));
+    }
+
+    public void testSkipAndAvailable() throws Exception {
+        InputStream in = new ByteBufferInputStream(ByteBuffer.wrap(mData));
+        assertEquals(FILE_SIZE, in.available());
+
+        assertEquals(mData[0] & 0xff, in.read());
+        assertEquals(10, in.skip(10));
+        assertEquals(mData[11] & 0xff, in.read());
+        assertEquals(FILE_SIZE - 12, in.available());
+
+        // only up to the end
+        assertEquals(FILE_SIZE - 12, in.skip(Long.MAX_VALUE));
+        assertEquals(0, in.available());
+        assertEquals(-1, in.read());
+    }
+}
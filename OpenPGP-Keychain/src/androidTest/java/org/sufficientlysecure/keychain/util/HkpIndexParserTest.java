@@ -0,0 +1,136 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import junit.framework.TestCase;
+import org.sufficientlysecure.keychain.ui.adapter.ImportKeysListEntry;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+public class HkpIndexParserTest extends TestCase {
+
+    private static final String FINGERPRINT = "0123456789ABCDEF0123456789ABCDEF01234567";
+
+    private static ArrayList<ImportKeysListEntry> parse(String index) throws Exception {
+        HkpIndexParser parser = new HkpIndexParser(
+                new ByteArrayInputStream(index.getBytes("UTF-8")), "UTF-8");
+        ArrayList<ImportKeysListEntry> entries = new ArrayList<ImportKeysListEntry>();
+        ImportKeysListEntry entry;
+        while ((entry = parser.next()) != null) {
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    public void testMultipleKeysAndUserIds() throws Exception {
+        ArrayList<ImportKeysListEntry> entries = parse("info:1:2\n"
+                + "pub:" + FINGERPRINT + ":1:2048:1395000000::\n"
+                + "uid:Max Mustermann <max@example.com>:1395000000::\n"
+                + "uid:Max <max@example.org>:1395000000::\n"
+                + "pub:89ABCDEF01234567:17:1024:1200000000::r\n"
+                + "uid:Erika Mustermann <erika@example.com>:1200000000::\n");
+
+        assertEquals(2, entries.size());
+
+        ImportKeysListEntry first = entries.get(0);
+        assertEquals(FINGERPRINT.toLowerCase(Locale.US), first.getFingerPrintHex());
+        assertEquals("0x" + FINGERPRINT.substring(24), first.getKeyIdHex());
+        assertEquals("RSA", first.getAlgorithm());
+        assertEquals(2048, first.getBitStrength());
+        assertEquals(1395000000000L, first.getDate().getTime());
+        assertFalse(first.isRevoked());
+        assertEquals(Arrays.asList("Max Mustermann <max@example.com>", "Max <max@example.org>"),
+                first.getUserIds());
+
+        ImportKeysListEntry second = entries.get(1);
+        assertNull(second.getFingerPrintHex());
+        assertEquals("0x89ABCDEF01234567", second.getKeyIdHex());
+        assertEquals("DSA", second.getAlgorithm());
+        assertTrue(second.isRevoked());
+        assertEquals(Arrays.asList("Erika Mustermann <erika@example.com>"), second.getUserIds());
+    }
+
+    public void testEscapedUserId() throws Exception {
+        ArrayList<ImportKeysListEntry> entries = parse(
+                "pub:89ABCDEF01234567:1:2048:1395000000::\n"
+                        + "uid:Max Mustermann (Universit%C3%A4t%3A Berlin) <max@example.com>"
+                        + ":1395000000::\n");
+
+        assertEquals(1, entries.size());
+        assertEquals(Arrays.asList("Max Mustermann (Universität: Berlin) <max@example.com>"),
+                entries.get(0).getUserIds());
+    }
+
+    public void testUnescapedColonInUserId() throws Exception {
+        ArrayList<ImportKeysListEntry> entries = parse(
+                "pub:89ABCDEF01234567:1:2048:1395000000::\n"
+                        + "uid:Max Mustermann (work: Berlin) <max@example.com>:1395000000::\n");
+
+        assertEquals(1, entries.size());
+        assertEquals(Arrays.asList("Max Mustermann (work: Berlin) <max@example.com>"),
+                entries.get(0).getUserIds());
+    }
+
+    public void testInvalidEscapingIsKept() throws Exception {
+        ArrayList<ImportKeysListEntry> entries = parse(
+                "pub:89ABCDEF01234567:1:2048:1395000000::\n"
+                        + "uid:100% Max <max@example.com>:1395000000::\n");
+
+        assertEquals(Arrays.asList("100% Max <max@example.com>"), entries.get(0).getUserIds());
+    }
+
+    public void testUpperCaseTypes() throws Exception {
+        ArrayList<ImportKeysListEntry> entries = parse(
+                "PUB:89ABCDEF01234567:1:2048:1395000000::\n"
+                        + "UID:Max Mustermann <max@example.com>:1395000000::\n");
+
+        assertEquals(1, entries.size());
+        assertEquals("0x89ABCDEF01234567", entries.get(0).getKeyIdHex());
+        assertEquals(Arrays.asList("Max Mustermann <max@example.com>"),
+                entries.get(0).getUserIds());
+    }
+
+    public void testMalformedLinesAreSkipped() throws Exception {
+        ArrayList<ImportKeysListEntry> entries = parse(
+                // key id is no hex, too few fields, no number as key size
+                "pub:not a key id:1:2048:1395000000::\n"
+                        + "uid:Eve <eve@example.com>:1395000000::\n"
+                        + "pub:0123456789ABCDEF:1:2048\n"
+                        + "uid:Eve <eve@example.com>:1395000000::\n"
+                        + "pub:0123456789ABCDEF:1:large:1395000000::\n"
+                        + "uid:Eve <eve@example.com>:1395000000::\n"
+                        // key without uids
+                        + "pub:0123456789ABCDEF:1:2048:1395000000::\n"
+                        + "pub:89ABCDEF01234567:1:2048:1395000000::\n"
+                        // uid with too few fields, garbage
+                        + "uid:Eve <eve@example.com>\n"
+                        + "garbage\n"
+                        + "\n"
+                        + "uid:Max Mustermann <max@example.com>:1395000000::\n");
+
+        assertEquals(1, entries.size());
+        assertEquals("0x89ABCDEF01234567", entries.get(0).getKeyIdHex());
+        assertEquals(Arrays.asList("Max Mustermann <max@example.com>"),
+                entries.get(0).getUserIds());
+    }
+
+    public void testEmptyIndex() throws Exception {
+        assertTrue(parse("").isEmpty());
+        assertTrue(parse("info:1:0\n").isEmpty());
+    }
+}
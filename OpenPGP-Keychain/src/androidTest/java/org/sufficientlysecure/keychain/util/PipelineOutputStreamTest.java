@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+public class PipelineOutputStreamTest extends TestCase {
+
+    private static final int BUFFER_SIZE = 16;
+    private static final int BUFFER_COUNT = 2;
+
+    /**
+     * Sink that fails with the given exception once more than limit bytes were written
+     */
+    private static class FailingOutputStream extends OutputStream {
+        private final int mLimit;
+        private final RuntimeException mRuntimeException;
+        private int mWritten = 0;
+
+        FailingOutputStream(int limit, RuntimeException runtimeException) {
+            mLimit = limit;
+            mRuntimeException = runtimeException;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (++mWritten > mLimit) {
+                if (mRuntimeException != null) {
+                    throw mRuntimeException;
+                }
+                throw new IOException("sink full");
+            }
+        }
+    }
+
+    private static byte[] createData(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    public void testRoundTrip() throws Exception {
+        byte[] data = createData(1000);
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        PipelineOutputStream out =
+                new PipelineOutputStream(sink, "test", BUFFER_SIZE, BUFFER_COUNT);
+        out.write(data, 0, 500);
+        for (int i = 500; i < 510; ++i) {
+            out.write(data[i]);
+        }
+        out.write(data, 510, data.length - 510);
+        out.close();
+
+        assertTrue(Arrays.equals(data, sink.toByteArray()));
+    }
+
+    public void testRuntimeExceptionInSinkFailsWrite() throws Exception {
+        RuntimeException failure = new IllegalStateException("broken sink");
+        PipelineOutputStream out = new PipelineOutputStream(
+                new FailingOutputStream(40, failure), "test", BUFFER_SIZE, BUFFER_COUNT);
+        byte[] data = createData(BUFFER_SIZE);
+        try {
+            // would block forever on a free buffer if the failure was not reported
+            for (int i = 0; i < 1000; ++i) {
+                out.write(data);
+            }
+            fail("write must fail after the sink failed");
+        } catch (IOException e) {
+            assertSame(failure, e.getCause());
+        }
+
+        try {
+            out.flush();
+            fail("flush must fail after the sink failed");
+        } catch (IOException e) {
+            assertSame(failure, e.getCause());
+        }
+
+        try {
+            out.close();
+            fail("close must fail after the sink failed");
+        } catch (IOException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    public void testIOExceptionInSinkFailsClose() throws Exception {
+        PipelineOutputStream out = new PipelineOutputStream(
+                new FailingOutputStream(BUFFER_SIZE + 1, null), "test", BUFFER_SIZE, BUFFER_COUNT);
+        // fits into the buffers, so only close() sees the failure
+        out.write(createData(BUFFER_SIZE + 8));
+        try {
+            out.close();
+            fail("close must fail after the sink failed");
+        } catch (IOException e) {
+            assertEquals("sink full", e.getMessage());
+        }
+    }
+}
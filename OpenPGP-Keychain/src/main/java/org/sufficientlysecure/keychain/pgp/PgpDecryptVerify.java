@@ -18,6 +18,7 @@
 package org.sufficientlysecure.keychain.pgp;
 
 import android.content.Context;
+import android.support.v4.util.LongSparseArray;
 import org.openintents.openpgp.OpenPgpSignatureResult;
 import org.spongycastle.bcpg.ArmoredInputStream;
 import org.spongycastle.bcpg.SignatureSubpacketTags;
@@ -31,20 +32,30 @@ import org.spongycastle.openpgp.operator.jcajce.*;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import org.sufficientlysecure.keychain.provider.KeyInfo;
+import org.sufficientlysecure.keychain.provider.KeyRingCache;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.PassphraseCacheService;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.ProgressDialogUpdater;
+import org.sufficientlysecure.keychain.util.SpoolOutputStream;
 
 import java.io.*;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Iterator;
 
 /**
  * This class uses a Builder pattern!
  */
 public class PgpDecryptVerify {
+    /**
+     * Canonicalized cleartext larger than this is spooled to a temporary file
+     */
+    private static final int CLEARTEXT_SPOOL_THRESHOLD = 1 << 20;
+    private static final byte[] CRLF = new byte[]{'\r', '\n'};
+
     private Context mContext;
     private InputData mData;
     private OutputStream mOutStream;
@@ -53,6 +64,7 @@ public class PgpDecryptVerify {
     private boolean mAssumeSymmetric;
     private String mPassphrase;
     private long mEnforcedKeyId;
+    private boolean mCachePrivateKey;
 
     private PgpDecryptVerify(Builder builder) {
         // private Constructor can only be called from Builder
@@ -64,6 +76,7 @@ public class PgpDecryptVerify {
         this.mAssumeSymmetric = builder.mAssumeSymmetric;
         this.mPassphrase = builder.mPassphrase;
         this.mEnforcedKeyId = builder.mEnforcedKeyId;
+        this.mCachePrivateKey = builder.mCachePrivateKey;
     }
 
     public static class Builder {
@@ -77,6 +90,7 @@ public class PgpDecryptVerify {
         private boolean mAssumeSymmetric = false;
         private String mPassphrase = "";
         private long mEnforcedKeyId = 0;
+        private boolean mCachePrivateKey = false;
 
         public Builder(Context context, InputData data, OutputStream outStream) {
             this.mContext = context;
@@ -111,6 +125,14 @@ public class PgpDecryptVerify {
             return this;
         }
 
+        /**
+         * Keep the unlocked decryption key in the PrivateKeyCache for following operations
+         */
+        public Builder cachePrivateKey(boolean cachePrivateKey) {
+            this.mCachePrivateKey = cachePrivateKey;
+            return this;
+        }
+
         public PgpDecryptVerify build() {
             return new PgpDecryptVerify(this);
         }
@@ -221,8 +243,7 @@ public class PgpDecryptVerify {
 
         currentProgress += 5;
 
-        // TODO: currently we always only look at the first known key or symmetric encryption,
-        // there might be more...
+        // TODO: for symmetric encryption we only look at the first packet, there might be more...
         if (mAssumeSymmetric) {
             PGPPBEEncryptedData pbe = null;
             Iterator<?> it = enc.getEncryptedDataObjects();
@@ -255,84 +276,118 @@ public class PgpDecryptVerify {
         } else {
             updateProgress(R.string.progress_finding_key, currentProgress, 100);
 
-            PGPPublicKeyEncryptedData pbe = null;
-            PGPSecretKey secretKey = null;
+            // collect all recipients and resolve their secret keys with a single query
+            ArrayList<PGPPublicKeyEncryptedData> recipients =
+                    new ArrayList<PGPPublicKeyEncryptedData>();
             Iterator<?> it = enc.getEncryptedDataObjects();
-            // find secret key
             while (it.hasNext()) {
                 Object obj = it.next();
                 if (obj instanceof PGPPublicKeyEncryptedData) {
-                    PGPPublicKeyEncryptedData encData = (PGPPublicKeyEncryptedData) obj;
-                    secretKey = ProviderHelper.getPGPSecretKeyByKeyId(mContext, encData.getKeyID());
-                    if (secretKey != null) {
-                        // secret key exists in database
-
-                        // allow only a specific key for decryption?
-                        if (mEnforcedKeyId != 0) {
-                            // TODO: improve this code! get master key directly!
-                            PGPSecretKeyRing secretKeyRing =
-                                    ProviderHelper.getPGPSecretKeyRingByKeyId(mContext, encData.getKeyID());
-                            long masterKeyId = PgpKeyHelper.getMasterKey(secretKeyRing).getKeyID();
-                            Log.d(Constants.TAG, "encData.getKeyID():" + encData.getKeyID());
-                            Log.d(Constants.TAG, "enforcedKeyId: " + mEnforcedKeyId);
-                            Log.d(Constants.TAG, "masterKeyId: " + masterKeyId);
-
-                            if (mEnforcedKeyId != masterKeyId) {
-                                throw new PgpGeneralException(
-                                        mContext.getString(R.string.error_no_secret_key_found));
-                            }
-                        }
-
-                        pbe = encData;
+                    recipients.add((PGPPublicKeyEncryptedData) obj);
+                }
+            }
+            long[] recipientKeyIds = new long[recipients.size()];
+            for (int i = 0; i < recipientKeyIds.length; ++i) {
+                recipientKeyIds[i] = recipients.get(i).getKeyID();
+            }
 
-                        // if no passphrase was explicitly set try to get it from the cache service
-                        if (mPassphrase == null) {
-                            // returns "" if key has no passphrase
-                            mPassphrase =
-                                    PassphraseCacheService.getCachedPassphrase(mContext, encData.getKeyID());
+            long resolutionStart = System.currentTimeMillis();
+            LongSparseArray<KeyInfo> keyInfos =
+                    ProviderHelper.getSecretKeyInfos(mContext, recipientKeyIds);
+            returnData.setKeyResolutionTime(System.currentTimeMillis() - resolutionStart);
+            Log.d(Constants.TAG, "Resolved " + keyInfos.size() + " of " + recipientKeyIds.length
+                    + " recipients in " + returnData.getKeyResolutionTime() + "ms");
+
+            // candidates with a known passphrase are tried first
+            ArrayList<PGPPublicKeyEncryptedData> candidates =
+                    new ArrayList<PGPPublicKeyEncryptedData>();
+            ArrayList<String> candidatePassphrases = new ArrayList<String>();
+            boolean passphraseMissing = false;
+            for (PGPPublicKeyEncryptedData encData : recipients) {
+                KeyInfo keyInfo = keyInfos.get(encData.getKeyID());
+                if (keyInfo == null) {
+                    continue;
+                }
 
-                            // if passphrase was not cached, return here
-                            // indicating that a passphrase is missing!
-                            if (mPassphrase == null) {
-                                returnData.setKeyPassphraseNeeded(true);
-                                return returnData;
-                            }
-                        }
+                // allow only a specific key for decryption?
+                if (mEnforcedKeyId != 0 && mEnforcedKeyId != keyInfo.getMasterKeyId()) {
+                    Log.d(Constants.TAG, "Skipping " + encData.getKeyID() + ", enforcedKeyId: "
+                            + mEnforcedKeyId + ", masterKeyId: " + keyInfo.getMasterKeyId());
+                    continue;
+                }
 
-                        break;
+                // if no passphrase was explicitly set try to get it from the cache service
+                String passphrase = mPassphrase;
+                if (passphrase == null) {
+                    // returns "" if key has no passphrase
+                    passphrase = PassphraseCacheService.getCachedPassphrase(mContext,
+                            encData.getKeyID());
+                    if (passphrase == null) {
+                        passphraseMissing = true;
+                        continue;
                     }
-
-
+                    candidates.add(0, encData);
+                    candidatePassphrases.add(0, passphrase);
+                } else {
+                    candidates.add(encData);
+                    candidatePassphrases.add(passphrase);
                 }
             }
 
-            if (secretKey == null) {
+            if (candidates.isEmpty()) {
+                if (passphraseMissing) {
+                    // if passphrase was not cached, return here
+                    // indicating that a passphrase is missing!
+                    returnData.setKeyPassphraseNeeded(true);
+                    return returnData;
+                }
                 throw new PgpGeneralException(mContext.getString(R.string.error_no_secret_key_found));
             }
 
             currentProgress += 5;
             updateProgress(R.string.progress_extracting_key, currentProgress, 100);
-            PGPPrivateKey privateKey;
-            try {
-                PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder()
-                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(
-                                mPassphrase.toCharArray());
-                privateKey = secretKey.extractPrivateKey(keyDecryptor);
-            } catch (PGPException e) {
-                throw new PGPException(mContext.getString(R.string.error_wrong_passphrase));
+
+            // try every candidate until one succeeds
+            PGPPublicKeyEncryptedData pbe = null;
+            clear = null;
+            Exception lastException = null;
+            for (int i = 0; i < candidates.size() && clear == null; ++i) {
+                PGPPublicKeyEncryptedData encData = candidates.get(i);
+                try {
+                    PGPPrivateKey privateKey = extractPrivateKey(encData.getKeyID(),
+                            candidatePassphrases.get(i));
+
+                    PublicKeyDataDecryptorFactory decryptorFactory =
+                            new JcePublicKeyDataDecryptorFactoryBuilder()
+                                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                                    .build(privateKey);
+
+                    clear = encData.getDataStream(decryptorFactory);
+                    pbe = encData;
+                    returnData.setDecryptionKeyId(encData.getKeyID());
+                } catch (PGPException e) {
+                    Log.d(Constants.TAG, "Decryption with " + encData.getKeyID() + " failed", e);
+                    lastException = e;
+                } catch (PgpGeneralException e) {
+                    Log.d(Constants.TAG, "Decryption with " + encData.getKeyID() + " failed", e);
+                    lastException = e;
+                }
             }
-            if (privateKey == null) {
-                throw new PgpGeneralException(
-                        mContext.getString(R.string.error_could_not_extract_private_key));
+
+            if (clear == null) {
+                if (passphraseMissing) {
+                    returnData.setKeyPassphraseNeeded(true);
+                    return returnData;
+                }
+                if (lastException instanceof PgpGeneralException) {
+                    throw (PgpGeneralException) lastException;
+                }
+                throw (PGPException) lastException;
             }
+
             currentProgress += 5;
             updateProgress(R.string.progress_preparing_streams, currentProgress, 100);
 
-            PublicKeyDataDecryptorFactory decryptorFactory = new JcePublicKeyDataDecryptorFactoryBuilder()
-                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(privateKey);
-
-            clear = pbe.getDataStream(decryptorFactory);
-
             encryptedData = pbe;
             currentProgress += 5;
         }
@@ -485,18 +540,64 @@ public class PgpDecryptVerify {
             // TODO: inform user?
         }
 
+        if (Constants.DEBUG) {
+            Log.d(Constants.TAG, KeyRingCache.getKeyRingCache(mContext).toString());
+        }
+
         updateProgress(R.string.progress_done, 100, 100);
 
         returnData.setSignatureResult(signatureResult);
         return returnData;
     }
 
+    /**
+     * Extracts the private key with this keyId using the given passphrase
+     *
+     * @param keyId
+     * @param passphrase
+     * @return
+     * @throws PGPException if the passphrase is wrong
+     * @throws PgpGeneralException if the private key could not be extracted
+     */
+    private PGPPrivateKey extractPrivateKey(long keyId, String passphrase)
+            throws PGPException, PgpGeneralException {
+        PGPSecretKey secretKey = ProviderHelper.getPGPSecretKeyByKeyId(mContext, keyId);
+        if (secretKey == null) {
+            throw new PgpGeneralException(mContext.getString(R.string.error_no_secret_key_found));
+        }
+
+        PGPPrivateKey privateKey;
+        try {
+            if (mCachePrivateKey) {
+                privateKey = PrivateKeyCache.getPrivateKeyCache(mContext)
+                        .extractPrivateKey(secretKey, passphrase);
+            } else {
+                PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder()
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(
+                                passphrase.toCharArray());
+                privateKey = secretKey.extractPrivateKey(keyDecryptor);
+            }
+        } catch (PGPException e) {
+            throw new PGPException(mContext.getString(R.string.error_wrong_passphrase));
+        }
+        if (privateKey == null) {
+            throw new PgpGeneralException(
+                    mContext.getString(R.string.error_could_not_extract_private_key));
+        }
+
+        return privateKey;
+    }
+
     /**
      * This method verifies cleartext signatures
      * as defined in http://tools.ietf.org/html/rfc4880#section-7
      * <p/>
      * The method is heavily based on
      * pg/src/main/java/org/spongycastle/openpgp/examples/ClearSignedFileProcessor.java
+     * <p/>
+     * The cleartext is read only once: it is streamed to mOutStream while its canonicalized form is
+     * spooled (in memory or, for large texts, to a temporary file). The spooled data is fed into
+     * the signature after the signature block at the end has been parsed.
      *
      * @return
      * @throws IOException
@@ -511,30 +612,39 @@ public class PgpDecryptVerify {
         // cleartext signatures are never encrypted ;)
         signatureResult.setSignatureOnly(true);
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-
         updateProgress(R.string.progress_done, 0, 100);
 
-        ByteArrayOutputStream lineOut = new ByteArrayOutputStream();
-        int lookAhead = readInputLine(lineOut, aIn);
-        byte[] lineSep = getLineSeparator();
+        OutputStream out = new BufferedOutputStream(mOutStream, 1 << 16);
+        SpoolOutputStream canonicalOut = new SpoolOutputStream(mContext.getCacheDir(),
+                CLEARTEXT_SPOOL_THRESHOLD);
+        try {
+            LineBuffer lineOut = new LineBuffer();
+            int lookAhead = readInputLine(lineOut, aIn);
+            byte[] lineSep = getLineSeparator();
 
-        byte[] line = lineOut.toByteArray();
-        out.write(line, 0, getLengthWithoutSeparator(line));
-        out.write(lineSep);
+            writeClearTextLine(out, canonicalOut, lineOut, lineSep, false);
 
-        while (lookAhead != -1 && aIn.isClearText()) {
-            lookAhead = readInputLine(lineOut, lookAhead, aIn);
-            line = lineOut.toByteArray();
-            out.write(line, 0, getLengthWithoutSeparator(line));
-            out.write(lineSep);
-        }
+            while (lookAhead != -1 && aIn.isClearText()) {
+                lookAhead = readInputLine(lineOut, lookAhead, aIn);
+                writeClearTextLine(out, canonicalOut, lineOut, lineSep, true);
+            }
 
-        out.close();
+            out.flush();
 
-        byte[] clearText = out.toByteArray();
-        mOutStream.write(clearText);
+            return verifyCleartextSignature(aIn, canonicalOut, signatureResult, returnData);
+        } finally {
+            canonicalOut.delete();
+        }
+    }
 
+    /**
+     * Second phase of cleartext signature verification: parse the signature block and feed the
+     * spooled canonicalized cleartext into the signature
+     */
+    private PgpDecryptVerifyResult verifyCleartextSignature(ArmoredInputStream aIn,
+                SpoolOutputStream canonicalOut, OpenPgpSignatureResult signatureResult,
+                PgpDecryptVerifyResult returnData)
+            throws IOException, PgpGeneralException, PGPException, SignatureException {
         updateProgress(R.string.progress_processing_signature, 60, 100);
         PGPObjectFactory pgpFact = new PGPObjectFactory(aIn);
 
@@ -583,21 +693,15 @@ public class PgpDecryptVerify {
 
         signature.init(contentVerifierBuilderProvider, signatureKey);
 
-        InputStream sigIn = new BufferedInputStream(new ByteArrayInputStream(clearText));
-
-        lookAhead = readInputLine(lineOut, sigIn);
-
-        processLine(signature, lineOut.toByteArray());
-
-        if (lookAhead != -1) {
-            do {
-                lookAhead = readInputLine(lineOut, lookAhead, sigIn);
-
-                signature.update((byte) '\r');
-                signature.update((byte) '\n');
-
-                processLine(signature, lineOut.toByteArray());
-            } while (lookAhead != -1);
+        InputStream sigIn = canonicalOut.getInputStream();
+        try {
+            byte[] buffer = new byte[1 << 16];
+            int n;
+            while ((n = sigIn.read(buffer)) > 0) {
+                signature.update(buffer, 0, n);
+            }
+        } finally {
+            sigIn.close();
         }
 
         //Now check binding signatures
@@ -722,17 +826,41 @@ public class PgpDecryptVerify {
     }
 
     /**
-     * Mostly taken from ClearSignedFileProcessor in Bouncy Castle
+     * Writes a cleartext line to the output and its canonicalized form (trailing whitespace
+     * removed, lines separated by CRLF) to the spool used for signature verification
      *
-     * @param sig
+     * @param out
+     * @param canonicalOut
      * @param line
-     * @throws SignatureException
+     * @param lineSep
+     * @param prependCrLf true for every line but the first
+     * @throws IOException
+     */
+    private static void writeClearTextLine(OutputStream out, OutputStream canonicalOut,
+                                           LineBuffer line, byte[] lineSep, boolean prependCrLf)
+            throws IOException {
+        byte[] buf = line.getBuffer();
+        int length = line.size();
+
+        out.write(buf, 0, getLengthWithoutSeparator(buf, length));
+        out.write(lineSep);
+
+        if (prependCrLf) {
+            canonicalOut.write(CRLF);
+        }
+        int canonicalLength = getLengthWithoutWhiteSpace(buf, length);
+        if (canonicalLength > 0) {
+            canonicalOut.write(buf, 0, canonicalLength);
+        }
+    }
+
+    /**
+     * ByteArrayOutputStream giving access to its internal buffer, so lines do not have to be
+     * copied with toByteArray()
      */
-    private static void processLine(PGPSignature sig, byte[] line)
-            throws SignatureException {
-        int length = getLengthWithoutWhiteSpace(line);
-        if (length > 0) {
-            sig.update(line, 0, length);
+    private static class LineBuffer extends ByteArrayOutputStream {
+        byte[] getBuffer() {
+            return buf;
         }
     }
 
@@ -787,8 +915,8 @@ public class PgpDecryptVerify {
         return lookAhead;
     }
 
-    private static int getLengthWithoutSeparator(byte[] line) {
-        int end = line.length - 1;
+    private static int getLengthWithoutSeparator(byte[] line, int length) {
+        int end = length - 1;
 
         while (end >= 0 && isLineEnding(line[end])) {
             end--;
@@ -801,8 +929,8 @@ public class PgpDecryptVerify {
         return b == '\r' || b == '\n';
     }
 
-    private static int getLengthWithoutWhiteSpace(byte[] line) {
-        int end = line.length - 1;
+    private static int getLengthWithoutWhiteSpace(byte[] line, int length) {
+        int end = length - 1;
 
         while (end >= 0 && isWhiteSpace(line[end])) {
             end--;
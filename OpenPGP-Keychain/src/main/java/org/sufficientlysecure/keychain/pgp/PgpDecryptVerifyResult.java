@@ -25,6 +25,8 @@ public class PgpDecryptVerifyResult implements Parcelable {
     boolean mSymmetricPassphraseNeeded;
     boolean mKeyPassphraseNeeded;
     OpenPgpSignatureResult mSignatureResult;
+    long mDecryptionKeyId;
+    long mKeyResolutionTime;
 
     public boolean isSymmetricPassphraseNeeded() {
         return mSymmetricPassphraseNeeded;
@@ -50,6 +52,28 @@ public class PgpDecryptVerifyResult implements Parcelable {
         this.mSignatureResult = signatureResult;
     }
 
+    /**
+     * @return id of the secret key that successfully decrypted the data, 0 if none was used
+     */
+    public long getDecryptionKeyId() {
+        return mDecryptionKeyId;
+    }
+
+    public void setDecryptionKeyId(long decryptionKeyId) {
+        this.mDecryptionKeyId = decryptionKeyId;
+    }
+
+    /**
+     * @return time in milliseconds spent to resolve the secret keys of all recipients
+     */
+    public long getKeyResolutionTime() {
+        return mKeyResolutionTime;
+    }
+
+    public void setKeyResolutionTime(long keyResolutionTime) {
+        this.mKeyResolutionTime = keyResolutionTime;
+    }
+
     public PgpDecryptVerifyResult() {
 
     }
@@ -58,6 +82,8 @@ public class PgpDecryptVerifyResult implements Parcelable {
         this.mSymmetricPassphraseNeeded = b.mSymmetricPassphraseNeeded;
         this.mKeyPassphraseNeeded = b.mKeyPassphraseNeeded;
         this.mSignatureResult = b.mSignatureResult;
+        this.mDecryptionKeyId = b.mDecryptionKeyId;
+        this.mKeyResolutionTime = b.mKeyResolutionTime;
     }
 
 
@@ -69,6 +95,8 @@ public class PgpDecryptVerifyResult implements Parcelable {
         dest.writeByte((byte) (mSymmetricPassphraseNeeded ? 1 : 0));
         dest.writeByte((byte) (mKeyPassphraseNeeded ? 1 : 0));
         dest.writeParcelable(mSignatureResult, 0);
+        dest.writeLong(mDecryptionKeyId);
+        dest.writeLong(mKeyResolutionTime);
     }
 
     public static final Creator<PgpDecryptVerifyResult> CREATOR = new Creator<PgpDecryptVerifyResult>() {
@@ -77,6 +105,8 @@ public class PgpDecryptVerifyResult implements Parcelable {
             vr.mSymmetricPassphraseNeeded = source.readByte() == 1;
             vr.mKeyPassphraseNeeded = source.readByte() == 1;
             vr.mSignatureResult = source.readParcelable(OpenPgpSignatureResult.class.getClassLoader());
+            vr.mDecryptionKeyId = source.readLong();
+            vr.mKeyResolutionTime = source.readLong();
             return vr;
         }
 
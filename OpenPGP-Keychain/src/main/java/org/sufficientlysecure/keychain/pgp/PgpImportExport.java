@@ -20,6 +20,7 @@ package org.sufficientlysecure.keychain.pgp;
 import android.content.Context;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.SystemClock;
 import org.spongycastle.bcpg.ArmoredOutputStream;
 import org.spongycastle.openpgp.*;
 import org.spongycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
@@ -27,6 +28,7 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.Id;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import org.sufficientlysecure.keychain.provider.KeyRingBatchWriter;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.KeychainIntentService;
 import org.sufficientlysecure.keychain.ui.adapter.ImportKeysListEntry;
@@ -35,10 +37,15 @@ import org.sufficientlysecure.keychain.util.KeyServer.AddKeyException;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.Provider;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 public class PgpImportExport {
 
@@ -105,60 +112,183 @@ public class PgpImportExport {
         }
     }
 
+    /**
+     * Source of encoded key rings to import
+     */
+    private interface KeyRingSource {
+        /**
+         * @return task parsing the next key ring, null if there are no more
+         */
+        ParseTask next() throws IOException;
+    }
+
     /**
      * Imports keys from given data. If keyIds is given only those are imported
      */
     public Bundle importKeyRings(List<ImportKeysListEntry> entries)
             throws PgpGeneralException, PGPException, IOException {
+        final Iterator<ImportKeysListEntry> it = entries.iterator();
+
+        return importKeyRings(new KeyRingSource() {
+            @Override
+            public ParseTask next() {
+                return it.hasNext() ? new ParseTask(it.next().getBytes(), null) : null;
+            }
+        }, entries.size());
+    }
+
+    /**
+     * Imports the key rings at the given positions of a key file, as split by
+     * PgpKeyRingSplitter. The file is read again as a stream, so memory does not grow with its
+     * size. A key ring is only imported if its master key id is the one listed for its position,
+     * otherwise it is counted as bad, e.g. if the file has changed since it was listed. Positions
+     * that are not in the file anymore are counted as bad as well.
+     *
+     * @param masterKeyIds master key id expected at each of the positions
+     */
+    public Bundle importKeyRings(InputStream in, final int[] positions, final long[] masterKeyIds)
+            throws PgpGeneralException, PGPException, IOException {
+        if (positions.length != masterKeyIds.length) {
+            throw new IllegalArgumentException("A master key id is needed for every position!");
+        }
+        final PgpKeyRingSplitter splitter = new PgpKeyRingSplitter(in);
+        final Integer[] order = new Integer[positions.length];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return positions[lhs] < positions[rhs] ? -1
+                        : (positions[lhs] == positions[rhs] ? 0 : 1);
+            }
+        });
+
+        return importKeyRings(new KeyRingSource() {
+            private int mIndex = 0;
+
+            @Override
+            public ParseTask next() throws IOException {
+                if (mIndex >= order.length) {
+                    return null;
+                }
+                int position = positions[order[mIndex]];
+                long masterKeyId = masterKeyIds[order[mIndex++]];
+                byte[] keyRing = null;
+                while (splitter.getPosition() < position
+                        && (keyRing = splitter.nextKeyRing()) != null) {
+                    if (splitter.getPosition() == position) {
+                        return new ParseTask(keyRing, masterKeyId);
+                    }
+                }
+                // end of file, or a position given twice
+                Log.e(Constants.TAG, "Key ring " + position + " not found in file!");
+                return new ParseTask(null, masterKeyId);
+            }
+        }, order.length);
+    }
+
+    /**
+     * Key rings are parsed and validated in parallel and written in batches of
+     * KeyRingBatchWriter.DEFAULT_BATCH_SIZE, each in a single database transaction.
+     */
+    private Bundle importKeyRings(KeyRingSource source, int count) {
         Bundle returnData = new Bundle();
 
         updateProgress(R.string.progress_importing, 0, 100);
 
-        int newKeys = 0;
-        int oldKeys = 0;
+        // indexed by KeyRingBatchWriter.RESULT_*
+        int[] counts = new int[4];
         int badKeys = 0;
 
-        int position = 0;
-        try {
-            for (ImportKeysListEntry entry : entries) {
-                Object obj = PgpConversionHelper.BytesToPGPKeyRing(entry.getBytes());
-
-                if (obj instanceof PGPKeyRing) {
-                    PGPKeyRing keyring = (PGPKeyRing) obj;
+        KeyRingBatchWriter batchWriter = new KeyRingBatchWriter(mContext);
+        // position in batch of the key ring that decides if an entry is new, updated or unchanged
+        ArrayList<Integer> batchEntries = new ArrayList<Integer>();
 
-                    int status = storeKeyRingInCache(keyring);
+        // parse and validate on all cores, but write in the order of the source
+        OrderedTaskExecutor<ParsedKeyRing> executor =
+                new OrderedTaskExecutor<ParsedKeyRing>("PgpImportExport");
 
-                    if (status == Id.return_value.error) {
-                        throw new PgpGeneralException(
-                                mContext.getString(R.string.error_saving_keys));
+        long startTime = SystemClock.elapsedRealtime();
+        int position = 0;
+        try {
+            boolean sourceDone = false;
+            while (true) {
+                while (!sourceDone && !executor.isFull()) {
+                    ParseTask task = source.next();
+                    if (task != null) {
+                        executor.submit(task);
+                    } else {
+                        sourceDone = true;
                     }
-
-                    // update the counts to display to the user at the end
-                    if (status == Id.return_value.updated) {
-                        ++oldKeys;
-                    } else if (status == Id.return_value.ok) {
-                        ++newKeys;
-                    } else if (status == Id.return_value.bad) {
-                        ++badKeys;
+                }
+                if (!executor.hasPending()) {
+                    break;
+                }
+                ParsedKeyRing parsed = executor.take();
+
+                if (parsed.mBad) {
+                    ++badKeys;
+                } else if (parsed.mKeyRing instanceof PGPSecretKeyRing) {
+                    batchEntries.add(batchWriter.size());
+                    batchWriter.add((PGPSecretKeyRing) parsed.mKeyRing);
+                    if (parsed.mPublicKeyRing != null) {
+                        batchWriter.add(parsed.mPublicKeyRing);
                     }
+                } else if (parsed.mKeyRing instanceof PGPPublicKeyRing) {
+                    batchEntries.add(batchWriter.size());
+                    batchWriter.add((PGPPublicKeyRing) parsed.mKeyRing);
                 } else {
                     Log.e(Constants.TAG, "Object not recognized as PGPKeyRing!");
                 }
 
                 position++;
-                updateProgress(position / entries.size() * 100, 100);
+
+                if (batchWriter.size() >= KeyRingBatchWriter.DEFAULT_BATCH_SIZE) {
+                    commitBatch(batchWriter, batchEntries, counts);
+                }
+
+                updateProgress(position * 100 / Math.max(count, 1), 100);
             }
+
+            commitBatch(batchWriter, batchEntries, counts);
+
+            Log.d(Constants.TAG, "Imported " + position + " key rings on "
+                    + executor.getThreadCount() + " threads in "
+                    + (SystemClock.elapsedRealtime() - startTime) + " ms");
         } catch (Exception e) {
             Log.e(Constants.TAG, "Exception on parsing key file!", e);
+        } finally {
+            executor.shutdown();
+            batchWriter.close();
         }
 
-        returnData.putInt(KeychainIntentService.RESULT_IMPORT_ADDED, newKeys);
-        returnData.putInt(KeychainIntentService.RESULT_IMPORT_UPDATED, oldKeys);
-        returnData.putInt(KeychainIntentService.RESULT_IMPORT_BAD, badKeys);
+        // update the counts to display to the user at the end
+        returnData.putInt(KeychainIntentService.RESULT_IMPORT_ADDED,
+                counts[KeyRingBatchWriter.RESULT_ADDED]);
+        returnData.putInt(KeychainIntentService.RESULT_IMPORT_UPDATED,
+                counts[KeyRingBatchWriter.RESULT_UPDATED]);
+        returnData.putInt(KeychainIntentService.RESULT_IMPORT_UNCHANGED,
+                counts[KeyRingBatchWriter.RESULT_UNCHANGED]);
+        returnData.putInt(KeychainIntentService.RESULT_IMPORT_BAD,
+                badKeys + counts[KeyRingBatchWriter.RESULT_BAD]);
 
         return returnData;
     }
 
+    /**
+     * Writes the batch and adds the result of each entry to counts, key rings that could not be
+     * written are counted as RESULT_BAD
+     */
+    private static void commitBatch(KeyRingBatchWriter batchWriter,
+                                    ArrayList<Integer> batchEntries, int[] counts) {
+        int[] results = batchWriter.commit();
+        for (int i : batchEntries) {
+            ++counts[results[i]];
+        }
+        batchEntries.clear();
+    }
+
     public Bundle exportKeyRings(ArrayList<Long> publicKeyRingMasterIds, ArrayList<Long> secretKeyRingMasterIds,
                                  OutputStream outStream) throws PgpGeneralException,
             PGPException, IOException {
@@ -228,57 +358,131 @@ public class PgpImportExport {
     }
 
     /**
-     * TODO: implement Id.return_value.updated as status when key already existed
+     * Stores a single key ring, merging it into the stored one like importKeyRings does
      */
-    @SuppressWarnings("unchecked")
     public int storeKeyRingInCache(PGPKeyRing keyring) {
         int status = Integer.MIN_VALUE; // out of bounds value (Id.return_value.*)
+        KeyRingBatchWriter batchWriter = new KeyRingBatchWriter(mContext);
         try {
             if (keyring instanceof PGPSecretKeyRing) {
                 PGPSecretKeyRing secretKeyRing = (PGPSecretKeyRing) keyring;
-                boolean save = true;
-
-                for (PGPSecretKey testSecretKey : new IterableIterator<PGPSecretKey>(
-                        secretKeyRing.getSecretKeys())) {
-                    if (!testSecretKey.isMasterKey()) {
-                        if (testSecretKey.isPrivateKeyEmpty()) {
-                            // this is bad, something is very wrong...
-                            save = false;
-                            status = Id.return_value.bad;
-                        }
-                    }
-                }
 
-                if (save) {
-                    ProviderHelper.saveKeyRing(mContext, secretKeyRing);
-                    // TODO: preserve certifications
-                    // (http://osdir.com/ml/encryption.bouncy-castle.devel/2007-01/msg00054.html ?)
-                    PGPPublicKeyRing newPubRing = null;
-                    for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(
-                            secretKeyRing.getPublicKeys())) {
-                        if (newPubRing == null) {
-                            newPubRing = new PGPPublicKeyRing(key.getEncoded(),
-                                    new JcaKeyFingerprintCalculator());
-                        }
-                        newPubRing = PGPPublicKeyRing.insertPublicKey(newPubRing, key);
-                    }
+                if (isSecretKeyRingValid(secretKeyRing)) {
+                    batchWriter.add(secretKeyRing);
+                    PGPPublicKeyRing newPubRing = createPublicKeyRing(secretKeyRing);
                     if (newPubRing != null) {
-                        ProviderHelper.saveKeyRing(mContext, newPubRing);
+                        batchWriter.add(newPubRing);
                     }
-                    // TODO: remove status returns, use exceptions!
-                    status = Id.return_value.ok;
+                } else {
+                    status = Id.return_value.bad;
                 }
             } else if (keyring instanceof PGPPublicKeyRing) {
-                PGPPublicKeyRing publicKeyRing = (PGPPublicKeyRing) keyring;
-                ProviderHelper.saveKeyRing(mContext, publicKeyRing);
+                batchWriter.add((PGPPublicKeyRing) keyring);
+            }
+
+            if (batchWriter.size() > 0) {
                 // TODO: remove status returns, use exceptions!
-                status = Id.return_value.ok;
+                int result = batchWriter.commit()[0];
+                status = (result == KeyRingBatchWriter.RESULT_ADDED) ? Id.return_value.ok
+                        : Id.return_value.updated;
             }
         } catch (IOException e) {
             status = Id.return_value.error;
+        } finally {
+            batchWriter.close();
         }
 
         return status;
     }
 
+    private static class ParsedKeyRing {
+        PGPKeyRing mKeyRing;
+        // public key ring stored along with a secret key ring
+        PGPPublicKeyRing mPublicKeyRing;
+        boolean mBad;
+    }
+
+    /**
+     * Parses and validates one key ring, independently of all others
+     */
+    private static class ParseTask implements Callable<ParsedKeyRing> {
+        private final byte[] mKeyRingBytes;
+        private final Long mExpectedMasterKeyId;
+
+        /**
+         * @param keyRingBytes        null if the key ring was not found, it is counted as bad
+         * @param expectedMasterKeyId null to accept any key ring
+         */
+        ParseTask(byte[] keyRingBytes, Long expectedMasterKeyId) {
+            mKeyRingBytes = keyRingBytes;
+            mExpectedMasterKeyId = expectedMasterKeyId;
+        }
+
+        @Override
+        public ParsedKeyRing call() throws Exception {
+            ParsedKeyRing parsed = new ParsedKeyRing();
+            if (mKeyRingBytes == null) {
+                parsed.mBad = true;
+                return parsed;
+            }
+            parsed.mKeyRing = PgpConversionHelper.BytesToPGPKeyRing(mKeyRingBytes);
+
+            if (mExpectedMasterKeyId != null && (parsed.mKeyRing == null
+                    || parsed.mKeyRing.getPublicKey().getKeyID() != mExpectedMasterKeyId)) {
+                Log.e(Constants.TAG, "Key ring does not have the listed master key id "
+                        + PgpKeyHelper.convertKeyIdToHex(mExpectedMasterKeyId) + ", skipped!");
+                parsed.mKeyRing = null;
+                parsed.mBad = true;
+                return parsed;
+            }
+
+            if (parsed.mKeyRing instanceof PGPSecretKeyRing) {
+                PGPSecretKeyRing secretKeyRing = (PGPSecretKeyRing) parsed.mKeyRing;
+                if (isSecretKeyRingValid(secretKeyRing)) {
+                    parsed.mPublicKeyRing = createPublicKeyRing(secretKeyRing);
+                } else {
+                    parsed.mBad = true;
+                }
+            }
+            return parsed;
+        }
+    }
+
+    /**
+     * A secret key ring is only stored if all its subkeys contain private keys
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean isSecretKeyRingValid(PGPSecretKeyRing secretKeyRing) {
+        for (PGPSecretKey testSecretKey : new IterableIterator<PGPSecretKey>(
+                secretKeyRing.getSecretKeys())) {
+            if (!testSecretKey.isMasterKey()) {
+                if (testSecretKey.isPrivateKeyEmpty()) {
+                    // this is bad, something is very wrong...
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Builds the public key ring stored along with a secret key ring
+     */
+    @SuppressWarnings("unchecked")
+    private static PGPPublicKeyRing createPublicKeyRing(PGPSecretKeyRing secretKeyRing)
+            throws IOException {
+        // TODO: preserve certifications
+        // (http://osdir.com/ml/encryption.bouncy-castle.devel/2007-01/msg00054.html ?)
+        PGPPublicKeyRing newPubRing = null;
+        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(
+                secretKeyRing.getPublicKeys())) {
+            if (newPubRing == null) {
+                newPubRing = new PGPPublicKeyRing(key.getEncoded(),
+                        new JcaKeyFingerprintCalculator());
+            }
+            newPubRing = PGPPublicKeyRing.insertPublicKey(newPubRing, key);
+        }
+        return newPubRing;
+    }
+
 }
@@ -621,4 +621,38 @@ public class PgpKeyHelper {
         return result;
     }
 
+    /**
+     * Email of a user id as stored in the user_id_emails table, the part in the last pair of
+     * angle brackets of the user id, so a comment after the email is allowed, or the whole user id
+     * if it only consists of an email
+     *
+     * @return the email in lower case, null if the user id has none
+     */
+    public static String getNormalizedEmail(String userId) {
+        if (userId == null) {
+            return null;
+        }
+
+        String trimmed = userId.trim();
+        int start = trimmed.lastIndexOf('<');
+        int end = start < 0 ? -1 : trimmed.indexOf('>', start);
+        if (end > start) {
+            return normalizeEmail(trimmed.substring(start + 1, end));
+        } else if (trimmed.indexOf('@') > 0 && trimmed.indexOf(' ') < 0) {
+            return normalizeEmail(trimmed);
+        }
+        return null;
+    }
+
+    /**
+     * @return email in the form used by the user_id_emails table, null if it is empty
+     */
+    public static String normalizeEmail(String email) {
+        if (email == null) {
+            return null;
+        }
+        email = email.trim().toLowerCase(Locale.US);
+        return email.length() > 0 ? email : null;
+    }
+
 }
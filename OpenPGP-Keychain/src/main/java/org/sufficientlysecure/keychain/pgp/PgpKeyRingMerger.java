@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSignature;
+import org.spongycastle.openpgp.PGPUserAttributeSubpacketVector;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.IterableIterator;
+import org.sufficientlysecure.keychain.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Merges an imported public key ring into a stored one, e.g. when refreshing keys from a
+ * keyserver. Subkeys, user ids, user attributes and signatures that are not yet known are added,
+ * nothing is removed. Signatures are compared by their encoding. New signatures are only added
+ * if they can be verified, with the stored master key or a key found by a SignerKeyLookup.
+ * <p/>
+ * The exception are certifications of user ids and attributes by signers that are not known
+ * locally. Like on the first import of a key ring, they are kept unverified, so a key ring
+ * contains the same certifications whether it was imported once or refreshed later. They are only
+ * added to user ids and attributes that are stored or self-certified, and cannot change the key
+ * itself, as signatures of the key and its subkeys are always verified.
+ * <p/>
+ * New subkeys and user ids are appended, so the positions of the existing ones stay the same.
+ */
+public class PgpKeyRingMerger {
+
+    /**
+     * Finds keys of others, to verify their certifications
+     */
+    public interface SignerKeyLookup {
+        /**
+         * @return null if no key with this id is known
+         */
+        PGPPublicKey getPublicKey(long keyId);
+    }
+
+    /**
+     * Merges without keys of others, so only self signatures can be verified and added
+     */
+    public static PGPPublicKeyRing merge(PGPPublicKeyRing stored, PGPPublicKeyRing incoming)
+            throws IOException {
+        return merge(stored, incoming, null);
+    }
+
+    /**
+     * @param lookup may be null
+     * @return the merged key ring, the same object as stored if incoming contains nothing new,
+     * null if the master keys differ, i.e. only their key ids collide
+     */
+    @SuppressWarnings("unchecked")
+    public static PGPPublicKeyRing merge(PGPPublicKeyRing stored, PGPPublicKeyRing incoming,
+                                         SignerKeyLookup lookup) throws IOException {
+        if (!Arrays.equals(stored.getPublicKey().getFingerprint(),
+                incoming.getPublicKey().getFingerprint())) {
+            Log.e(Constants.TAG, "Master key " + PgpKeyHelper.convertKeyIdToHex(
+                    incoming.getPublicKey().getKeyID()) + " has the key id of another key, "
+                    + "rejecting key ring");
+            return null;
+        }
+
+        Verifier verifier = new Verifier(stored, lookup);
+        PGPPublicKeyRing result = stored;
+        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(incoming.getPublicKeys())) {
+            PGPPublicKey storedKey = result.getPublicKey(key.getKeyID());
+            if (storedKey == null) {
+                PGPPublicKey verifiedKey = verifySubkey(key, verifier);
+                if (verifiedKey != null) {
+                    result = PGPPublicKeyRing.insertPublicKey(result, verifiedKey);
+                }
+                continue;
+            }
+            if (!Arrays.equals(storedKey.getFingerprint(), key.getFingerprint())) {
+                Log.e(Constants.TAG, "Subkey " + PgpKeyHelper.convertKeyIdToHex(key.getKeyID())
+                        + " has the key id of another subkey, skipping it");
+                continue;
+            }
+
+            PGPPublicKey mergedKey = merge(storedKey, key, verifier);
+            if (mergedKey != storedKey) {
+                result = PGPPublicKeyRing.insertPublicKey(result, mergedKey);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the new subkey with only its verified signatures, null if it is not bound to the
+     * master key by a verified signature
+     */
+    @SuppressWarnings("unchecked")
+    private static PGPPublicKey verifySubkey(PGPPublicKey key, Verifier verifier) {
+        if (key.isMasterKey()) {
+            return null;
+        }
+        PGPPublicKey result = key;
+        boolean bound = false;
+        for (PGPSignature sig : new IterableIterator<PGPSignature>(key.getSignatures())) {
+            if (!verifier.verifyKeySignature(sig, key)) {
+                result = PGPPublicKey.removeCertification(result, sig);
+            } else if (sig.getSignatureType() == PGPSignature.SUBKEY_BINDING) {
+                bound = true;
+            }
+        }
+        if (!bound) {
+            Log.e(Constants.TAG, "Subkey " + PgpKeyHelper.convertKeyIdToHex(key.getKeyID())
+                    + " has no valid binding signature, skipping it");
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * @return the merged key, the same object as stored if incoming contains nothing new
+     */
+    @SuppressWarnings("unchecked")
+    private static PGPPublicKey merge(PGPPublicKey stored, PGPPublicKey incoming,
+                                      Verifier verifier) throws IOException {
+        HashSet<ByteBuffer> known = new HashSet<ByteBuffer>();
+        for (PGPSignature sig : new IterableIterator<PGPSignature>(stored.getSignatures())) {
+            known.add(ByteBuffer.wrap(sig.getEncoded()));
+        }
+
+        PGPPublicKey result = stored;
+
+        // signatures bound to user ids and attributes
+        HashSet<ByteBuffer> idSigs = new HashSet<ByteBuffer>();
+        for (String userId : new IterableIterator<String>(incoming.getUserIDs())) {
+            ArrayList<PGPSignature> unverified = new ArrayList<PGPSignature>();
+            for (PGPSignature sig : new IterableIterator<PGPSignature>(
+                    incoming.getSignaturesForID(userId))) {
+                ByteBuffer encoded = ByteBuffer.wrap(sig.getEncoded());
+                idSigs.add(encoded);
+                if (known.contains(encoded)) {
+                    continue;
+                }
+                if (verifier.isUnknownCertification(sig)) {
+                    unverified.add(sig);
+                } else if (verifier.verify(sig, userId, stored)) {
+                    known.add(encoded);
+                    result = PGPPublicKey.addCertification(result, userId, sig);
+                }
+            }
+            if (result.getSignaturesForID(userId) != null) {
+                for (PGPSignature sig : unverified) {
+                    if (known.add(ByteBuffer.wrap(sig.getEncoded()))) {
+                        result = PGPPublicKey.addCertification(result, userId, sig);
+                    }
+                }
+            }
+        }
+        for (PGPUserAttributeSubpacketVector attributes :
+                new IterableIterator<PGPUserAttributeSubpacketVector>(
+                        incoming.getUserAttributes())) {
+            ArrayList<PGPSignature> unverified = new ArrayList<PGPSignature>();
+            for (PGPSignature sig : new IterableIterator<PGPSignature>(
+                    incoming.getSignaturesForUserAttribute(attributes))) {
+                ByteBuffer encoded = ByteBuffer.wrap(sig.getEncoded());
+                idSigs.add(encoded);
+                if (known.contains(encoded)) {
+                    continue;
+                }
+                if (verifier.isUnknownCertification(sig)) {
+                    unverified.add(sig);
+                } else if (verifier.verify(sig, attributes, stored)) {
+                    known.add(encoded);
+                    result = PGPPublicKey.addCertification(result, attributes, sig);
+                }
+            }
+            if (result.getSignaturesForUserAttribute(attributes) != null) {
+                for (PGPSignature sig : unverified) {
+                    if (known.add(ByteBuffer.wrap(sig.getEncoded()))) {
+                        result = PGPPublicKey.addCertification(result, attributes, sig);
+                    }
+                }
+            }
+        }
+
+        // the remaining ones are direct key signatures, revocations and subkey bindings
+        for (PGPSignature sig : new IterableIterator<PGPSignature>(incoming.getSignatures())) {
+            ByteBuffer encoded = ByteBuffer.wrap(sig.getEncoded());
+            if (idSigs.contains(encoded) || known.contains(encoded)
+                    || !verifier.verifyKeySignature(sig, stored)) {
+                continue;
+            }
+            known.add(encoded);
+            result = PGPPublicKey.addCertification(result, sig);
+        }
+
+        return result;
+    }
+
+    /**
+     * Verifies signatures with the keys of the stored key ring or of others
+     */
+    private static class Verifier {
+        private final PGPPublicKeyRing mStored;
+        private final SignerKeyLookup mLookup;
+        private final JcaPGPContentVerifierBuilderProvider mVerifierBuilderProvider =
+                new JcaPGPContentVerifierBuilderProvider()
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+
+        Verifier(PGPPublicKeyRing stored, SignerKeyLookup lookup) {
+            mStored = stored;
+            mLookup = lookup;
+        }
+
+        private PGPPublicKey getSigner(PGPSignature sig) {
+            PGPPublicKey signer = mStored.getPublicKey(sig.getKeyID());
+            if (signer == null && mLookup != null) {
+                signer = mLookup.getPublicKey(sig.getKeyID());
+            }
+            return signer;
+        }
+
+        /**
+         * @return false if the signer is unknown
+         */
+        private boolean init(PGPSignature sig) throws PGPException {
+            PGPPublicKey signer = getSigner(sig);
+            if (signer == null) {
+                Log.d(Constants.TAG, "Signer " + PgpKeyHelper.convertKeyIdToHex(sig.getKeyID())
+                        + " unknown, skipping signature");
+                return false;
+            }
+            sig.init(mVerifierBuilderProvider, signer);
+            return true;
+        }
+
+        /**
+         * @return true if sig is a certification of a user id or attribute by a signer that is
+         * not known, it cannot be verified
+         */
+        boolean isUnknownCertification(PGPSignature sig) {
+            switch (sig.getSignatureType()) {
+                case PGPSignature.DEFAULT_CERTIFICATION:
+                case PGPSignature.NO_CERTIFICATION:
+                case PGPSignature.CASUAL_CERTIFICATION:
+                case PGPSignature.POSITIVE_CERTIFICATION:
+                case PGPSignature.CERTIFICATION_REVOCATION:
+                    if (getSigner(sig) == null) {
+                        return true;
+                    }
+                    return false;
+                default:
+                    return false;
+            }
+        }
+
+        boolean verify(PGPSignature sig, String userId, PGPPublicKey key) {
+            try {
+                return init(sig) && sig.verifyCertification(userId, key);
+            } catch (PGPException e) {
+                Log.e(Constants.TAG, "Verifying user id certification failed", e);
+            } catch (SignatureException e) {
+                Log.e(Constants.TAG, "Verifying user id certification failed", e);
+            }
+            return false;
+        }
+
+        boolean verify(PGPSignature sig, PGPUserAttributeSubpacketVector attributes,
+                       PGPPublicKey key) {
+            try {
+                return init(sig) && sig.verifyCertification(attributes, key);
+            } catch (PGPException e) {
+                Log.e(Constants.TAG, "Verifying user attribute certification failed", e);
+            } catch (SignatureException e) {
+                Log.e(Constants.TAG, "Verifying user attribute certification failed", e);
+            }
+            return false;
+        }
+
+        /**
+         * Direct key signatures and revocations, subkey bindings and revocations
+         */
+        boolean verifyKeySignature(PGPSignature sig, PGPPublicKey key) {
+            try {
+                switch (sig.getSignatureType()) {
+                    case PGPSignature.DIRECT_KEY:
+                    case PGPSignature.KEY_REVOCATION:
+                        return init(sig) && sig.verifyCertification(key);
+                    case PGPSignature.SUBKEY_BINDING:
+                    case PGPSignature.SUBKEY_REVOCATION:
+                        // only the master key binds and revokes subkeys
+                        PGPPublicKey masterKey = mStored.getPublicKey();
+                        return !key.isMasterKey() && sig.getKeyID() == masterKey.getKeyID()
+                                && init(sig) && sig.verifyCertification(masterKey, key);
+                    default:
+                        Log.e(Constants.TAG, "Signature of wrong type for key, skipping it");
+                        return false;
+                }
+            } catch (PGPException e) {
+                Log.e(Constants.TAG, "Verifying key signature failed", e);
+            } catch (SignatureException e) {
+                Log.e(Constants.TAG, "Verifying key signature failed", e);
+            }
+            return false;
+        }
+    }
+}
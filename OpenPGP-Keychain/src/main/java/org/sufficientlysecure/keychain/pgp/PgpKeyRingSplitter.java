@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.spongycastle.bcpg.PacketTags;
+import org.spongycastle.openpgp.PGPUtil;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a stream of binary OpenPGP packets into the raw bytes of single key rings, without
+ * parsing the packets, so the key rings can be parsed independently of each other, e.g. on
+ * several threads.
+ * <p/>
+ * A key ring starts with a public or secret key packet and contains all following packets
+ * belonging to it (subkeys, user ids, signatures, trust). Any other packet outside of a key
+ * ring is returned on its own.
+ * <p/>
+ * The input may be binary or consist of several consecutive ASCII armor blocks. Splitting the
+ * same input always results in the same sequence, so the position of a key ring in it can be
+ * used to find it again later.
+ */
+public class PgpKeyRingSplitter {
+    private final BufferedInputStream mBufferedIn;
+
+    // decoded stream of the current block
+    private InputStream mIn;
+
+    // raw bytes and tag of the packet read ahead to find the end of the previous key ring
+    private ByteArrayOutputStream mNextPacket = new ByteArrayOutputStream();
+    private int mNextTag = -1;
+
+    private final byte[] mBuffer = new byte[8192];
+
+    private int mPosition = -1;
+
+    public PgpKeyRingSplitter(InputStream in) {
+        // need to have access to the bufferedInput, so we can reuse it for the possible
+        // PGPObject chunks after the first one, e.g. files with several consecutive ASCII
+        // armor blocks
+        mBufferedIn = new BufferedInputStream(in);
+    }
+
+    /**
+     * @return the encoded key ring, or a single packet not belonging to a key ring, null at the
+     * end of the stream
+     */
+    public byte[] nextKeyRing() throws IOException {
+        while (true) {
+            if (mIn == null) {
+                if (mBufferedIn.available() <= 0) {
+                    return null;
+                }
+                mIn = PGPUtil.getDecoderStream(mBufferedIn);
+            }
+
+            byte[] keyRing = nextKeyRingInBlock();
+            if (keyRing != null) {
+                ++mPosition;
+                return keyRing;
+            }
+            mIn = null;
+        }
+    }
+
+    /**
+     * @return position of the key ring last returned by nextKeyRing(), starting at 0
+     */
+    public int getPosition() {
+        return mPosition;
+    }
+
+    private byte[] nextKeyRingInBlock() throws IOException {
+        if (mNextTag == -1) {
+            mNextTag = readPacket(mNextPacket);
+            if (mNextTag == -1) {
+                return null;
+            }
+        }
+
+        ByteArrayOutputStream keyRing = mNextPacket;
+        int tag = mNextTag;
+        mNextPacket = new ByteArrayOutputStream();
+        mNextTag = -1;
+
+        if (!isKeyRingStart(tag)) {
+            return keyRing.toByteArray();
+        }
+
+        while (true) {
+            ByteArrayOutputStream packet = new ByteArrayOutputStream();
+            tag = readPacket(packet);
+            if (tag == -1) {
+                break;
+            }
+            if (!isKeyRingPart(tag)) {
+                mNextPacket = packet;
+                mNextTag = tag;
+                break;
+            }
+            packet.writeTo(keyRing);
+        }
+
+        return keyRing.toByteArray();
+    }
+
+    private static boolean isKeyRingStart(int tag) {
+        return tag == PacketTags.PUBLIC_KEY || tag == PacketTags.SECRET_KEY;
+    }
+
+    private static boolean isKeyRingPart(int tag) {
+        switch (tag) {
+            case PacketTags.SIGNATURE:
+            case PacketTags.SECRET_SUBKEY:
+            case PacketTags.TRUST:
+            case PacketTags.USER_ID:
+            case PacketTags.PUBLIC_SUBKEY:
+            case PacketTags.USER_ATTRIBUTE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Copies header and body of the next packet to out
+     *
+     * @return the packet tag, -1 at the end of the stream
+     */
+    private int readPacket(ByteArrayOutputStream out) throws IOException {
+        int hdr = mIn.read();
+        if (hdr < 0) {
+            return -1;
+        }
+        if ((hdr & 0x80) == 0) {
+            throw new IOException("invalid header encountered");
+        }
+        out.write(hdr);
+
+        if ((hdr & 0x40) != 0) {
+            // new format, the body may be split in several parts
+            int tag = hdr & 0x3f;
+            while (true) {
+                int l = readByte(out);
+                if (l < 192) {
+                    copy(out, l);
+                    return tag;
+                } else if (l <= 223) {
+                    copy(out, ((l - 192) << 8) + readByte(out) + 192);
+                    return tag;
+                } else if (l == 255) {
+                    copy(out, (readByte(out) << 24) | (readByte(out) << 16)
+                            | (readByte(out) << 8) | readByte(out));
+                    return tag;
+                } else {
+                    // partial body length, followed by another length
+                    copy(out, 1 << (l & 0x1f));
+                }
+            }
+        } else {
+            int tag = (hdr & 0x3f) >> 2;
+            switch (hdr & 0x3) {
+                case 0:
+                    copy(out, readByte(out));
+                    break;
+                case 1:
+                    copy(out, (readByte(out) << 8) | readByte(out));
+                    break;
+                case 2:
+                    copy(out, (readByte(out) << 24) | (readByte(out) << 16)
+                            | (readByte(out) << 8) | readByte(out));
+                    break;
+                default:
+                    // indeterminate length, the packet extends to the end of the stream
+                    int n;
+                    while ((n = mIn.read(mBuffer)) > 0) {
+                        out.write(mBuffer, 0, n);
+                    }
+                    break;
+            }
+            return tag;
+        }
+    }
+
+    private int readByte(ByteArrayOutputStream out) throws IOException {
+        int b = mIn.read();
+        if (b < 0) {
+            throw new EOFException("premature end of stream in packet header");
+        }
+        out.write(b);
+        return b;
+    }
+
+    private void copy(ByteArrayOutputStream out, int length) throws IOException {
+        if (length < 0) {
+            throw new IOException("invalid packet length");
+        }
+        while (length > 0) {
+            int n = mIn.read(mBuffer, 0, Math.min(length, mBuffer.length));
+            if (n < 0) {
+                throw new EOFException("premature end of stream in packet body");
+            }
+            out.write(mBuffer, 0, n);
+            length -= n;
+        }
+    }
+}
@@ -27,15 +27,16 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.Id;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
-import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.PipelineOutputStream;
 import org.sufficientlysecure.keychain.util.ProgressDialogUpdater;
 
 import java.io.*;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Date;
 
 /**
@@ -56,6 +57,12 @@ public class PgpSignEncrypt {
     private int mSignatureHashAlgorithm;
     private boolean mSignatureForceV3;
     private String mSignaturePassphrase;
+    private boolean mBinaryInput;
+    private boolean mPipelined;
+    private boolean mCachePrivateKey;
+    private PgpSignEncryptKeys mKeys;
+
+    private ArrayList<PipelineOutputStream> mPipelineStages = new ArrayList<PipelineOutputStream>();
 
     private PgpSignEncrypt(Builder builder) {
         // private Constructor can only be called from Builder
@@ -73,6 +80,11 @@ public class PgpSignEncrypt {
         this.mSignatureHashAlgorithm = builder.mSignatureHashAlgorithm;
         this.mSignatureForceV3 = builder.mSignatureForceV3;
         this.mSignaturePassphrase = builder.mSignaturePassphrase;
+        this.mBinaryInput = builder.mBinaryInput;
+        this.mPipelined = builder.mPipelined;
+        this.mCachePrivateKey = builder.mCachePrivateKey;
+        this.mKeys = (builder.mKeys != null) ? builder.mKeys
+                : new PgpSignEncryptKeys(builder.mContext);
     }
 
     public static class Builder {
@@ -92,6 +104,10 @@ public class PgpSignEncrypt {
         private int mSignatureHashAlgorithm = 0;
         private boolean mSignatureForceV3 = false;
         private String mSignaturePassphrase = null;
+        private boolean mBinaryInput = false;
+        private boolean mPipelined = false;
+        private boolean mCachePrivateKey = false;
+        private PgpSignEncryptKeys mKeys = null;
 
         public Builder(Context context, InputData data, OutputStream outStream) {
             this.mContext = context;
@@ -149,6 +165,40 @@ public class PgpSignEncrypt {
             return this;
         }
 
+        /**
+         * Treat input as arbitrary binary data, i.e., never produce cleartext signatures and
+         * sign it as BINARY_DOCUMENT
+         */
+        public Builder binaryInput(boolean binaryInput) {
+            this.mBinaryInput = binaryInput;
+            return this;
+        }
+
+        /**
+         * Run compression, encryption and writing of the output in separate threads when
+         * encrypting. The output is identical to the serial processing.
+         */
+        public Builder pipelined(boolean pipelined) {
+            this.mPipelined = pipelined;
+            return this;
+        }
+
+        /**
+         * Keep the unlocked signing key in the PrivateKeyCache for following operations
+         */
+        public Builder cachePrivateKey(boolean cachePrivateKey) {
+            this.mCachePrivateKey = cachePrivateKey;
+            return this;
+        }
+
+        /**
+         * Reuse keys looked up by previous operations, see PgpSignEncryptKeys
+         */
+        public Builder keys(PgpSignEncryptKeys keys) {
+            this.mKeys = keys;
+            return this;
+        }
+
         public PgpSignEncrypt build() {
             return new PgpSignEncrypt(this);
         }
@@ -179,18 +229,35 @@ public class PgpSignEncrypt {
     public void execute()
             throws IOException, PgpGeneralException, PGPException, NoSuchProviderException,
             NoSuchAlgorithmException, SignatureException {
+        try {
+            signEncrypt();
+        } finally {
+            // stop remaining pipeline threads if an error occurred
+            for (PipelineOutputStream stage : mPipelineStages) {
+                stage.cancel();
+            }
+            mPipelineStages.clear();
+        }
+    }
+
+    private void signEncrypt()
+            throws IOException, PgpGeneralException, PGPException, NoSuchProviderException,
+            NoSuchAlgorithmException, SignatureException {
 
         boolean enableSignature = mSignatureKeyId != Id.key.none;
         boolean enableEncryption = (mEncryptionKeyIds.length != 0 || mEncryptionPassphrase != null);
         boolean enableCompression = (enableEncryption && mCompressionId != Id.choice.compression.none);
+        boolean enableClearText = (mEnableAsciiArmorOutput && enableSignature && !enableEncryption
+                && !mBinaryInput);
 
         Log.d(Constants.TAG, "enableSignature:" + enableSignature
                 + "\nenableEncryption:" + enableEncryption
                 + "\nenableCompression:" + enableCompression
-                + "\nenableAsciiArmorOutput:" + mEnableAsciiArmorOutput);
+                + "\nenableAsciiArmorOutput:" + mEnableAsciiArmorOutput
+                + "\nenableClearText:" + enableClearText);
 
         int signatureType;
-        if (mEnableAsciiArmorOutput && enableSignature && !enableEncryption && !enableCompression) {
+        if (enableClearText) {
             // for sign-only ascii text
             signatureType = PGPSignature.CANONICAL_TEXT_DOCUMENT;
         } else {
@@ -209,11 +276,9 @@ public class PgpSignEncrypt {
 
         /* Get keys for signature generation for later usage */
         PGPSecretKey signingKey = null;
-        PGPSecretKeyRing signingKeyRing = null;
         PGPPrivateKey signaturePrivateKey = null;
         if (enableSignature) {
-            signingKeyRing = ProviderHelper.getPGPSecretKeyRingByKeyId(mContext, mSignatureKeyId);
-            signingKey = PgpKeyHelper.getSigningKey(mContext, mSignatureKeyId);
+            signingKey = mKeys.getSigningKey(mSignatureKeyId);
             if (signingKey == null) {
                 throw new PgpGeneralException(mContext.getString(R.string.error_signature_failed));
             }
@@ -225,9 +290,7 @@ public class PgpSignEncrypt {
 
             updateProgress(R.string.progress_extracting_signature_key, 0, 100);
 
-            PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
-                    Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(mSignaturePassphrase.toCharArray());
-            signaturePrivateKey = signingKey.extractPrivateKey(keyDecryptor);
+            signaturePrivateKey = extractSignaturePrivateKey(signingKey);
             if (signaturePrivateKey == null) {
                 throw new PgpGeneralException(
                         mContext.getString(R.string.error_could_not_extract_private_key));
@@ -256,7 +319,7 @@ public class PgpSignEncrypt {
             } else {
                 // Asymmetric encryption
                 for (long id : mEncryptionKeyIds) {
-                    PGPPublicKey key = PgpKeyHelper.getEncryptPublicKey(mContext, id);
+                    PGPPublicKey key = mKeys.getEncryptPublicKey(id);
                     if (key != null) {
                         JcePublicKeyKeyEncryptionMethodGenerator pubKeyEncryptionGenerator =
                                 new JcePublicKeyKeyEncryptionMethodGenerator(key);
@@ -284,7 +347,7 @@ public class PgpSignEncrypt {
                 signatureGenerator = new PGPSignatureGenerator(contentSignerBuilder);
                 signatureGenerator.init(signatureType, signaturePrivateKey);
 
-                String userId = PgpKeyHelper.getMainUserId(PgpKeyHelper.getMasterKey(signingKeyRing));
+                String userId = mKeys.getSigningUserId(mSignatureKeyId);
                 PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
                 spGen.setSignerUserID(false, userId);
                 signatureGenerator.setHashedSubpackets(spGen.generate());
@@ -295,16 +358,39 @@ public class PgpSignEncrypt {
         OutputStream pOut;
         OutputStream encryptionOut = null;
         BCPGOutputStream bcpgOut;
+        PipelineOutputStream literalStage = null;
+        PipelineOutputStream compressedStage = null;
+        PipelineOutputStream encryptedStage = null;
         if (enableEncryption) {
             /* actual encryption */
 
-            encryptionOut = cPk.open(out, new byte[1 << 16]);
+            // in pipelined mode, every stage writes to the next one in its own thread:
+            // literal data -> compression -> encryption -> armor/output
+            if (mPipelined) {
+                encryptedStage = addPipelineStage(out, "encrypted");
+                encryptionOut = cPk.open(encryptedStage, new byte[1 << 16]);
+            } else {
+                encryptionOut = cPk.open(out, new byte[1 << 16]);
+            }
 
+            OutputStream literalTarget;
             if (enableCompression) {
                 compressGen = new PGPCompressedDataGenerator(mCompressionId);
-                bcpgOut = new BCPGOutputStream(compressGen.open(encryptionOut));
+                if (mPipelined) {
+                    compressedStage = addPipelineStage(encryptionOut, "compressed");
+                    literalTarget = compressGen.open(compressedStage);
+                } else {
+                    literalTarget = compressGen.open(encryptionOut);
+                }
             } else {
-                bcpgOut = new BCPGOutputStream(encryptionOut);
+                literalTarget = encryptionOut;
+            }
+
+            if (mPipelined) {
+                literalStage = addPipelineStage(literalTarget, "literal");
+                bcpgOut = new BCPGOutputStream(literalStage);
+            } else {
+                bcpgOut = new BCPGOutputStream(literalTarget);
             }
 
             if (enableSignature) {
@@ -321,30 +407,10 @@ public class PgpSignEncrypt {
                     new byte[1 << 16]);
             updateProgress(R.string.progress_encrypting, 20, 100);
 
-            long progress = 0;
-            int n;
-            byte[] buffer = new byte[1 << 16];
-            InputStream in = mData.getInputStream();
-            while ((n = in.read(buffer)) > 0) {
-                pOut.write(buffer, 0, n);
-
-                // update signature buffer if signature is requested
-                if (enableSignature) {
-                    if (mSignatureForceV3) {
-                        signatureV3Generator.update(buffer, 0, n);
-                    } else {
-                        signatureGenerator.update(buffer, 0, n);
-                    }
-                }
-
-                progress += n;
-                if (mData.getSize() != 0) {
-                    updateProgress((int) (20 + (95 - 20) * progress / mData.getSize()), 100);
-                }
-            }
+            processData(pOut, signatureGenerator, signatureV3Generator);
 
             literalGen.close();
-        } else if (mEnableAsciiArmorOutput && enableSignature && !enableEncryption && !enableCompression) {
+        } else if (enableClearText) {
             /* sign-only of ascii text */
 
             updateProgress(R.string.progress_signing, 40, 100);
@@ -387,9 +453,27 @@ public class PgpSignEncrypt {
 
             pOut = new BCPGOutputStream(armorOut);
         } else {
-            // TODO: implement sign-only for files!
-            pOut = null;
-            Log.e(Constants.TAG, "not supported!");
+            /* sign-only of binary data */
+
+            updateProgress(R.string.progress_signing, 20, 100);
+
+            bcpgOut = new BCPGOutputStream(out);
+            if (mSignatureForceV3) {
+                signatureV3Generator.generateOnePassVersion(false).encode(bcpgOut);
+            } else {
+                signatureGenerator.generateOnePassVersion(false).encode(bcpgOut);
+            }
+
+            PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+            // file name not needed, so empty string
+            OutputStream literalOut = literalGen.open(bcpgOut, PGPLiteralData.BINARY, "",
+                    new Date(), new byte[1 << 16]);
+
+            processData(literalOut, signatureGenerator, signatureV3Generator);
+
+            literalGen.close();
+
+            pOut = bcpgOut;
         }
 
         if (enableSignature) {
@@ -405,11 +489,20 @@ public class PgpSignEncrypt {
         // NOTE: closing needs to be done in the correct order!
         // TODO: closing bcpgOut and pOut???
         if (enableEncryption) {
+            if (literalStage != null) {
+                literalStage.close();
+            }
             if (enableCompression) {
                 compressGen.close();
+                if (compressedStage != null) {
+                    compressedStage.close();
+                }
             }
 
             encryptionOut.close();
+            if (encryptedStage != null) {
+                encryptedStage.close();
+            }
         }
         if (mEnableAsciiArmorOutput) {
             armorOut.close();
@@ -421,8 +514,64 @@ public class PgpSignEncrypt {
         updateProgress(R.string.progress_done, 100, 100);
     }
 
+    private PGPPrivateKey extractSignaturePrivateKey(PGPSecretKey signingKey) throws PGPException {
+        PGPPrivateKey privateKey = mKeys.getSigningPrivateKey(mSignaturePassphrase);
+        if (privateKey != null) {
+            return privateKey;
+        }
+
+        if (mCachePrivateKey) {
+            privateKey = PrivateKeyCache.getPrivateKeyCache(mContext)
+                    .extractPrivateKey(signingKey, mSignaturePassphrase);
+        } else {
+            PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
+                    Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(mSignaturePassphrase.toCharArray());
+            privateKey = signingKey.extractPrivateKey(keyDecryptor);
+        }
+
+        if (privateKey != null) {
+            mKeys.putSigningPrivateKey(privateKey, mSignaturePassphrase);
+        }
+        return privateKey;
+    }
+
+    private PipelineOutputStream addPipelineStage(OutputStream out, String name) {
+        PipelineOutputStream stage = new PipelineOutputStream(out, "PgpSignEncrypt-" + name);
+        mPipelineStages.add(stage);
+        return stage;
+    }
+
+    /**
+     * Writes all input data to literalOut (if not null) and updates the signature generator (if
+     * not null) using bulk updates, progress is reported from 20 to 95
+     */
+    private void processData(OutputStream literalOut, PGPSignatureGenerator signatureGenerator,
+                             PGPV3SignatureGenerator signatureV3Generator)
+            throws IOException, SignatureException {
+        long progress = 0;
+        int n;
+        byte[] buffer = new byte[1 << 16];
+        InputStream in = mData.getInputStream();
+        while ((n = in.read(buffer)) > 0) {
+            if (literalOut != null) {
+                literalOut.write(buffer, 0, n);
+            }
+
+            // update signature buffer if signature is requested
+            if (signatureV3Generator != null) {
+                signatureV3Generator.update(buffer, 0, n);
+            } else if (signatureGenerator != null) {
+                signatureGenerator.update(buffer, 0, n);
+            }
+
+            progress += n;
+            if (mData.getSize() != 0) {
+                updateProgress((int) (20 + (95 - 20) * progress / mData.getSize()), 100);
+            }
+        }
+    }
+
     // TODO: merge this into execute method!
-    // TODO: allow binary input for this class
     public void generateSignature()
             throws PgpGeneralException, PGPException, IOException, NoSuchAlgorithmException,
             SignatureException {
@@ -441,9 +590,7 @@ public class PgpSignEncrypt {
             throw new PgpGeneralException(mContext.getString(R.string.error_no_signature_key));
         }
 
-        PGPSecretKeyRing signingKeyRing =
-                ProviderHelper.getPGPSecretKeyRingByKeyId(mContext, mSignatureKeyId);
-        PGPSecretKey signingKey = PgpKeyHelper.getSigningKey(mContext, mSignatureKeyId);
+        PGPSecretKey signingKey = mKeys.getSigningKey(mSignatureKeyId);
         if (signingKey == null) {
             throw new PgpGeneralException(mContext.getString(R.string.error_signature_failed));
         }
@@ -452,9 +599,7 @@ public class PgpSignEncrypt {
             throw new PgpGeneralException(mContext.getString(R.string.error_no_signature_passphrase));
         }
 
-        PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
-                Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(mSignaturePassphrase.toCharArray());
-        PGPPrivateKey signaturePrivateKey = signingKey.extractPrivateKey(keyDecryptor);
+        PGPPrivateKey signaturePrivateKey = extractSignaturePrivateKey(signingKey);
         if (signaturePrivateKey == null) {
             throw new PgpGeneralException(
                     mContext.getString(R.string.error_could_not_extract_private_key));
@@ -464,9 +609,9 @@ public class PgpSignEncrypt {
         updateProgress(R.string.progress_preparing_signature, 30, 100);
 
         int type = PGPSignature.CANONICAL_TEXT_DOCUMENT;
-//        if (binary) {
-//            type = PGPSignature.BINARY_DOCUMENT;
-//        }
+        if (mBinaryInput) {
+            type = PGPSignature.BINARY_DOCUMENT;
+        }
 
         // content signer based on signing key algorithm and chosen hash algorithm
         JcaPGPContentSignerBuilder contentSignerBuilder = new JcaPGPContentSignerBuilder(signingKey
@@ -483,39 +628,31 @@ public class PgpSignEncrypt {
             signatureGenerator.init(type, signaturePrivateKey);
 
             PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
-            String userId = PgpKeyHelper.getMainUserId(PgpKeyHelper.getMasterKey(signingKeyRing));
+            String userId = mKeys.getSigningUserId(mSignatureKeyId);
             spGen.setSignerUserID(false, userId);
             signatureGenerator.setHashedSubpackets(spGen.generate());
         }
 
         updateProgress(R.string.progress_signing, 40, 100);
 
-        InputStream inStream = mData.getInputStream();
-//        if (binary) {
-//            byte[] buffer = new byte[1 << 16];
-//            int n = 0;
-//            while ((n = inStream.read(buffer)) > 0) {
-//                if (signatureForceV3) {
-//                    signatureV3Generator.update(buffer, 0, n);
-//                } else {
-//                    signatureGenerator.update(buffer, 0, n);
-//                }
-//            }
-//        } else {
-        final BufferedReader reader = new BufferedReader(new InputStreamReader(inStream));
-        final byte[] newline = "\r\n".getBytes("UTF-8");
-
-        String line;
-        while ((line = reader.readLine()) != null) {
-            if (mSignatureForceV3) {
-                processLine(line, null, signatureV3Generator);
-                signatureV3Generator.update(newline);
-            } else {
-                processLine(line, null, signatureGenerator);
-                signatureGenerator.update(newline);
+        if (mBinaryInput) {
+            processData(null, signatureGenerator, signatureV3Generator);
+        } else {
+            InputStream inStream = mData.getInputStream();
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(inStream));
+            final byte[] newline = "\r\n".getBytes("UTF-8");
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (mSignatureForceV3) {
+                    processLine(line, null, signatureV3Generator);
+                    signatureV3Generator.update(newline);
+                } else {
+                    processLine(line, null, signatureGenerator);
+                    signatureGenerator.update(newline);
+                }
             }
         }
-//        }
 
         BCPGOutputStream bOut = new BCPGOutputStream(out);
         if (mSignatureForceV3) {
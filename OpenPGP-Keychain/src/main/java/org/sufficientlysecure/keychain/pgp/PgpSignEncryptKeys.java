@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import android.content.Context;
+import org.spongycastle.openpgp.PGPPrivateKey;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+
+import java.util.HashMap;
+
+/**
+ * Keys looked up by PgpSignEncrypt. Pass the same instance to several operations with the same
+ * signing key and recipients, e.g. the items of an API batch, so the key rings are only read from
+ * the database and parsed once.
+ * <p/>
+ * Not thread-safe, operations sharing an instance have to run one after another.
+ */
+public class PgpSignEncryptKeys {
+    private final Context mContext;
+
+    // master key id -> encryption key, null if the key ring has none
+    private final HashMap<Long, PGPPublicKey> mEncryptKeys = new HashMap<Long, PGPPublicKey>();
+
+    private boolean mSigningKeyLoaded = false;
+    private long mSigningKeyId;
+    private PGPSecretKeyRing mSigningKeyRing;
+    private PGPSecretKey mSigningKey;
+    private String mSigningUserId;
+
+    private PGPPrivateKey mSigningPrivateKey;
+    private String mSigningPassphrase;
+
+    public PgpSignEncryptKeys(Context context) {
+        mContext = context;
+    }
+
+    PGPPublicKey getEncryptPublicKey(long masterKeyId) {
+        if (mEncryptKeys.containsKey(masterKeyId)) {
+            return mEncryptKeys.get(masterKeyId);
+        }
+        PGPPublicKey key = PgpKeyHelper.getEncryptPublicKey(mContext, masterKeyId);
+        mEncryptKeys.put(masterKeyId, key);
+        return key;
+    }
+
+    PGPSecretKeyRing getSigningKeyRing(long keyId) {
+        loadSigningKey(keyId);
+        return mSigningKeyRing;
+    }
+
+    PGPSecretKey getSigningKey(long keyId) {
+        loadSigningKey(keyId);
+        return mSigningKey;
+    }
+
+    String getSigningUserId(long keyId) {
+        loadSigningKey(keyId);
+        if (mSigningUserId == null) {
+            mSigningUserId = PgpKeyHelper.getMainUserId(PgpKeyHelper.getMasterKey(mSigningKeyRing));
+        }
+        return mSigningUserId;
+    }
+
+    /**
+     * @return the unlocked signing key, null if it has not been unlocked with this passphrase
+     */
+    PGPPrivateKey getSigningPrivateKey(String passphrase) {
+        if (mSigningPrivateKey == null || !mSigningPassphrase.equals(passphrase)) {
+            return null;
+        }
+        return mSigningPrivateKey;
+    }
+
+    void putSigningPrivateKey(PGPPrivateKey privateKey, String passphrase) {
+        mSigningPrivateKey = privateKey;
+        mSigningPassphrase = passphrase;
+    }
+
+    private void loadSigningKey(long keyId) {
+        if (mSigningKeyLoaded && mSigningKeyId == keyId) {
+            return;
+        }
+        mSigningKeyRing = ProviderHelper.getPGPSecretKeyRingByKeyId(mContext, keyId);
+        mSigningKey = PgpKeyHelper.getSigningKey(mContext, keyId);
+        mSigningUserId = null;
+        mSigningPrivateKey = null;
+        mSigningPassphrase = null;
+        mSigningKeyId = keyId;
+        mSigningKeyLoaded = true;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.SystemClock;
+import android.support.v4.util.LongSparseArray;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.PGPPrivateKey;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.spongycastle.openpgp.operator.PBESecretKeyDecryptor;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.helper.Preferences;
+import org.sufficientlysecure.keychain.provider.KeyInfo;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.service.PassphraseCacheService;
+import org.sufficientlysecure.keychain.util.Log;
+
+/**
+ * Process local cache of unlocked private keys, so the expensive S2K and decryption of secret
+ * keys is only done once while the passphrase is cached.
+ * <p/>
+ * Entries use the ttl of the PassphraseCacheService, which is reset on every hit, and are also
+ * removed when the PassphraseCacheService times out the passphrase of their master key. A key is
+ * only returned for the same passphrase it was unlocked with.
+ */
+public class PrivateKeyCache {
+    private static PrivateKeyCache sPrivateKeyCache;
+
+    private final Context mContext;
+
+    // key id -> unlocked key
+    private final LongSparseArray<Entry> mEntries = new LongSparseArray<Entry>();
+
+    public static synchronized PrivateKeyCache getPrivateKeyCache(Context context) {
+        if (sPrivateKeyCache == null) {
+            sPrivateKeyCache = new PrivateKeyCache(context.getApplicationContext());
+        }
+        return sPrivateKeyCache;
+    }
+
+    private PrivateKeyCache(Context context) {
+        mContext = context;
+
+        // time out together with the passphrase in PassphraseCacheService
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(PassphraseCacheService.BROADCAST_ACTION_PASSPHRASE_CACHE_SERVICE);
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                long masterKeyId = intent.getLongExtra(PassphraseCacheService.EXTRA_KEY_ID, -1);
+                removeByMasterKeyId(masterKeyId);
+            }
+        }, filter);
+    }
+
+    private static class Entry {
+        PGPPrivateKey mPrivateKey;
+        String mPassphrase;
+        final long mMasterKeyId;
+        long mExpiry;
+
+        Entry(PGPPrivateKey privateKey, String passphrase, long masterKeyId) {
+            mPrivateKey = privateKey;
+            mPassphrase = passphrase;
+            mMasterKeyId = masterKeyId;
+        }
+
+        void wipe() {
+            mPrivateKey = null;
+            mPassphrase = null;
+        }
+    }
+
+    /**
+     * Returns the cached unlocked key or extracts it from secretKey and caches it.
+     *
+     * @param secretKey
+     * @param passphrase
+     * @return the private key, null if it could not be extracted
+     * @throws PGPException if the passphrase is wrong
+     */
+    public PGPPrivateKey extractPrivateKey(PGPSecretKey secretKey, String passphrase)
+            throws PGPException {
+        long keyId = secretKey.getKeyID();
+
+        PGPPrivateKey privateKey = get(keyId, passphrase);
+        if (privateKey != null) {
+            Log.d(Constants.TAG, "PrivateKeyCache hit for " + keyId);
+            return privateKey;
+        }
+
+        PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
+                Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(passphrase.toCharArray());
+        privateKey = secretKey.extractPrivateKey(keyDecryptor);
+
+        if (privateKey != null) {
+            KeyInfo keyInfo = ProviderHelper.getSecretKeyInfo(mContext, keyId);
+            long masterKeyId = keyInfo != null ? keyInfo.getMasterKeyId() : keyId;
+            put(keyId, new Entry(privateKey, passphrase, masterKeyId));
+        }
+
+        return privateKey;
+    }
+
+    private synchronized PGPPrivateKey get(long keyId, String passphrase) {
+        Entry entry = mEntries.get(keyId);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.mExpiry < SystemClock.elapsedRealtime()) {
+            remove(keyId);
+            return null;
+        }
+        if (!entry.mPassphrase.equals(passphrase)) {
+            return null;
+        }
+
+        // reset life cycle, as done for the passphrase
+        entry.mExpiry = getExpiry();
+        return entry.mPrivateKey;
+    }
+
+    private synchronized void put(long keyId, Entry entry) {
+        remove(keyId);
+        entry.mExpiry = getExpiry();
+        mEntries.put(keyId, entry);
+    }
+
+    private long getExpiry() {
+        long ttl = Preferences.getPreferences(mContext).getPassPhraseCacheTtl();
+        return SystemClock.elapsedRealtime() + ttl * 1000;
+    }
+
+    private synchronized void remove(long keyId) {
+        Entry entry = mEntries.get(keyId);
+        if (entry != null) {
+            entry.wipe();
+            mEntries.remove(keyId);
+        }
+    }
+
+    /**
+     * Removes all keys belonging to the key ring with this master key id
+     */
+    public synchronized void removeByMasterKeyId(long masterKeyId) {
+        for (int i = mEntries.size() - 1; i >= 0; --i) {
+            Entry entry = mEntries.valueAt(i);
+            if (entry.mMasterKeyId == masterKeyId) {
+                entry.wipe();
+                mEntries.removeAt(i);
+            }
+        }
+        Log.d(Constants.TAG, "PrivateKeyCache: removed keys of " + masterKeyId);
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < mEntries.size(); ++i) {
+            mEntries.valueAt(i).wipe();
+        }
+        mEntries.clear();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import java.util.Date;
+
+/**
+ * Information about a single (sub)key as stored in the keys table, retrieved without parsing the
+ * key ring blob. See ProviderHelper.getSecretKeyInfo and ProviderHelper.getPublicKeyInfo
+ */
+public class KeyInfo {
+    private long mKeyId;
+    private long mMasterKeyId;
+    private boolean mCanCertify;
+    private boolean mCanSign;
+    private boolean mCanEncrypt;
+    private boolean mRevoked;
+    private Date mExpiry;
+
+    public KeyInfo(long keyId, long masterKeyId, boolean canCertify, boolean canSign,
+                   boolean canEncrypt, boolean revoked, Date expiry) {
+        this.mKeyId = keyId;
+        this.mMasterKeyId = masterKeyId;
+        this.mCanCertify = canCertify;
+        this.mCanSign = canSign;
+        this.mCanEncrypt = canEncrypt;
+        this.mRevoked = revoked;
+        this.mExpiry = expiry;
+    }
+
+    public long getKeyId() {
+        return mKeyId;
+    }
+
+    public long getMasterKeyId() {
+        return mMasterKeyId;
+    }
+
+    public boolean isMasterKey() {
+        return mKeyId == mMasterKeyId;
+    }
+
+    public boolean canCertify() {
+        return mCanCertify;
+    }
+
+    public boolean canSign() {
+        return mCanSign;
+    }
+
+    public boolean canEncrypt() {
+        return mCanEncrypt;
+    }
+
+    public boolean isRevoked() {
+        return mRevoked;
+    }
+
+    /**
+     * @return expiry date or null if the key does not expire
+     */
+    public Date getExpiry() {
+        return mExpiry;
+    }
+
+    public boolean isExpired() {
+        return mExpiry != null && mExpiry.before(new Date());
+    }
+}
@@ -0,0 +1,600 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.support.v4.util.LongSparseArray;
+import org.spongycastle.openpgp.PGPKeyRing;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPPublicKeyRing;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.spongycastle.openpgp.PGPSecretKeyRing;
+import org.spongycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.PgpConversionHelper;
+import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
+import org.sufficientlysecure.keychain.pgp.PgpKeyRingMerger;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyTypes;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserIds;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+import org.sufficientlysecure.keychain.util.IterableIterator;
+import org.sufficientlysecure.keychain.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+
+/**
+ * Saves many key rings at once, e.g. when importing a large key file.
+ * <p/>
+ * Queued key rings are written with precompiled statements in one transaction per commit(),
+ * instead of a query, delete, insert and applyBatch through the KeychainProvider per key ring as
+ * done by ProviderHelper.saveKeyRing.
+ * <p/>
+ * Public key rings are merged into the stored ones by PgpKeyRingMerger and only the rows of
+ * changed keys and new user ids are written, so importing known key rings again, e.g. when
+ * refreshing them from a keyserver, writes nothing. Secret key rings are replaced if they differ.
+ * Only the URIs of changed key rings are notified after each commit.
+ * <p/>
+ * If writing a key ring fails, the transaction is rolled back and each key ring is written again
+ * in a transaction of its own, so only the failing key rings are lost and reported as RESULT_BAD.
+ * <p/>
+ * The database is accessed directly, so this must only be used in the process of the
+ * KeychainProvider.
+ */
+public class KeyRingBatchWriter {
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    public static final int RESULT_ADDED = 0;
+    public static final int RESULT_UPDATED = 1;
+    public static final int RESULT_UNCHANGED = 2;
+    public static final int RESULT_BAD = 3;
+
+    // above this number of changed key rings, notify KeyRings.CONTENT_URI once instead
+    private static final int MAX_NOTIFY_URIS = 50;
+
+    private static final String SELECT_KEY_RING = "SELECT " + BaseColumns._ID + ", "
+            + KeyRings.KEY_RING_DATA + " FROM " + Tables.KEY_RINGS + " WHERE "
+            + KeyRings.MASTER_KEY_ID + " = ? AND " + KeyRings.TYPE + " = ? LIMIT 1";
+
+    // public key of any key ring, to verify its certifications on merged key rings
+    private static final String SELECT_PUBLIC_KEY_DATA = "SELECT " + Keys.KEY_DATA + " FROM "
+            + Tables.KEYS + " WHERE " + Keys.KEY_ID + " = ? AND " + Keys.TYPE + " = ? LIMIT 1";
+
+    private static final String SELECT_KEY_ROW_IDS = "SELECT " + BaseColumns._ID + ", "
+            + Keys.KEY_ID + " FROM " + Tables.KEYS + " WHERE " + Keys.KEY_RING_ROW_ID + " = ?";
+
+    // corresponding keys and userIds are deleted by ON DELETE CASCADE
+    private static final String DELETE_KEY_RING = "DELETE FROM " + Tables.KEY_RINGS
+            + " WHERE " + BaseColumns._ID + " = ?";
+
+    private static final String INSERT_KEY_RING = "INSERT INTO " + Tables.KEY_RINGS + " ("
+            + BaseColumns._ID + ", " + KeyRings.MASTER_KEY_ID + ", " + KeyRings.TYPE + ", "
+            + KeyRings.KEY_RING_DATA + ") VALUES (?, ?, ?, ?)";
+
+    private static final String UPDATE_KEY_RING = "UPDATE " + Tables.KEY_RINGS + " SET "
+            + KeyRings.KEY_RING_DATA + " = ? WHERE " + BaseColumns._ID + " = ?";
+
+    private static final String INSERT_KEY = "INSERT INTO " + Tables.KEYS + " ("
+            + Keys.KEY_ID + ", " + Keys.TYPE + ", " + Keys.IS_MASTER_KEY + ", "
+            + Keys.ALGORITHM + ", " + Keys.KEY_SIZE + ", " + Keys.CAN_CERTIFY + ", "
+            + Keys.CAN_SIGN + ", " + Keys.CAN_ENCRYPT + ", " + Keys.IS_REVOKED + ", "
+            + Keys.CREATION + ", " + Keys.EXPIRY + ", " + Keys.KEY_DATA + ", " + Keys.RANK + ", "
+            + Keys.FINGERPRINT + ", " + Keys.KEY_RING_ROW_ID
+            + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    // the properties of a public key that can change by new signatures
+    private static final String UPDATE_PUBLIC_KEY = "UPDATE " + Tables.KEYS + " SET "
+            + Keys.CAN_SIGN + " = ?, " + Keys.CAN_ENCRYPT + " = ?, " + Keys.IS_REVOKED + " = ?, "
+            + Keys.EXPIRY + " = ?, " + Keys.KEY_DATA + " = ? WHERE " + BaseColumns._ID + " = ?";
+
+    private static final String INSERT_USER_ID = "INSERT INTO " + Tables.USER_IDS + " ("
+            + UserIds.KEY_RING_ROW_ID + ", " + UserIds.USER_ID + ", " + UserIds.RANK
+            + ") VALUES (?, ?, ?)";
+
+    private final Context mContext;
+    private final SQLiteDatabase mDatabase;
+
+    private final SQLiteStatement mDeleteKeyRing;
+    private final SQLiteStatement mInsertKeyRing;
+    private final SQLiteStatement mUpdateKeyRing;
+    private final SQLiteStatement mInsertKey;
+    private final SQLiteStatement mUpdatePublicKey;
+    private final SQLiteStatement mInsertUserId;
+    private final SQLiteStatement mInsertUserIdEmail;
+    private final SQLiteStatement mDeleteKeyRingSearch;
+    private final SQLiteStatement mInsertKeyRingSearch;
+
+    private final ArrayList<PGPKeyRing> mPending = new ArrayList<PGPKeyRing>();
+
+    // URIs of key rings changed in the current commit
+    private final ArrayList<Uri> mChangedUris = new ArrayList<Uri>();
+
+    private int mRowCount;
+
+    private final PgpKeyRingMerger.SignerKeyLookup mSignerKeyLookup =
+            new PgpKeyRingMerger.SignerKeyLookup() {
+                @Override
+                public PGPPublicKey getPublicKey(long keyId) {
+                    return queryPublicKey(keyId);
+                }
+            };
+
+    public KeyRingBatchWriter(Context context) {
+        mContext = context;
+        mDatabase = KeychainDatabase.getKeychainDatabase(context).getWritableDatabase();
+
+        mDeleteKeyRing = mDatabase.compileStatement(DELETE_KEY_RING);
+        mInsertKeyRing = mDatabase.compileStatement(INSERT_KEY_RING);
+        mUpdateKeyRing = mDatabase.compileStatement(UPDATE_KEY_RING);
+        mInsertKey = mDatabase.compileStatement(INSERT_KEY);
+        mUpdatePublicKey = mDatabase.compileStatement(UPDATE_PUBLIC_KEY);
+        mInsertUserId = mDatabase.compileStatement(INSERT_USER_ID);
+        mInsertUserIdEmail = mDatabase.compileStatement(KeychainDatabase.INSERT_USER_ID_EMAIL);
+        mDeleteKeyRingSearch = mDatabase.compileStatement(KeychainDatabase.DELETE_KEY_RING_SEARCH);
+        mInsertKeyRingSearch = mDatabase.compileStatement(KeychainDatabase.INSERT_KEY_RING_SEARCH);
+    }
+
+    /**
+     * Queues a key ring, which is merged into the stored key ring with the same master key id on
+     * commit
+     */
+    public void add(PGPPublicKeyRing keyRing) {
+        mPending.add(keyRing);
+    }
+
+    /**
+     * Queues a key ring, which replaces the stored key ring with the same master key id on commit
+     */
+    public void add(PGPSecretKeyRing keyRing) {
+        mPending.add(keyRing);
+    }
+
+    /**
+     * @return number of queued key rings
+     */
+    public int size() {
+        return mPending.size();
+    }
+
+    /**
+     * Writes all queued key rings in one transaction. If a key ring fails, they are written again
+     * one transaction each and only the failing ones are skipped.
+     *
+     * @return for each queued key ring in the order they were added, one of RESULT_ADDED,
+     * RESULT_UPDATED, RESULT_UNCHANGED or RESULT_BAD
+     */
+    public int[] commit() {
+        int[] results = new int[mPending.size()];
+        if (mPending.isEmpty()) {
+            return results;
+        }
+
+        long startTime = SystemClock.elapsedRealtime();
+        mRowCount = 0;
+        mChangedUris.clear();
+
+        boolean success = false;
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < mPending.size(); ++i) {
+                results[i] = writeKeyRing(mPending.get(i));
+            }
+            mDatabase.setTransactionSuccessful();
+            success = true;
+        } catch (Exception e) {
+            Log.e(Constants.TAG, "Writing batch of key rings failed, writing them one by one", e);
+        } finally {
+            mDatabase.endTransaction();
+        }
+
+        if (!success) {
+            mRowCount = 0;
+            mChangedUris.clear();
+            for (int i = 0; i < mPending.size(); ++i) {
+                results[i] = commitSingle(mPending.get(i));
+            }
+        }
+
+        KeyRingCache keyRingCache = KeyRingCache.getKeyRingCache(mContext);
+        for (int i = 0; i < mPending.size(); ++i) {
+            if (results[i] != RESULT_UNCHANGED && results[i] != RESULT_BAD) {
+                keyRingCache.invalidate(mPending.get(i).getPublicKey().getKeyID());
+            }
+        }
+        if (mChangedUris.size() > MAX_NOTIFY_URIS) {
+            mContext.getContentResolver().notifyChange(KeyRings.CONTENT_URI, null);
+        } else {
+            for (Uri uri : mChangedUris) {
+                mContext.getContentResolver().notifyChange(uri, null);
+            }
+        }
+
+        long time = SystemClock.elapsedRealtime() - startTime;
+        Log.d(Constants.TAG, "Wrote " + mPending.size() + " key rings (" + mChangedUris.size()
+                + " changed, " + mRowCount + " rows) in " + time + " ms, "
+                + (mPending.size() * 1000L / Math.max(time, 1)) + " key rings/s");
+
+        mPending.clear();
+        return results;
+    }
+
+    /**
+     * Writes one key ring in its own transaction
+     *
+     * @return RESULT_BAD if it could not be written
+     */
+    private int commitSingle(PGPKeyRing keyRing) {
+        int changedUris = mChangedUris.size();
+        mDatabase.beginTransaction();
+        try {
+            int result = writeKeyRing(keyRing);
+            mDatabase.setTransactionSuccessful();
+            return result;
+        } catch (Exception e) {
+            Log.e(Constants.TAG, "Writing key ring "
+                    + PgpKeyHelper.convertKeyIdToHex(keyRing.getPublicKey().getKeyID())
+                    + " failed", e);
+            // nothing of it has been written
+            while (mChangedUris.size() > changedUris) {
+                mChangedUris.remove(mChangedUris.size() - 1);
+            }
+            return RESULT_BAD;
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    private int writeKeyRing(PGPKeyRing keyRing) throws IOException {
+        if (keyRing instanceof PGPSecretKeyRing) {
+            return writeKeyRing((PGPSecretKeyRing) keyRing);
+        } else {
+            return writeKeyRing((PGPPublicKeyRing) keyRing);
+        }
+    }
+
+    /**
+     * Releases the compiled statements, queued key rings that have not been committed are dropped
+     */
+    public void close() {
+        mPending.clear();
+        mDeleteKeyRing.close();
+        mInsertKeyRing.close();
+        mUpdateKeyRing.close();
+        mInsertKey.close();
+        mUpdatePublicKey.close();
+        mInsertUserId.close();
+        mInsertUserIdEmail.close();
+        mDeleteKeyRingSearch.close();
+        mInsertKeyRingSearch.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    private int writeKeyRing(PGPPublicKeyRing keyRing) throws IOException {
+        PGPPublicKey masterKey = keyRing.getPublicKey();
+        long masterKeyId = masterKey.getKeyID();
+
+        StoredKeyRing stored = queryKeyRing(masterKeyId, KeyTypes.PUBLIC);
+        PGPPublicKeyRing storedKeyRing = null;
+        if (stored != null) {
+            storedKeyRing = (PGPPublicKeyRing) PgpConversionHelper.BytesToPGPKeyRing(stored.mData);
+        }
+
+        if (storedKeyRing == null) {
+            // new key ring, or the stored one is broken and replaced completely
+            long oldRowId = -1;
+            if (stored != null) {
+                oldRowId = stored.mRowId;
+                deleteKeyRing(oldRowId);
+            }
+            long keyRingRowId = insertKeyRing(oldRowId, masterKeyId, KeyTypes.PUBLIC,
+                    keyRing.getEncoded());
+
+            int rank = 0;
+            for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(keyRing.getPublicKeys())) {
+                insertPublicKey(keyRingRowId, key, rank);
+                ++rank;
+            }
+            insertUserIds(keyRingRowId, masterKey, null);
+            replaceKeyRingSearch(keyRingRowId, masterKey);
+
+            mChangedUris.add(KeyRings.buildPublicKeyRingsUri(Long.toString(keyRingRowId)));
+            return stored == null ? RESULT_ADDED : RESULT_UPDATED;
+        }
+
+        PGPPublicKeyRing merged = PgpKeyRingMerger.merge(storedKeyRing, keyRing,
+                mSignerKeyLookup);
+        if (merged == null) {
+            // another master key with the same key id
+            return RESULT_BAD;
+        }
+        if (merged == storedKeyRing) {
+            return RESULT_UNCHANGED;
+        }
+
+        long keyRingRowId = stored.mRowId;
+        mUpdateKeyRing.bindBlob(1, merged.getEncoded());
+        mUpdateKeyRing.bindLong(2, keyRingRowId);
+        mUpdateKeyRing.execute();
+        ++mRowCount;
+
+        // merged keys are new objects, unchanged ones are those of the stored key ring
+        LongSparseArray<Long> keyRowIds = queryKeyRowIds(keyRingRowId);
+        int rank = 0;
+        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(merged.getPublicKeys())) {
+            PGPPublicKey storedKey = storedKeyRing.getPublicKey(key.getKeyID());
+            Long keyRowId = keyRowIds.get(key.getKeyID());
+            if (storedKey == null || keyRowId == null) {
+                insertPublicKey(keyRingRowId, key, rank);
+            } else if (storedKey != key) {
+                updatePublicKey(keyRowId, key);
+            }
+            ++rank;
+        }
+
+        HashSet<String> storedUserIds = new HashSet<String>();
+        for (String userId : new IterableIterator<String>(
+                storedKeyRing.getPublicKey().getUserIDs())) {
+            storedUserIds.add(userId);
+        }
+        insertUserIds(keyRingRowId, merged.getPublicKey(), storedUserIds);
+        if (merged.getPublicKey() != storedKeyRing.getPublicKey()) {
+            // new user ids or signatures of the master key
+            replaceKeyRingSearch(keyRingRowId, merged.getPublicKey());
+        }
+
+        mChangedUris.add(KeyRings.buildPublicKeyRingsUri(Long.toString(keyRingRowId)));
+        return RESULT_UPDATED;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int writeKeyRing(PGPSecretKeyRing keyRing) throws IOException {
+        PGPSecretKey masterKey = keyRing.getSecretKey();
+        long masterKeyId = masterKey.getKeyID();
+        byte[] data = keyRing.getEncoded();
+
+        StoredKeyRing stored = queryKeyRing(masterKeyId, KeyTypes.SECRET);
+        if (stored != null && Arrays.equals(stored.mData, data)) {
+            return RESULT_UNCHANGED;
+        }
+
+        long oldRowId = -1;
+        if (stored != null) {
+            oldRowId = stored.mRowId;
+            deleteKeyRing(oldRowId);
+        }
+        long keyRingRowId = insertKeyRing(oldRowId, masterKeyId, KeyTypes.SECRET, data);
+
+        int rank = 0;
+        for (PGPSecretKey key : new IterableIterator<PGPSecretKey>(keyRing.getSecretKeys())) {
+            boolean hasPrivate = !(key.isMasterKey() && key.isPrivateKeyEmpty());
+
+            SQLiteStatement s = mInsertKey;
+            s.clearBindings();
+            s.bindLong(1, key.getKeyID());
+            s.bindLong(2, KeyTypes.SECRET);
+            bindBoolean(s, 3, key.isMasterKey());
+            s.bindLong(4, key.getPublicKey().getAlgorithm());
+            s.bindLong(5, key.getPublicKey().getBitStrength());
+            bindBoolean(s, 6, PgpKeyHelper.isCertificationKey(key) && hasPrivate);
+            bindBoolean(s, 7, PgpKeyHelper.isSigningKey(key) && hasPrivate);
+            bindBoolean(s, 8, PgpKeyHelper.isEncryptionKey(key));
+            bindBoolean(s, 9, key.getPublicKey().isRevoked());
+            s.bindLong(10, PgpKeyHelper.getCreationDate(key).getTime() / 1000);
+            bindDate(s, 11, PgpKeyHelper.getExpiryDate(key));
+            s.bindBlob(12, key.getEncoded());
+            s.bindLong(13, rank);
+            s.bindBlob(14, key.getPublicKey().getFingerprint());
+            s.bindLong(15, keyRingRowId);
+            s.executeInsert();
+            ++mRowCount;
+            ++rank;
+        }
+
+        insertUserIds(keyRingRowId, masterKey.getPublicKey(), null);
+        replaceKeyRingSearch(keyRingRowId, masterKey.getPublicKey());
+
+        mChangedUris.add(KeyRings.buildSecretKeyRingsUri(Long.toString(keyRingRowId)));
+        return stored == null ? RESULT_ADDED : RESULT_UPDATED;
+    }
+
+    private static class StoredKeyRing {
+        final long mRowId;
+        final byte[] mData;
+
+        StoredKeyRing(long rowId, byte[] data) {
+            mRowId = rowId;
+            mData = data;
+        }
+    }
+
+    /**
+     * @return the stored key ring, null if there is none
+     */
+    private StoredKeyRing queryKeyRing(long masterKeyId, int keyType) {
+        Cursor cursor = mDatabase.rawQuery(SELECT_KEY_RING,
+                new String[]{Long.toString(masterKeyId), Integer.toString(keyType)});
+        try {
+            if (cursor.moveToFirst()) {
+                return new StoredKeyRing(cursor.getLong(0), cursor.getBlob(1));
+            }
+            return null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return the stored public key, null if there is none
+     */
+    private PGPPublicKey queryPublicKey(long keyId) {
+        Cursor cursor = mDatabase.rawQuery(SELECT_PUBLIC_KEY_DATA,
+                new String[]{Long.toString(keyId), Integer.toString(KeyTypes.PUBLIC)});
+        try {
+            if (cursor.moveToFirst()) {
+                return new PGPPublicKeyRing(cursor.getBlob(0), new JcaKeyFingerprintCalculator())
+                        .getPublicKey();
+            }
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Stored key " + PgpKeyHelper.convertKeyIdToHex(keyId)
+                    + " is broken", e);
+        } finally {
+            cursor.close();
+        }
+        return null;
+    }
+
+    /**
+     * @return key id -> _ID of the keys stored for this key ring
+     */
+    private LongSparseArray<Long> queryKeyRowIds(long keyRingRowId) {
+        LongSparseArray<Long> keyRowIds = new LongSparseArray<Long>();
+        Cursor cursor = mDatabase.rawQuery(SELECT_KEY_ROW_IDS,
+                new String[]{Long.toString(keyRingRowId)});
+        try {
+            while (cursor.moveToNext()) {
+                keyRowIds.put(cursor.getLong(1), cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return keyRowIds;
+    }
+
+    private void deleteKeyRing(long rowId) {
+        mDeleteKeyRing.bindLong(1, rowId);
+        mDeleteKeyRing.execute();
+    }
+
+    private long insertKeyRing(long rowId, long masterKeyId, int keyType, byte[] keyRingData) {
+        SQLiteStatement s = mInsertKeyRing;
+        // use exactly the same _ID again to replace key in-place, see ProviderHelper.saveKeyRing
+        if (rowId != -1) {
+            s.bindLong(1, rowId);
+        } else {
+            s.bindNull(1);
+        }
+        s.bindLong(2, masterKeyId);
+        s.bindLong(3, keyType);
+        s.bindBlob(4, keyRingData);
+        ++mRowCount;
+        return s.executeInsert();
+    }
+
+    private void insertPublicKey(long keyRingRowId, PGPPublicKey key, int rank)
+            throws IOException {
+        SQLiteStatement s = mInsertKey;
+        s.clearBindings();
+        s.bindLong(1, key.getKeyID());
+        s.bindLong(2, KeyTypes.PUBLIC);
+        bindBoolean(s, 3, key.isMasterKey());
+        s.bindLong(4, key.getAlgorithm());
+        s.bindLong(5, key.getBitStrength());
+        // 6: can certify is not stored for public keys
+        bindBoolean(s, 7, PgpKeyHelper.isSigningKey(key));
+        bindBoolean(s, 8, PgpKeyHelper.isEncryptionKey(key));
+        bindBoolean(s, 9, key.isRevoked());
+        s.bindLong(10, PgpKeyHelper.getCreationDate(key).getTime() / 1000);
+        bindDate(s, 11, PgpKeyHelper.getExpiryDate(key));
+        s.bindBlob(12, key.getEncoded());
+        s.bindLong(13, rank);
+        s.bindBlob(14, key.getFingerprint());
+        s.bindLong(15, keyRingRowId);
+        s.executeInsert();
+        ++mRowCount;
+    }
+
+    private void updatePublicKey(long keyRowId, PGPPublicKey key) throws IOException {
+        SQLiteStatement s = mUpdatePublicKey;
+        s.clearBindings();
+        bindBoolean(s, 1, PgpKeyHelper.isSigningKey(key));
+        bindBoolean(s, 2, PgpKeyHelper.isEncryptionKey(key));
+        bindBoolean(s, 3, key.isRevoked());
+        bindDate(s, 4, PgpKeyHelper.getExpiryDate(key));
+        s.bindBlob(5, key.getEncoded());
+        s.bindLong(6, keyRowId);
+        s.execute();
+        ++mRowCount;
+    }
+
+    /**
+     * Inserts the user ids of masterKey with their rank and their emails, except those in
+     * storedUserIds
+     */
+    @SuppressWarnings("unchecked")
+    private void insertUserIds(long keyRingRowId, PGPPublicKey masterKey,
+                               HashSet<String> storedUserIds) {
+        int rank = 0;
+        for (String userId : new IterableIterator<String>(masterKey.getUserIDs())) {
+            if (storedUserIds == null || !storedUserIds.contains(userId)) {
+                mInsertUserId.bindLong(1, keyRingRowId);
+                mInsertUserId.bindString(2, userId);
+                mInsertUserId.bindLong(3, rank);
+                mInsertUserId.executeInsert();
+                ++mRowCount;
+
+                String email = PgpKeyHelper.getNormalizedEmail(userId);
+                if (email != null) {
+                    mInsertUserIdEmail.bindString(1, email);
+                    mInsertUserIdEmail.bindLong(2, keyRingRowId);
+                    mInsertUserIdEmail.executeInsert();
+                    ++mRowCount;
+                }
+            }
+            ++rank;
+        }
+    }
+
+    /**
+     * Writes the row of the key ring in the search index, the old one is deleted first as it is
+     * not removed by a trigger when the key ring is only updated
+     */
+    @SuppressWarnings("unchecked")
+    private void replaceKeyRingSearch(long keyRingRowId, PGPPublicKey masterKey) {
+        mDeleteKeyRingSearch.bindLong(1, keyRingRowId);
+        mDeleteKeyRingSearch.execute();
+
+        KeyRingSearchIndex.bind(mInsertKeyRingSearch, keyRingRowId,
+                KeyRingSearchIndex.buildValues(masterKey.getKeyID(), masterKey.getFingerprint(),
+                        new IterableIterator<String>(masterKey.getUserIDs())));
+        mInsertKeyRingSearch.executeInsert();
+        ++mRowCount;
+    }
+
+    private static void bindBoolean(SQLiteStatement statement, int index, boolean value) {
+        statement.bindLong(index, value ? 1 : 0);
+    }
+
+    private static void bindDate(SQLiteStatement statement, int index, Date date) {
+        if (date != null) {
+            statement.bindLong(index, date.getTime() / 1000);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+}
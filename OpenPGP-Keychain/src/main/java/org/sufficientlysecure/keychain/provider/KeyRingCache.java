@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.support.v4.util.LongSparseArray;
+import android.support.v4.util.LruCache;
+import org.spongycastle.openpgp.PGPKeyRing;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyTypes;
+import org.sufficientlysecure.keychain.util.IterableIterator;
+
+import java.util.ArrayList;
+
+/**
+ * Singleton cache of parsed PGPPublicKeyRing and PGPSecretKeyRing objects, so the key_ring_data
+ * blob does not have to be parsed again on every lookup.
+ * <p/>
+ * Key rings are cached by master key id, an additional index maps the ids of all (sub)keys of the
+ * cached key rings to their master key id. The cache is bounded by the size of the encoded key
+ * rings.
+ * <p/>
+ * KeychainProvider invalidates the cache of its own process as part of every write, other
+ * processes are invalidated when they receive the change notification. A key ring read from the
+ * database is only cached if nothing was invalidated since the read started, see getGeneration().
+ */
+public class KeyRingCache {
+    /**
+     * Maximum size of all cached key rings, measured by their encoded size in bytes
+     */
+    private static final int MAX_SIZE = 2 * 1024 * 1024;
+
+    private static KeyRingCache sKeyRingCache;
+
+    private final KeyRingLruCache mPublicKeyRings = new KeyRingLruCache();
+    private final KeyRingLruCache mSecretKeyRings = new KeyRingLruCache();
+
+    private long mGeneration;
+
+    private long mHitCount;
+    private long mMissCount;
+
+    public static synchronized KeyRingCache getKeyRingCache(Context context) {
+        if (sKeyRingCache == null) {
+            sKeyRingCache = new KeyRingCache(context.getApplicationContext());
+        }
+        return sKeyRingCache;
+    }
+
+    private KeyRingCache(Context context) {
+        // invalidate on every change of key rings, also those done by other processes
+        context.getContentResolver().registerContentObserver(KeyRings.CONTENT_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidateAll();
+                    }
+                });
+    }
+
+    private static class Entry {
+        final PGPKeyRing mKeyRing;
+        final long[] mKeyIds;
+        final int mSize;
+
+        Entry(PGPKeyRing keyRing, long[] keyIds, int size) {
+            mKeyRing = keyRing;
+            mKeyIds = keyIds;
+            mSize = size;
+        }
+    }
+
+    /**
+     * Cache of one key type with the index of its key ids, which is pruned whenever a key ring
+     * leaves the cache, by eviction, invalidation or replacement
+     */
+    private static class KeyRingLruCache extends LruCache<Long, Entry> {
+        // key id -> master key id
+        final LongSparseArray<Long> mMasterKeyIds = new LongSparseArray<Long>();
+
+        KeyRingLruCache() {
+            super(MAX_SIZE);
+        }
+
+        @Override
+        protected int sizeOf(Long masterKeyId, Entry entry) {
+            return entry.mSize;
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, Long masterKeyId, Entry oldEntry,
+                                    Entry newEntry) {
+            for (long keyId : oldEntry.mKeyIds) {
+                if (masterKeyId.equals(mMasterKeyIds.get(keyId))) {
+                    mMasterKeyIds.delete(keyId);
+                }
+            }
+        }
+    }
+
+    private KeyRingLruCache getCache(int keyType) {
+        return (keyType == KeyTypes.SECRET) ? mSecretKeyRings : mPublicKeyRings;
+    }
+
+    /**
+     * Returns cached key ring by master key id or null if it is not cached
+     */
+    public synchronized PGPKeyRing getByMasterKeyId(int keyType, long masterKeyId) {
+        Entry entry = getCache(keyType).get(masterKeyId);
+        if (entry == null) {
+            ++mMissCount;
+            return null;
+        }
+        ++mHitCount;
+        return entry.mKeyRing;
+    }
+
+    /**
+     * Returns cached key ring containing a key with this key id or null if it is not cached
+     */
+    public synchronized PGPKeyRing getByKeyId(int keyType, long keyId) {
+        Long masterKeyId = getCache(keyType).mMasterKeyIds.get(keyId);
+        if (masterKeyId == null) {
+            ++mMissCount;
+            return null;
+        }
+        return getByMasterKeyId(keyType, masterKeyId);
+    }
+
+    /**
+     * Changes on every invalidation. Get it before reading a key ring from the database and pass
+     * it to put().
+     */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Adds a parsed key ring to the cache, unless the cache was invalidated after it was read
+     *
+     * @param size       encoded size of key ring in bytes
+     * @param generation result of getGeneration() before the key ring was read
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void put(int keyType, PGPKeyRing keyRing, int size, long generation) {
+        if (generation != mGeneration) {
+            return;
+        }
+
+        long masterKeyId = keyRing.getPublicKey().getKeyID();
+        ArrayList<Long> keyIds = new ArrayList<Long>();
+        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(keyRing.getPublicKeys())) {
+            keyIds.add(key.getKeyID());
+        }
+        long[] keyIdArray = new long[keyIds.size()];
+        for (int i = 0; i < keyIdArray.length; ++i) {
+            keyIdArray[i] = keyIds.get(i);
+        }
+
+        // put first, replacing an entry removes the index entries of the old key ring
+        KeyRingLruCache cache = getCache(keyType);
+        cache.put(masterKeyId, new Entry(keyRing, keyIdArray, size));
+        for (long keyId : keyIdArray) {
+            cache.mMasterKeyIds.put(keyId, masterKeyId);
+        }
+    }
+
+    /**
+     * Removes public and secret key ring with this master key id from cache
+     */
+    public synchronized void invalidate(long masterKeyId) {
+        ++mGeneration;
+        mPublicKeyRings.remove(masterKeyId);
+        mSecretKeyRings.remove(masterKeyId);
+    }
+
+    public synchronized void invalidateAll() {
+        ++mGeneration;
+        mPublicKeyRings.evictAll();
+        mSecretKeyRings.evictAll();
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "KeyRingCache[hits=" + mHitCount + ", misses=" + mMissCount
+                + ", public=" + mPublicKeyRings.size() + "/" + mPublicKeyRings.maxSize()
+                + ", secret=" + mSecretKeyRings.size() + "/" + mSecretKeyRings.maxSize() + "]";
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsSearchColumns;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+
+import java.util.Locale;
+
+/**
+ * Rows of the full text index used to search the key lists while typing. There is one row per
+ * key ring with the key ring's _ID as docid, holding the names, emails and comments of all its
+ * user ids and the fingerprint, long and short key id of its master key in hex.
+ * <p/>
+ * The index is searched with prefix terms, so "max exa" finds
+ * "Max Mustermann <max@example.com>" without matching every user id with LIKE '%...%'.
+ */
+class KeyRingSearchIndex {
+
+    /**
+     * @param fingerprint may be null for key rings stored before fingerprints were saved
+     * @return values for the columns of KeyRingsSearchColumns, never null
+     */
+    static ContentValues buildValues(long masterKeyId, byte[] fingerprint,
+                                     Iterable<String> userIds) {
+        StringBuilder names = new StringBuilder();
+        StringBuilder emails = new StringBuilder();
+        StringBuilder comments = new StringBuilder();
+        for (String userId : userIds) {
+            String[] parts = PgpKeyHelper.splitUserId(userId);
+            append(names, parts[0]);
+            append(emails, parts[1]);
+            append(comments, parts[2]);
+        }
+
+        // the short key id is a separate word, so it can be found by prefix, too
+        String keyId = String.format(Locale.US, "%016x", masterKeyId);
+        StringBuilder keyIds = new StringBuilder();
+        append(keyIds, keyId);
+        append(keyIds, keyId.substring(8));
+        if (fingerprint != null) {
+            append(keyIds, PgpKeyHelper.convertFingerprintToHex(fingerprint));
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(KeyRingsSearchColumns.NAME, names.toString());
+        values.put(KeyRingsSearchColumns.EMAIL, emails.toString());
+        values.put(KeyRingsSearchColumns.COMMENT, comments.toString());
+        values.put(KeyRingsSearchColumns.KEY_IDS, keyIds.toString());
+        return values;
+    }
+
+    private static void append(StringBuilder words, String word) {
+        if (word == null || word.length() == 0) {
+            return;
+        }
+        if (words.length() != 0) {
+            words.append(' ');
+        }
+        words.append(word);
+    }
+
+    /**
+     * Replaces the row of a key ring
+     */
+    static void replace(SQLiteDatabase db, long keyRingRowId, ContentValues values) {
+        db.delete(Tables.KEY_RINGS_SEARCH, "docid = ?",
+                new String[]{Long.toString(keyRingRowId)});
+
+        ContentValues row = new ContentValues(values);
+        row.put("docid", keyRingRowId);
+        db.insertOrThrow(Tables.KEY_RINGS_SEARCH, null, row);
+    }
+
+    /**
+     * Binds a row to KeychainDatabase.INSERT_KEY_RING_SEARCH
+     */
+    static void bind(SQLiteStatement insert, long keyRingRowId, ContentValues values) {
+        insert.bindLong(1, keyRingRowId);
+        insert.bindString(2, values.getAsString(KeyRingsSearchColumns.NAME));
+        insert.bindString(3, values.getAsString(KeyRingsSearchColumns.EMAIL));
+        insert.bindString(4, values.getAsString(KeyRingsSearchColumns.COMMENT));
+        insert.bindString(5, values.getAsString(KeyRingsSearchColumns.KEY_IDS));
+    }
+
+    /**
+     * Turns what the user typed into a MATCH expression requiring every word as a prefix. Words
+     * are split like the "simple" tokenizer of the index does, a leading "0x" of key ids is
+     * dropped.
+     *
+     * @return null if the query contains no words
+     */
+    static String buildMatchQuery(String query) {
+        StringBuilder match = new StringBuilder();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= query.length(); ++i) {
+            char c = i < query.length() ? query.charAt(i) : ' ';
+            if (c >= 128 || Character.isLetterOrDigit(c)) {
+                // the tokenizer only folds ASCII, lower case also keeps AND, OR, NOT and NEAR
+                // from being read as operators
+                word.append(c < 128 ? Character.toLowerCase(c) : c);
+                continue;
+            }
+            if (word.length() > 2 && word.charAt(0) == '0' && word.charAt(1) == 'x') {
+                word.delete(0, 2);
+            }
+            if (word.length() != 0) {
+                if (match.length() != 0) {
+                    match.append(' ');
+                }
+                match.append(word).append('*');
+                word.setLength(0);
+            }
+        }
+        return match.length() != 0 ? match.toString() : null;
+    }
+}
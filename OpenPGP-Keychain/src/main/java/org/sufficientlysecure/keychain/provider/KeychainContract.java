@@ -53,6 +53,19 @@ public class KeychainContract {
         String RANK = "rank";
     }
 
+    interface UserIdEmailsColumns {
+        String KEY_RING_ROW_ID = "key_ring_row_id"; // foreign key to key_rings._ID
+        String EMAIL = "email"; // lower case, see PgpKeyHelper.getNormalizedEmail
+    }
+
+    interface KeyRingsSearchColumns {
+        // words of all user ids of a key ring, see PgpKeyHelper.splitUserId
+        String NAME = "name";
+        String EMAIL = "email";
+        String COMMENT = "comment";
+        String KEY_IDS = "key_ids"; // long and short key id and fingerprint of the master key
+    }
+
     interface ApiAppsColumns {
         String PACKAGE_NAME = "package_name";
         String PACKAGE_SIGNATURE = "package_signature";
@@ -80,11 +93,16 @@ public class KeychainContract {
 
     public static final String PATH_BY_MASTER_KEY_ID = "master_key_id";
     public static final String PATH_BY_KEY_ID = "key_id";
+    public static final String PATH_BY_KEY_IDS = "key_ids";
     public static final String PATH_BY_EMAILS = "emails";
     public static final String PATH_BY_LIKE_EMAIL = "like_email";
 
     public static final String PATH_USER_IDS = "user_ids";
+    public static final String PATH_USER_ID_EMAILS = "user_id_emails";
     public static final String PATH_KEYS = "keys";
+    public static final String PATH_SEARCH = "search";
+
+    public static final String QUERY_SEARCH = "search";
 
     public static final String BASE_API_APPS = "api_apps";
     public static final String PATH_BY_PACKAGE_NAME = "package_name";
@@ -107,10 +125,24 @@ public class KeychainContract {
             return CONTENT_URI;
         }
 
+        /**
+         * Key rings with a user id or master key id containing all words of query as prefixes,
+         * e.g. "max exa" finds "Max Mustermann <max@example.com>" and "0x1234" finds the key
+         * 0x12345678
+         */
+        public static Uri buildUnifiedKeyRingsSearchUri(String query) {
+            return CONTENT_URI.buildUpon().appendQueryParameter(QUERY_SEARCH, query).build();
+        }
+
         public static Uri buildPublicKeyRingsUri() {
             return CONTENT_URI.buildUpon().appendPath(PATH_PUBLIC).build();
         }
 
+        public static Uri buildPublicKeyRingsSearchUri(String query) {
+            return buildPublicKeyRingsUri().buildUpon().appendQueryParameter(QUERY_SEARCH, query)
+                    .build();
+        }
+
         public static Uri buildPublicKeyRingsUri(String keyRingRowId) {
             return CONTENT_URI.buildUpon().appendPath(PATH_PUBLIC).appendPath(keyRingRowId).build();
         }
@@ -125,6 +157,11 @@ public class KeychainContract {
                     .appendPath(keyId).build();
         }
 
+        public static Uri buildPublicKeyRingsByKeyIdsUri(String keyIds) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_PUBLIC).appendPath(PATH_BY_KEY_IDS)
+                    .appendPath(keyIds).build();
+        }
+
         public static Uri buildPublicKeyRingsByEmailsUri(String emails) {
             return CONTENT_URI.buildUpon().appendPath(PATH_PUBLIC).appendPath(PATH_BY_EMAILS)
                     .appendPath(emails).build();
@@ -139,6 +176,11 @@ public class KeychainContract {
             return CONTENT_URI.buildUpon().appendPath(PATH_SECRET).build();
         }
 
+        public static Uri buildSecretKeyRingsSearchUri(String query) {
+            return buildSecretKeyRingsUri().buildUpon().appendQueryParameter(QUERY_SEARCH, query)
+                    .build();
+        }
+
         public static Uri buildSecretKeyRingsUri(String keyRingRowId) {
             return CONTENT_URI.buildUpon().appendPath(PATH_SECRET).appendPath(keyRingRowId).build();
         }
@@ -153,6 +195,11 @@ public class KeychainContract {
                     .appendPath(keyId).build();
         }
 
+        public static Uri buildSecretKeyRingsByKeyIdsUri(String keyIds) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SECRET).appendPath(PATH_BY_KEY_IDS)
+                    .appendPath(keyIds).build();
+        }
+
         public static Uri buildSecretKeyRingsByEmailsUri(String emails) {
             return CONTENT_URI.buildUpon().appendPath(PATH_SECRET).appendPath(PATH_BY_EMAILS)
                     .appendPath(emails).build();
@@ -162,6 +209,13 @@ public class KeychainContract {
             return CONTENT_URI.buildUpon().appendPath(PATH_SECRET).appendPath(PATH_BY_LIKE_EMAIL)
                     .appendPath(emails).build();
         }
+
+        /**
+         * Row of the key ring in the search index, only used internally to update it
+         */
+        static Uri buildSearchIndexUri(Uri keyRingUri) {
+            return keyRingUri.buildUpon().appendPath(PATH_SEARCH).build();
+        }
     }
 
     public static class Keys implements KeysColumns, BaseColumns {
@@ -250,6 +304,28 @@ public class KeychainContract {
         }
     }
 
+    public static class UserIdEmails implements UserIdEmailsColumns, BaseColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_KEY_RINGS).build();
+
+        /**
+         * Use if multiple items get returned
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.thialfihar.apg.user_id_email";
+
+        /**
+         * Looks up all given emails in one query. Returns one row with EMAIL and
+         * KeyRings.MASTER_KEY_ID per public key ring having a user id with one of the emails,
+         * emails without key ring are missing in the result.
+         *
+         * @param emails comma separated, compared case insensitively
+         */
+        public static Uri buildPublicLookupUri(String emails) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_PUBLIC).appendPath(PATH_USER_ID_EMAILS)
+                    .appendPath(emails).build();
+        }
+    }
+
     public static class ApiApps implements ApiAppsColumns, BaseColumns {
         public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
                 .appendPath(BASE_API_APPS).build();
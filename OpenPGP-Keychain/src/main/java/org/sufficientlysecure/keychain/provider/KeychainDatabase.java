@@ -18,24 +18,35 @@
 package org.sufficientlysecure.keychain.provider;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.BaseColumns;
 import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsSearchColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeysColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserIdEmailsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserIdsColumns;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+
 public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "apg.db";
-    private static final int DATABASE_VERSION = 7;
+    private static final int DATABASE_VERSION = 10;
 
     public interface Tables {
         String KEY_RINGS = "key_rings";
         String KEYS = "keys";
         String USER_IDS = "user_ids";
+        String USER_ID_EMAILS = "user_id_emails";
+        String KEY_RINGS_SEARCH = "key_rings_search";
         String API_APPS = "api_apps";
     }
 
@@ -73,6 +84,62 @@ public class KeychainDatabase extends SQLiteOpenHelper {
             + UserIdsColumns.KEY_RING_ROW_ID + ") REFERENCES " + Tables.KEY_RINGS + "("
             + BaseColumns._ID + ") ON DELETE CASCADE)";
 
+    /**
+     * Lower case emails of the user ids, one row per email and key ring, so emails can be looked
+     * up by the index instead of matching all user ids with LIKE
+     */
+    private static final String CREATE_USER_ID_EMAILS = "CREATE TABLE IF NOT EXISTS "
+            + Tables.USER_ID_EMAILS + " (" + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + UserIdEmailsColumns.EMAIL + " TEXT NOT NULL, "
+            + UserIdEmailsColumns.KEY_RING_ROW_ID + " INTEGER NOT NULL, FOREIGN KEY("
+            + UserIdEmailsColumns.KEY_RING_ROW_ID + ") REFERENCES " + Tables.KEY_RINGS + "("
+            + BaseColumns._ID + ") ON DELETE CASCADE)";
+
+    private static final String[] CREATE_USER_ID_EMAILS_INDEXES = {
+            "CREATE UNIQUE INDEX IF NOT EXISTS user_id_emails_email_idx ON " + Tables.USER_ID_EMAILS
+                    + " (" + UserIdEmailsColumns.EMAIL + ", "
+                    + UserIdEmailsColumns.KEY_RING_ROW_ID + ")",
+            // for ON DELETE CASCADE
+            "CREATE INDEX IF NOT EXISTS user_id_emails_key_ring_row_id_idx ON "
+                    + Tables.USER_ID_EMAILS + " (" + UserIdEmailsColumns.KEY_RING_ROW_ID + ")"
+    };
+
+    /**
+     * Adds the email of a user id, nothing if the key ring already has a user id with this email
+     */
+    static final String INSERT_USER_ID_EMAIL = "INSERT OR IGNORE INTO " + Tables.USER_ID_EMAILS
+            + " (" + UserIdEmailsColumns.EMAIL + ", " + UserIdEmailsColumns.KEY_RING_ROW_ID
+            + ") VALUES (?, ?)";
+
+    /**
+     * Full text index of the key rings, see KeyRingSearchIndex. FTS4 with an index of the first
+     * two and three letters of all words makes short prefix queries fast, older SQLite versions
+     * (before Android 4.1) do not support this and get a plain FTS3 table.
+     */
+    private static final String CREATE_KEY_RINGS_SEARCH_FTS4 = "CREATE VIRTUAL TABLE "
+            + Tables.KEY_RINGS_SEARCH + " USING fts4(" + KeyRingsSearchColumns.NAME + ", "
+            + KeyRingsSearchColumns.EMAIL + ", " + KeyRingsSearchColumns.COMMENT + ", "
+            + KeyRingsSearchColumns.KEY_IDS + ", prefix=\"2,3\")";
+
+    private static final String CREATE_KEY_RINGS_SEARCH_FTS3 = "CREATE VIRTUAL TABLE "
+            + Tables.KEY_RINGS_SEARCH + " USING fts3(" + KeyRingsSearchColumns.NAME + ", "
+            + KeyRingsSearchColumns.EMAIL + ", " + KeyRingsSearchColumns.COMMENT + ", "
+            + KeyRingsSearchColumns.KEY_IDS + ")";
+
+    // virtual tables can not have foreign keys, so there is no ON DELETE CASCADE
+    private static final String CREATE_KEY_RINGS_SEARCH_DELETE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS key_rings_search_delete AFTER DELETE ON "
+                    + Tables.KEY_RINGS + " BEGIN DELETE FROM " + Tables.KEY_RINGS_SEARCH
+                    + " WHERE docid = old." + BaseColumns._ID + "; END";
+
+    static final String DELETE_KEY_RING_SEARCH = "DELETE FROM " + Tables.KEY_RINGS_SEARCH
+            + " WHERE docid = ?";
+
+    static final String INSERT_KEY_RING_SEARCH = "INSERT INTO " + Tables.KEY_RINGS_SEARCH
+            + " (docid, " + KeyRingsSearchColumns.NAME + ", " + KeyRingsSearchColumns.EMAIL + ", "
+            + KeyRingsSearchColumns.COMMENT + ", " + KeyRingsSearchColumns.KEY_IDS
+            + ") VALUES (?, ?, ?, ?, ?)";
+
     private static final String CREATE_API_APPS = "CREATE TABLE IF NOT EXISTS " + Tables.API_APPS
             + " (" + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
             + ApiAppsColumns.PACKAGE_NAME + " TEXT UNIQUE, "
@@ -82,7 +149,37 @@ public class KeychainDatabase extends SQLiteOpenHelper {
             + ApiAppsColumns.HASH_ALORITHM + " INTEGER, "
             + ApiAppsColumns.COMPRESSION + " INTEGER)";
 
-    KeychainDatabase(Context context) {
+    /**
+     * Indexes used by the lookups in KeychainProvider, most importantly the key id and master key
+     * id lookups done on every decrypt and verify
+     */
+    private static final String[] CREATE_INDEXES = {
+            "CREATE INDEX IF NOT EXISTS keys_key_id_idx ON " + Tables.KEYS + " ("
+                    + KeysColumns.KEY_ID + ", " + KeysColumns.TYPE + ")",
+            "CREATE INDEX IF NOT EXISTS keys_key_ring_row_id_idx ON " + Tables.KEYS + " ("
+                    + KeysColumns.KEY_RING_ROW_ID + ", " + KeysColumns.RANK + ")",
+            "CREATE INDEX IF NOT EXISTS keys_fingerprint_idx ON " + Tables.KEYS + " ("
+                    + KeysColumns.FINGERPRINT + ")",
+            "CREATE INDEX IF NOT EXISTS key_rings_master_key_id_idx ON " + Tables.KEY_RINGS + " ("
+                    + KeyRingsColumns.MASTER_KEY_ID + ", " + KeyRingsColumns.TYPE + ")",
+            "CREATE INDEX IF NOT EXISTS user_ids_key_ring_row_id_idx ON " + Tables.USER_IDS + " ("
+                    + UserIdsColumns.KEY_RING_ROW_ID + ", " + UserIdsColumns.RANK + ")"
+    };
+
+    private static KeychainDatabase sKeychainDatabase;
+
+    /**
+     * Shared instance, so KeychainProvider and direct writers like KeyRingBatchWriter use the
+     * same connection and its locking
+     */
+    static synchronized KeychainDatabase getKeychainDatabase(Context context) {
+        if (sKeychainDatabase == null) {
+            sKeychainDatabase = new KeychainDatabase(context.getApplicationContext());
+        }
+        return sKeychainDatabase;
+    }
+
+    private KeychainDatabase(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
@@ -94,6 +191,98 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         db.execSQL(CREATE_KEYS);
         db.execSQL(CREATE_USER_IDS);
         db.execSQL(CREATE_API_APPS);
+        createIndexes(db);
+        createUserIdEmails(db);
+        createKeyRingsSearch(db);
+    }
+
+    private static void createIndexes(SQLiteDatabase db) {
+        for (String createIndex : CREATE_INDEXES) {
+            db.execSQL(createIndex);
+        }
+    }
+
+    private static void createUserIdEmails(SQLiteDatabase db) {
+        db.execSQL(CREATE_USER_ID_EMAILS);
+        for (String createIndex : CREATE_USER_ID_EMAILS_INDEXES) {
+            db.execSQL(createIndex);
+        }
+    }
+
+    /**
+     * Fills the user_id_emails table from the stored user ids
+     */
+    private static void insertUserIdEmails(SQLiteDatabase db) {
+        Cursor cursor = db.query(Tables.USER_IDS, new String[]{UserIdsColumns.KEY_RING_ROW_ID,
+                UserIdsColumns.USER_ID}, null, null, null, null, null);
+        SQLiteStatement insert = db.compileStatement(INSERT_USER_ID_EMAIL);
+        try {
+            while (cursor.moveToNext()) {
+                String email = PgpKeyHelper.getNormalizedEmail(cursor.getString(1));
+                if (email == null) {
+                    continue;
+                }
+                insert.bindString(1, email);
+                insert.bindLong(2, cursor.getLong(0));
+                insert.executeInsert();
+            }
+        } finally {
+            insert.close();
+            cursor.close();
+        }
+    }
+
+    private static void createKeyRingsSearch(SQLiteDatabase db) {
+        try {
+            db.execSQL(CREATE_KEY_RINGS_SEARCH_FTS4);
+        } catch (SQLException e) {
+            Log.w(Constants.TAG, "FTS4 not supported, using FTS3 for the key search", e);
+            db.execSQL(CREATE_KEY_RINGS_SEARCH_FTS3);
+        }
+        db.execSQL(CREATE_KEY_RINGS_SEARCH_DELETE_TRIGGER);
+    }
+
+    /**
+     * Fills the key_rings_search table from the stored user ids and master keys
+     */
+    private static void insertKeyRingsSearch(SQLiteDatabase db) {
+        HashMap<Long, ArrayList<String>> userIds = new HashMap<Long, ArrayList<String>>();
+        Cursor cursor = db.query(Tables.USER_IDS, new String[]{UserIdsColumns.KEY_RING_ROW_ID,
+                UserIdsColumns.USER_ID}, null, null, null, null, UserIdsColumns.RANK);
+        try {
+            while (cursor.moveToNext()) {
+                ArrayList<String> keyRingUserIds = userIds.get(cursor.getLong(0));
+                if (keyRingUserIds == null) {
+                    keyRingUserIds = new ArrayList<String>();
+                    userIds.put(cursor.getLong(0), keyRingUserIds);
+                }
+                keyRingUserIds.add(cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        cursor = db.rawQuery("SELECT " + Tables.KEY_RINGS + "." + BaseColumns._ID + ", "
+                + Tables.KEY_RINGS + "." + KeyRingsColumns.MASTER_KEY_ID + ", " + Tables.KEYS + "."
+                + KeysColumns.FINGERPRINT + " FROM " + Tables.KEY_RINGS + " LEFT JOIN "
+                + Tables.KEYS + " ON (" + Tables.KEYS + "." + KeysColumns.KEY_RING_ROW_ID + " = "
+                + Tables.KEY_RINGS + "." + BaseColumns._ID + " AND " + Tables.KEYS + "."
+                + KeysColumns.RANK + " = 0)", null);
+        SQLiteStatement insert = db.compileStatement(INSERT_KEY_RING_SEARCH);
+        try {
+            while (cursor.moveToNext()) {
+                ArrayList<String> keyRingUserIds = userIds.get(cursor.getLong(0));
+                if (keyRingUserIds == null) {
+                    keyRingUserIds = new ArrayList<String>();
+                }
+                KeyRingSearchIndex.bind(insert, cursor.getLong(0), KeyRingSearchIndex.buildValues(
+                        cursor.getLong(1), cursor.getBlob(2), keyRingUserIds));
+                insert.executeInsert();
+            }
+        } finally {
+            insert.close();
+            cursor.close();
+        }
     }
 
     @Override
@@ -133,6 +322,20 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                     db.execSQL("ALTER TABLE " + Tables.KEYS + " ADD COLUMN " + KeysColumns.FINGERPRINT
                             + " BLOB;");
                     break;
+                case 7:
+                    // new indexes on key_id, master_key_id, fingerprint and rank columns
+                    createIndexes(db);
+                    break;
+                case 8:
+                    // new table: user_id_emails
+                    createUserIdEmails(db);
+                    insertUserIdEmails(db);
+                    break;
+                case 9:
+                    // new table: key_rings_search
+                    createKeyRingsSearch(db);
+                    insertKeyRingsSearch(db);
+                    break;
                 default:
                     break;
 
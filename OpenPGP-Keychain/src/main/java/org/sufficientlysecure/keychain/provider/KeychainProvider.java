@@ -29,12 +29,15 @@ import android.net.Uri;
 import android.provider.BaseColumns;
 import android.text.TextUtils;
 import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
 import org.sufficientlysecure.keychain.provider.KeychainContract.*;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 
 public class KeychainProvider extends ContentProvider {
     // public static final String ACTION_BROADCAST_DATABASE_CHANGE = Constants.PACKAGE_NAME
@@ -49,6 +52,8 @@ public class KeychainProvider extends ContentProvider {
     private static final int PUBLIC_KEY_RING_BY_KEY_ID = 104;
     private static final int PUBLIC_KEY_RING_BY_EMAILS = 105;
     private static final int PUBLIC_KEY_RING_BY_LIKE_EMAIL = 106;
+    private static final int PUBLIC_KEY_RING_BY_KEY_IDS = 107;
+    private static final int PUBLIC_KEY_RING_USER_ID_EMAILS = 108;
 
     private static final int PUBLIC_KEY_RING_KEY = 111;
     private static final int PUBLIC_KEY_RING_KEY_BY_ROW_ID = 112;
@@ -57,12 +62,15 @@ public class KeychainProvider extends ContentProvider {
     private static final int PUBLIC_KEY_RING_USER_ID_BY_ROW_ID = 122;
     private static final int PUBLIC_KEY_RING_BY_MASTER_KEY_ID_USER_ID = 123;
 
+    private static final int PUBLIC_KEY_RING_SEARCH_INDEX = 131;
+
     private static final int SECRET_KEY_RING = 201;
     private static final int SECRET_KEY_RING_BY_ROW_ID = 202;
     private static final int SECRET_KEY_RING_BY_MASTER_KEY_ID = 203;
     private static final int SECRET_KEY_RING_BY_KEY_ID = 204;
     private static final int SECRET_KEY_RING_BY_EMAILS = 205;
     private static final int SECRET_KEY_RING_BY_LIKE_EMAIL = 206;
+    private static final int SECRET_KEY_RING_BY_KEY_IDS = 207;
 
     private static final int SECRET_KEY_RING_KEY = 211;
     private static final int SECRET_KEY_RING_KEY_BY_ROW_ID = 212;
@@ -70,6 +78,8 @@ public class KeychainProvider extends ContentProvider {
     private static final int SECRET_KEY_RING_USER_ID = 221;
     private static final int SECRET_KEY_RING_USER_ID_BY_ROW_ID = 222;
 
+    private static final int SECRET_KEY_RING_SEARCH_INDEX = 231;
+
     private static final int API_APPS = 301;
     private static final int API_APPS_BY_ROW_ID = 302;
     private static final int API_APPS_BY_PACKAGE_NAME = 303;
@@ -106,8 +116,10 @@ public class KeychainProvider extends ContentProvider {
          * key_rings/public/#
          * key_rings/public/master_key_id/_
          * key_rings/public/key_id/_
+         * key_rings/public/key_ids/_
          * key_rings/public/emails/_
          * key_rings/public/like_email/_
+         * key_rings/public/user_id_emails/_
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
@@ -120,6 +132,9 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                 + KeychainContract.PATH_PUBLIC + "/" + KeychainContract.PATH_BY_KEY_ID + "/*",
                 PUBLIC_KEY_RING_BY_KEY_ID);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_PUBLIC + "/" + KeychainContract.PATH_BY_KEY_IDS + "/*",
+                PUBLIC_KEY_RING_BY_KEY_IDS);
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                 + KeychainContract.PATH_PUBLIC + "/" + KeychainContract.PATH_BY_EMAILS + "/*",
                 PUBLIC_KEY_RING_BY_EMAILS);
@@ -129,6 +144,9 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                 + KeychainContract.PATH_PUBLIC + "/" + KeychainContract.PATH_BY_LIKE_EMAIL + "/*",
                 PUBLIC_KEY_RING_BY_LIKE_EMAIL);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_PUBLIC + "/" + KeychainContract.PATH_USER_ID_EMAILS + "/*",
+                PUBLIC_KEY_RING_USER_ID_EMAILS);
 
         /**
          * public keys
@@ -165,6 +183,17 @@ public class KeychainProvider extends ContentProvider {
                 + KeychainContract.PATH_BY_MASTER_KEY_ID + "/*/" + KeychainContract.PATH_USER_IDS,
                 PUBLIC_KEY_RING_BY_MASTER_KEY_ID_USER_ID);
 
+        /**
+         * public key ring row of the search index, insert only
+         *
+         * <pre>
+         * key_rings/public/#/search
+         * </pre>
+         */
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_PUBLIC + "/#/" + KeychainContract.PATH_SEARCH,
+                PUBLIC_KEY_RING_SEARCH_INDEX);
+
         /**
          * secret key rings
          *
@@ -173,6 +202,7 @@ public class KeychainProvider extends ContentProvider {
          * key_rings/secret/#
          * key_rings/secret/master_key_id/_
          * key_rings/secret/key_id/_
+         * key_rings/secret/key_ids/_
          * key_rings/secret/emails/_
          * key_rings/secret/like_email/_
          * </pre>
@@ -187,6 +217,9 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                 + KeychainContract.PATH_SECRET + "/" + KeychainContract.PATH_BY_KEY_ID + "/*",
                 SECRET_KEY_RING_BY_KEY_ID);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_SECRET + "/" + KeychainContract.PATH_BY_KEY_IDS + "/*",
+                SECRET_KEY_RING_BY_KEY_IDS);
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                 + KeychainContract.PATH_SECRET + "/" + KeychainContract.PATH_BY_EMAILS + "/*",
                 SECRET_KEY_RING_BY_EMAILS);
@@ -227,6 +260,17 @@ public class KeychainProvider extends ContentProvider {
                 + KeychainContract.PATH_SECRET + "/#/" + KeychainContract.PATH_USER_IDS + "/#",
                 SECRET_KEY_RING_USER_ID_BY_ROW_ID);
 
+        /**
+         * secret key ring row of the search index, insert only
+         *
+         * <pre>
+         * key_rings/secret/#/search
+         * </pre>
+         */
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_SECRET + "/#/" + KeychainContract.PATH_SEARCH,
+                SECRET_KEY_RING_SEARCH_INDEX);
+
         /**
          * API apps
          */
@@ -255,7 +299,7 @@ public class KeychainProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         mUriMatcher = buildUriMatcher();
-        mKeychainDatabase = new KeychainDatabase(getContext());
+        mKeychainDatabase = KeychainDatabase.getKeychainDatabase(getContext());
         return true;
     }
 
@@ -269,9 +313,11 @@ public class KeychainProvider extends ContentProvider {
             case PUBLIC_KEY_RING:
             case PUBLIC_KEY_RING_BY_EMAILS:
             case PUBLIC_KEY_RING_BY_LIKE_EMAIL:
+            case PUBLIC_KEY_RING_BY_KEY_IDS:
             case SECRET_KEY_RING:
             case SECRET_KEY_RING_BY_EMAILS:
             case SECRET_KEY_RING_BY_LIKE_EMAIL:
+            case SECRET_KEY_RING_BY_KEY_IDS:
                 return KeyRings.CONTENT_TYPE;
 
             case PUBLIC_KEY_RING_BY_ROW_ID:
@@ -280,6 +326,8 @@ public class KeychainProvider extends ContentProvider {
             case SECRET_KEY_RING_BY_ROW_ID:
             case SECRET_KEY_RING_BY_MASTER_KEY_ID:
             case SECRET_KEY_RING_BY_KEY_ID:
+            case PUBLIC_KEY_RING_SEARCH_INDEX:
+            case SECRET_KEY_RING_SEARCH_INDEX:
                 return KeyRings.CONTENT_ITEM_TYPE;
 
             case PUBLIC_KEY_RING_KEY:
@@ -299,6 +347,9 @@ public class KeychainProvider extends ContentProvider {
             case SECRET_KEY_RING_USER_ID_BY_ROW_ID:
                 return UserIds.CONTENT_ITEM_TYPE;
 
+            case PUBLIC_KEY_RING_USER_ID_EMAILS:
+                return UserIdEmails.CONTENT_TYPE;
+
             case API_APPS:
                 return ApiApps.CONTENT_TYPE;
 
@@ -326,11 +377,14 @@ public class KeychainProvider extends ContentProvider {
             case PUBLIC_KEY_RING_BY_KEY_ID:
             case PUBLIC_KEY_RING_BY_EMAILS:
             case PUBLIC_KEY_RING_BY_LIKE_EMAIL:
+            case PUBLIC_KEY_RING_BY_KEY_IDS:
             case PUBLIC_KEY_RING_KEY:
             case PUBLIC_KEY_RING_KEY_BY_ROW_ID:
             case PUBLIC_KEY_RING_USER_ID:
             case PUBLIC_KEY_RING_BY_MASTER_KEY_ID_USER_ID:
             case PUBLIC_KEY_RING_USER_ID_BY_ROW_ID:
+            case PUBLIC_KEY_RING_USER_ID_EMAILS:
+            case PUBLIC_KEY_RING_SEARCH_INDEX:
                 type = KeyTypes.PUBLIC;
                 break;
 
@@ -340,10 +394,12 @@ public class KeychainProvider extends ContentProvider {
             case SECRET_KEY_RING_BY_KEY_ID:
             case SECRET_KEY_RING_BY_EMAILS:
             case SECRET_KEY_RING_BY_LIKE_EMAIL:
+            case SECRET_KEY_RING_BY_KEY_IDS:
             case SECRET_KEY_RING_KEY:
             case SECRET_KEY_RING_KEY_BY_ROW_ID:
             case SECRET_KEY_RING_USER_ID:
             case SECRET_KEY_RING_USER_ID_BY_ROW_ID:
+            case SECRET_KEY_RING_SEARCH_INDEX:
                 type = KeyTypes.SECRET;
                 break;
 
@@ -379,6 +435,10 @@ public class KeychainProvider extends ContentProvider {
         projectionMap.put(KeysColumns.KEY_RING_ROW_ID, Tables.KEYS + "." + KeysColumns.KEY_RING_ROW_ID);
         projectionMap.put(KeysColumns.FINGERPRINT, Tables.KEYS + "." + KeysColumns.FINGERPRINT);
         projectionMap.put(KeysColumns.IS_REVOKED, Tables.KEYS + "." + KeysColumns.IS_REVOKED);
+        projectionMap.put(KeysColumns.KEY_ID, Tables.KEYS + "." + KeysColumns.KEY_ID);
+        projectionMap.put(KeysColumns.CAN_CERTIFY, Tables.KEYS + "." + KeysColumns.CAN_CERTIFY);
+        projectionMap.put(KeysColumns.CAN_SIGN, Tables.KEYS + "." + KeysColumns.CAN_SIGN);
+        projectionMap.put(KeysColumns.CAN_ENCRYPT, Tables.KEYS + "." + KeysColumns.CAN_ENCRYPT);
 
         projectionMap.put(UserIdsColumns.USER_ID, Tables.USER_IDS + "." + UserIdsColumns.USER_ID);
 
@@ -428,6 +488,59 @@ public class KeychainProvider extends ContentProvider {
         return projectionMap;
     }
 
+    private HashMap<String, String> getProjectionMapForUserIdEmails() {
+        HashMap<String, String> projectionMap = new HashMap<String, String>();
+
+        projectionMap.put(BaseColumns._ID, Tables.USER_ID_EMAILS + "." + BaseColumns._ID);
+        projectionMap.put(UserIdEmailsColumns.EMAIL, Tables.USER_ID_EMAILS + "."
+                + UserIdEmailsColumns.EMAIL);
+        projectionMap.put(KeyRingsColumns.MASTER_KEY_ID, Tables.KEY_RINGS + "."
+                + KeyRingsColumns.MASTER_KEY_ID);
+
+        return projectionMap;
+    }
+
+    /**
+     * Builds the list for an IN condition on the user_id_emails table
+     *
+     * @param emails comma separated
+     * @return null if there are no emails
+     */
+    private static String buildEmailsIn(String emails) {
+        StringBuilder emailsIn = new StringBuilder();
+        for (String chunk : emails.split(" *, *")) {
+            String email = PgpKeyHelper.normalizeEmail(chunk);
+            if (email == null) {
+                continue;
+            }
+            if (emailsIn.length() != 0) {
+                emailsIn.append(", ");
+            }
+            emailsIn.append(DatabaseUtils.sqlEscapeString(email));
+        }
+        return emailsIn.length() != 0 ? emailsIn.toString() : null;
+    }
+
+    /**
+     * Builds the condition for the search query parameter of key ring uris, answered by the
+     * full text index instead of matching the user ids with LIKE
+     *
+     * @return null if the uri has no search or it contains no words
+     */
+    private static String buildSearchWhere(Uri uri) {
+        String search = uri.getQueryParameter(KeychainContract.QUERY_SEARCH);
+        if (search == null) {
+            return null;
+        }
+        String match = KeyRingSearchIndex.buildMatchQuery(search);
+        if (match == null) {
+            return null;
+        }
+        return Tables.KEY_RINGS + "." + BaseColumns._ID + " IN (SELECT docid FROM "
+                + Tables.KEY_RINGS_SEARCH + " WHERE " + Tables.KEY_RINGS_SEARCH + " MATCH "
+                + DatabaseUtils.sqlEscapeString(match) + ")";
+    }
+
     /**
      * Builds default query for keyRings: KeyRings table is joined with UserIds and Keys
      */
@@ -479,15 +592,39 @@ public class KeychainProvider extends ContentProvider {
     /**
      * {@inheritDoc}
      */
-    @SuppressWarnings("deprecation")
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
         Log.v(Constants.TAG, "query(uri=" + uri + ", proj=" + Arrays.toString(projection) + ")");
 
-        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
         SQLiteDatabase db = mKeychainDatabase.getReadableDatabase();
 
+        String query = buildQuery(uri, projection, selection, selectionArgs, sortOrder);
+        Cursor c = db.rawQuery(query, selectionArgs);
+
+        // Tell the cursor what uri to watch, so it knows when its source data changes
+        c.setNotificationUri(getContext().getContentResolver(), uri);
+
+        if (Constants.DEBUG) {
+            Log.d(Constants.TAG, "Query: " + query);
+            for (String scan : getFullTableScans(db, query, selectionArgs, Tables.KEYS,
+                    Tables.USER_IDS, Tables.USER_ID_EMAILS)) {
+                Log.w(Constants.TAG, "Query plan uses full table scan: " + scan);
+            }
+            Log.d(Constants.TAG, "Cursor: " + DatabaseUtils.dumpCursorToString(c));
+        }
+
+        return c;
+    }
+
+    /**
+     * Builds the SQL statement query() runs for a uri
+     */
+    @SuppressWarnings("deprecation")
+    String buildQuery(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                      String sortOrder) {
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+
         int match = mUriMatcher.match(uri);
 
         // all query() parameters, for good measure
@@ -497,6 +634,11 @@ public class KeychainProvider extends ContentProvider {
             case UNIFIED_KEY_RING:
                 qb = buildKeyRingQuery(qb, match);
 
+                String unifiedSearchWhere = buildSearchWhere(uri);
+                if (unifiedSearchWhere != null) {
+                    qb.appendWhere(unifiedSearchWhere);
+                }
+
                 // GROUP BY so we don't get duplicates
                 groupBy = Tables.KEY_RINGS + "." + KeyRingsColumns.MASTER_KEY_ID;
 
@@ -511,6 +653,11 @@ public class KeychainProvider extends ContentProvider {
             case SECRET_KEY_RING:
                 qb = buildKeyRingQuery(qb, match);
 
+                String searchWhere = buildSearchWhere(uri);
+                if (searchWhere != null) {
+                    qb.appendWhere(" AND " + searchWhere);
+                }
+
                 if (TextUtils.isEmpty(sortOrder)) {
                     sortOrder = Tables.USER_IDS + "." + UserIdsColumns.USER_ID + " ASC";
                 }
@@ -556,32 +703,36 @@ public class KeychainProvider extends ContentProvider {
 
                 break;
 
-            case SECRET_KEY_RING_BY_EMAILS:
-            case PUBLIC_KEY_RING_BY_EMAILS:
-                qb = buildKeyRingQuery(qb, match);
+            case SECRET_KEY_RING_BY_KEY_IDS:
+            case PUBLIC_KEY_RING_BY_KEY_IDS:
+                qb = buildKeyRingQueryWithSpecificKey(qb, match);
 
-                String emails = uri.getLastPathSegment();
-                String chunks[] = emails.split(" *, *");
-                boolean gotCondition = false;
-                String emailWhere = "";
-                for (int i = 0; i < chunks.length; ++i) {
-                    if (chunks[i].length() == 0) {
-                        continue;
-                    }
+                String keyIds[] = uri.getLastPathSegment().split(" *, *");
+                String keyIdsIn = "";
+                for (int i = 0; i < keyIds.length; ++i) {
                     if (i != 0) {
-                        emailWhere += " OR ";
+                        keyIdsIn += ", ";
                     }
-                    emailWhere += "tmp." + UserIdsColumns.USER_ID + " LIKE ";
-                    // match '*<email>', so it has to be at the *end* of the user id
-                    emailWhere += DatabaseUtils.sqlEscapeString("%<" + chunks[i] + ">");
-                    gotCondition = true;
+                    keyIdsIn += DatabaseUtils.sqlEscapeString(keyIds[i]);
                 }
 
-                if (gotCondition) {
+                qb.appendWhere(" AND " + Tables.KEYS + "." + KeysColumns.KEY_ID + " IN ("
+                        + keyIdsIn + ")");
+
+                break;
+
+            case SECRET_KEY_RING_BY_EMAILS:
+            case PUBLIC_KEY_RING_BY_EMAILS:
+                qb = buildKeyRingQuery(qb, match);
+
+                // exact match on the emails of the user ids, answered by the email index
+                String emailsIn = buildEmailsIn(uri.getLastPathSegment());
+                if (emailsIn != null) {
                     qb.appendWhere(" AND EXISTS (SELECT tmp." + BaseColumns._ID + " FROM "
-                            + Tables.USER_IDS + " AS tmp WHERE tmp." + UserIdsColumns.KEY_RING_ROW_ID
-                            + " = " + Tables.KEY_RINGS + "." + BaseColumns._ID + " AND (" + emailWhere
-                            + "))");
+                            + Tables.USER_ID_EMAILS + " AS tmp WHERE tmp."
+                            + UserIdEmailsColumns.EMAIL + " IN (" + emailsIn + ") AND tmp."
+                            + UserIdEmailsColumns.KEY_RING_ROW_ID + " = " + Tables.KEY_RINGS + "."
+                            + BaseColumns._ID + ")");
                 }
 
                 break;
@@ -602,6 +753,21 @@ public class KeychainProvider extends ContentProvider {
 
                 break;
 
+            case PUBLIC_KEY_RING_USER_ID_EMAILS:
+                qb.setTables(Tables.USER_ID_EMAILS + " INNER JOIN " + Tables.KEY_RINGS + " ON ("
+                        + Tables.KEY_RINGS + "." + BaseColumns._ID + " = " + Tables.USER_ID_EMAILS
+                        + "." + UserIdEmailsColumns.KEY_RING_ROW_ID + ")");
+                qb.appendWhere(Tables.KEY_RINGS + "." + KeyRingsColumns.TYPE + " = ");
+                qb.appendWhereEscapeString(Integer.toString(getKeyType(match)));
+
+                String lookupEmailsIn = buildEmailsIn(uri.getLastPathSegment());
+                qb.appendWhere(" AND " + Tables.USER_ID_EMAILS + "." + UserIdEmailsColumns.EMAIL
+                        + " IN (" + (lookupEmailsIn != null ? lookupEmailsIn : "NULL") + ")");
+
+                qb.setProjectionMap(getProjectionMapForUserIdEmails());
+
+                break;
+
             case PUBLIC_KEY_RING_KEY:
             case SECRET_KEY_RING_KEY:
                 qb.setTables(Tables.KEYS);
@@ -692,20 +858,82 @@ public class KeychainProvider extends ContentProvider {
             orderBy = sortOrder;
         }
 
-        Cursor c = qb.query(db, projection, selection, selectionArgs, groupBy, having, orderBy);
+        return qb.buildQuery(projection, selection, selectionArgs, groupBy, having, orderBy,
+                null);
+    }
 
-        // Tell the cursor what uri to watch, so it knows when its source data changes
-        c.setNotificationUri(getContext().getContentResolver(), uri);
+    /**
+     * Full table scans in the query plan of a query. Joins with the key tables should always be
+     * answered using the indexes defined in KeychainDatabase. Older SQLite versions describe a
+     * scan as "SCAN TABLE keys ...", newer ones as "SCAN keys ...".
+     *
+     * @param tables the tables to check
+     * @return details of the steps scanning one of the tables, empty if there are none
+     */
+    static List<String> getFullTableScans(SQLiteDatabase db, String query, String[] selectionArgs,
+                                          String... tables) {
+        List<String> checked = Arrays.asList(tables);
+        List<String> scans = new ArrayList<String>();
+        Cursor plan = db.rawQuery("EXPLAIN QUERY PLAN " + query, selectionArgs);
+        try {
+            int detailCol = plan.getColumnIndex("detail");
+            while (detailCol != -1 && plan.moveToNext()) {
+                String detail = plan.getString(detailCol);
+                String[] words = detail.split(" +");
+                if (words.length < 2 || !"SCAN".equals(words[0])) {
+                    continue;
+                }
+                String table = "TABLE".equals(words[1]) && words.length > 2 ? words[2] : words[1];
+                if (checked.contains(table)) {
+                    scans.add(detail);
+                }
+            }
+        } finally {
+            plan.close();
+        }
+        return scans;
+    }
 
-        if (Constants.DEBUG) {
-            Log.d(Constants.TAG,
-                    "Query: "
-                            + qb.buildQuery(projection, selection, selectionArgs, null, null,
-                            orderBy, null));
-            Log.d(Constants.TAG, "Cursor: " + DatabaseUtils.dumpCursorToString(c));
+    /**
+     * Adds the email of an inserted user id to the user_id_emails table
+     */
+    private static void insertUserIdEmail(SQLiteDatabase db, ContentValues userIdValues) {
+        String email = PgpKeyHelper.getNormalizedEmail(userIdValues.getAsString(UserIds.USER_ID));
+        if (email == null) {
+            return;
         }
+        ContentValues values = new ContentValues();
+        values.put(UserIdEmails.EMAIL, email);
+        values.put(UserIdEmails.KEY_RING_ROW_ID, userIdValues.getAsLong(UserIds.KEY_RING_ROW_ID));
+        db.insertWithOnConflict(Tables.USER_ID_EMAILS, null, values,
+                SQLiteDatabase.CONFLICT_IGNORE);
+    }
 
-        return c;
+    /**
+     * Rebuilds the user_id_emails rows of a key ring from its current user ids, after user ids
+     * have been changed or deleted
+     */
+    private static void replaceUserIdEmails(SQLiteDatabase db, String keyRingRowId) {
+        String[] args = new String[]{keyRingRowId};
+        db.delete(Tables.USER_ID_EMAILS, UserIdEmails.KEY_RING_ROW_ID + " = ?", args);
+
+        Cursor cursor = db.query(Tables.USER_IDS, new String[]{UserIds.USER_ID},
+                UserIds.KEY_RING_ROW_ID + " = ?", args, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                String email = PgpKeyHelper.getNormalizedEmail(cursor.getString(0));
+                if (email == null) {
+                    continue;
+                }
+                ContentValues values = new ContentValues();
+                values.put(UserIdEmails.EMAIL, email);
+                values.put(UserIdEmails.KEY_RING_ROW_ID, keyRingRowId);
+                db.insertWithOnConflict(Tables.USER_ID_EMAILS, null, values,
+                        SQLiteDatabase.CONFLICT_IGNORE);
+            }
+        } finally {
+            cursor.close();
+        }
     }
 
     /**
@@ -740,7 +968,14 @@ public class KeychainProvider extends ContentProvider {
 
                     break;
                 case PUBLIC_KEY_RING_USER_ID:
-                    rowId = db.insertOrThrow(Tables.USER_IDS, null, values);
+                    db.beginTransaction();
+                    try {
+                        rowId = db.insertOrThrow(Tables.USER_IDS, null, values);
+                        insertUserIdEmail(db, values);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
                     rowUri = UserIds.buildPublicUserIdsUri(Long.toString(rowId));
                     sendBroadcastDatabaseChange(getKeyType(match), getType(uri));
 
@@ -762,9 +997,23 @@ public class KeychainProvider extends ContentProvider {
 
                     break;
                 case SECRET_KEY_RING_USER_ID:
-                    rowId = db.insertOrThrow(Tables.USER_IDS, null, values);
+                    db.beginTransaction();
+                    try {
+                        rowId = db.insertOrThrow(Tables.USER_IDS, null, values);
+                        insertUserIdEmail(db, values);
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
                     rowUri = UserIds.buildSecretUserIdsUri(Long.toString(rowId));
 
+                    break;
+                case PUBLIC_KEY_RING_SEARCH_INDEX:
+                case SECRET_KEY_RING_SEARCH_INDEX:
+                    rowId = Long.parseLong(uri.getPathSegments().get(2));
+                    KeyRingSearchIndex.replace(db, rowId, values);
+                    rowUri = uri;
+
                     break;
                 case API_APPS:
                     rowId = db.insertOrThrow(Tables.API_APPS, null, values);
@@ -775,6 +1024,9 @@ public class KeychainProvider extends ContentProvider {
                     throw new UnsupportedOperationException("Unknown uri: " + uri);
             }
 
+            invalidateKeyRingCache(match);
+
+
             // notify of changes in db
             getContext().getContentResolver().notifyChange(uri, null);
 
@@ -825,8 +1077,17 @@ public class KeychainProvider extends ContentProvider {
                 break;
             case PUBLIC_KEY_RING_USER_ID_BY_ROW_ID:
             case SECRET_KEY_RING_USER_ID_BY_ROW_ID:
-                count = db.delete(Tables.KEYS, buildDefaultUserIdsSelection(uri, selection),
-                        selectionArgs);
+                db.beginTransaction();
+                try {
+                    count = db.delete(Tables.USER_IDS, buildDefaultUserIdsSelection(uri, selection),
+                            selectionArgs);
+                    if (count > 0) {
+                        replaceUserIdEmails(db, uri.getPathSegments().get(2));
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
             case API_APPS_BY_ROW_ID:
                 count = db.delete(Tables.API_APPS, buildDefaultApiAppsSelection(uri, false, selection),
@@ -840,6 +1101,9 @@ public class KeychainProvider extends ContentProvider {
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
 
+        invalidateKeyRingCache(match);
+
+
         // notify of changes in db
         getContext().getContentResolver().notifyChange(uri, null);
 
@@ -895,8 +1159,22 @@ public class KeychainProvider extends ContentProvider {
                     break;
                 case PUBLIC_KEY_RING_USER_ID_BY_ROW_ID:
                 case SECRET_KEY_RING_USER_ID_BY_ROW_ID:
-                    count = db.update(Tables.USER_IDS, values,
-                            buildDefaultUserIdsSelection(uri, selection), selectionArgs);
+                    db.beginTransaction();
+                    try {
+                        count = db.update(Tables.USER_IDS, values,
+                                buildDefaultUserIdsSelection(uri, selection), selectionArgs);
+                        if (count > 0) {
+                            replaceUserIdEmails(db, uri.getPathSegments().get(2));
+                            // the user id may have been moved to another key ring
+                            Long newKeyRingRowId = values.getAsLong(UserIds.KEY_RING_ROW_ID);
+                            if (newKeyRingRowId != null) {
+                                replaceUserIdEmails(db, Long.toString(newKeyRingRowId));
+                            }
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
                     break;
                 case API_APPS_BY_ROW_ID:
                     count = db.update(Tables.API_APPS, values,
@@ -910,6 +1188,9 @@ public class KeychainProvider extends ContentProvider {
                     throw new UnsupportedOperationException("Unknown uri: " + uri);
             }
 
+            invalidateKeyRingCache(match);
+
+
             // notify of changes in db
             getContext().getContentResolver().notifyChange(uri, null);
 
@@ -1029,6 +1310,16 @@ public class KeychainProvider extends ContentProvider {
     // return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
     // }
 
+    /**
+     * Drops the cached key rings of this process before the change is notified, other processes
+     * are invalidated by the notification
+     */
+    private void invalidateKeyRingCache(int match) {
+        if (match != API_APPS && match != API_APPS_BY_ROW_ID && match != API_APPS_BY_PACKAGE_NAME) {
+            KeyRingCache.getKeyRingCache(getContext()).invalidateAll();
+        }
+    }
+
     /**
      * This broadcast is send system wide to inform other application that a keyring was inserted,
      * updated, or deleted
@@ -22,6 +22,7 @@ import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.net.Uri;
 import android.os.RemoteException;
+import android.support.v4.util.LongSparseArray;
 import org.spongycastle.bcpg.ArmoredOutputStream;
 import org.spongycastle.openpgp.*;
 import org.sufficientlysecure.keychain.Constants;
@@ -30,6 +31,7 @@ import org.sufficientlysecure.keychain.pgp.PgpHelper;
 import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyTypes;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserIds;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
@@ -48,6 +50,9 @@ public class ProviderHelper {
      * Private helper method to get PGPKeyRing from database
      */
     public static PGPKeyRing getPGPKeyRing(Context context, Uri queryUri) {
+        KeyRingCache keyRingCache = KeyRingCache.getKeyRingCache(context);
+        long generation = keyRingCache.getGeneration();
+
         Cursor cursor = context.getContentResolver().query(queryUri,
                 new String[]{KeyRings._ID, KeyRings.KEY_RING_DATA}, null, null, null);
 
@@ -59,6 +64,11 @@ public class ProviderHelper {
             if (data != null) {
                 keyRing = PgpConversionHelper.BytesToPGPKeyRing(data);
             }
+            if (keyRing != null) {
+                int keyType = (keyRing instanceof PGPSecretKeyRing) ? KeyTypes.SECRET
+                        : KeyTypes.PUBLIC;
+                keyRingCache.put(keyType, keyRing, data.length, generation);
+            }
         }
 
         if (cursor != null) {
@@ -81,6 +91,12 @@ public class ProviderHelper {
      */
     public static PGPPublicKeyRing getPGPPublicKeyRingByMasterKeyId(Context context,
                                                                     long masterKeyId) {
+        PGPKeyRing cached = KeyRingCache.getKeyRingCache(context)
+                .getByMasterKeyId(KeyTypes.PUBLIC, masterKeyId);
+        if (cached != null) {
+            return (PGPPublicKeyRing) cached;
+        }
+
         Uri queryUri = KeyRings.buildPublicKeyRingsByMasterKeyIdUri(Long.toString(masterKeyId));
         return (PGPPublicKeyRing) getPGPKeyRing(context, queryUri);
     }
@@ -90,6 +106,12 @@ public class ProviderHelper {
      * with this keyId
      */
     public static PGPPublicKeyRing getPGPPublicKeyRingByKeyId(Context context, long keyId) {
+        PGPKeyRing cached = KeyRingCache.getKeyRingCache(context)
+                .getByKeyId(KeyTypes.PUBLIC, keyId);
+        if (cached != null) {
+            return (PGPPublicKeyRing) cached;
+        }
+
         Uri queryUri = KeyRings.buildPublicKeyRingsByKeyIdUri(Long.toString(keyId));
         return (PGPPublicKeyRing) getPGPKeyRing(context, queryUri);
     }
@@ -117,6 +139,12 @@ public class ProviderHelper {
      */
     public static PGPSecretKeyRing getPGPSecretKeyRingByMasterKeyId(Context context,
                                                                     long masterKeyId) {
+        PGPKeyRing cached = KeyRingCache.getKeyRingCache(context)
+                .getByMasterKeyId(KeyTypes.SECRET, masterKeyId);
+        if (cached != null) {
+            return (PGPSecretKeyRing) cached;
+        }
+
         Uri queryUri = KeyRings.buildSecretKeyRingsByMasterKeyIdUri(Long.toString(masterKeyId));
         return (PGPSecretKeyRing) getPGPKeyRing(context, queryUri);
     }
@@ -126,6 +154,12 @@ public class ProviderHelper {
      * with this keyId
      */
     public static PGPSecretKeyRing getPGPSecretKeyRingByKeyId(Context context, long keyId) {
+        PGPKeyRing cached = KeyRingCache.getKeyRingCache(context)
+                .getByKeyId(KeyTypes.SECRET, keyId);
+        if (cached != null) {
+            return (PGPSecretKeyRing) cached;
+        }
+
         Uri queryUri = KeyRings.buildSecretKeyRingsByKeyIdUri(Long.toString(keyId));
         return (PGPSecretKeyRing) getPGPKeyRing(context, queryUri);
     }
@@ -140,6 +174,103 @@ public class ProviderHelper {
         return (keyRing == null) ? null : keyRing.getSecretKey(keyId);
     }
 
+    /**
+     * Retrieves master key id, flags, expiry and revocation status of the secret key with this
+     * keyId directly from the keys table, without parsing the key ring blob
+     */
+    public static KeyInfo getSecretKeyInfo(Context context, long keyId) {
+        Uri queryUri = KeyRings.buildSecretKeyRingsByKeyIdUri(Long.toString(keyId));
+        return getKeyInfo(context, queryUri);
+    }
+
+    /**
+     * Retrieves master key id, flags, expiry and revocation status of the public key with this
+     * keyId directly from the keys table, without parsing the key ring blob
+     */
+    public static KeyInfo getPublicKeyInfo(Context context, long keyId) {
+        Uri queryUri = KeyRings.buildPublicKeyRingsByKeyIdUri(Long.toString(keyId));
+        return getKeyInfo(context, queryUri);
+    }
+
+    /**
+     * Retrieves KeyInfo of all secret keys matching one of the given keyIds with a single query.
+     * Key ids not found in the database are not contained in the result.
+     */
+    public static LongSparseArray<KeyInfo> getSecretKeyInfos(Context context, long[] keyIds) {
+        LongSparseArray<KeyInfo> keyInfos = new LongSparseArray<KeyInfo>();
+        if (keyIds == null || keyIds.length == 0) {
+            return keyInfos;
+        }
+
+        String keyIdList = "";
+        for (int i = 0; i < keyIds.length; ++i) {
+            if (i != 0) {
+                keyIdList += ",";
+            }
+            keyIdList += Long.toString(keyIds[i]);
+        }
+
+        Uri queryUri = KeyRings.buildSecretKeyRingsByKeyIdsUri(keyIdList);
+        Cursor cursor = context.getContentResolver().query(queryUri, KEY_INFO_PROJECTION, null,
+                null, null);
+        try {
+            if (cursor != null && cursor.moveToFirst()) {
+                do {
+                    KeyInfo keyInfo = getKeyInfoFromCursor(cursor);
+                    keyInfos.put(keyInfo.getKeyId(), keyInfo);
+                } while (cursor.moveToNext());
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        return keyInfos;
+    }
+
+    private static final String[] KEY_INFO_PROJECTION = new String[]{Keys.KEY_ID,
+            KeyRings.MASTER_KEY_ID, Keys.CAN_CERTIFY, Keys.CAN_SIGN, Keys.CAN_ENCRYPT,
+            Keys.IS_REVOKED, Keys.EXPIRY};
+
+    /**
+     * Private helper method to get KeyInfo from a key id query
+     */
+    private static KeyInfo getKeyInfo(Context context, Uri queryUri) {
+        Cursor cursor = context.getContentResolver().query(queryUri, KEY_INFO_PROJECTION, null,
+                null, null);
+
+        KeyInfo keyInfo = null;
+        try {
+            if (cursor != null && cursor.moveToFirst()) {
+                keyInfo = getKeyInfoFromCursor(cursor);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        return keyInfo;
+    }
+
+    private static KeyInfo getKeyInfoFromCursor(Cursor cursor) {
+        int expiryCol = cursor.getColumnIndexOrThrow(Keys.EXPIRY);
+        Date expiry = null;
+        if (!cursor.isNull(expiryCol)) {
+            expiry = new Date(cursor.getLong(expiryCol) * 1000);
+        }
+
+        return new KeyInfo(
+                cursor.getLong(cursor.getColumnIndexOrThrow(Keys.KEY_ID)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(KeyRings.MASTER_KEY_ID)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(Keys.CAN_CERTIFY)) == 1,
+                cursor.getInt(cursor.getColumnIndexOrThrow(Keys.CAN_SIGN)) == 1,
+                cursor.getInt(cursor.getColumnIndexOrThrow(Keys.CAN_ENCRYPT)) == 1,
+                cursor.getInt(cursor.getColumnIndexOrThrow(Keys.IS_REVOKED)) == 1,
+                expiry);
+    }
+
     /**
      * Saves PGPPublicKeyRing with its keys and userIds in DB
      */
@@ -198,6 +329,8 @@ public class ProviderHelper {
             ++userIdRank;
         }
 
+        operations.add(buildSearchIndexOperation(insertedUri, masterKey));
+
         for (PGPSignature certification :
                 new IterableIterator<PGPSignature>(
                         masterKey.getSignaturesOfType(PGPSignature.POSITIVE_CERTIFICATION))) {
@@ -215,6 +348,9 @@ public class ProviderHelper {
         } catch (OperationApplicationException e) {
             Log.e(Constants.TAG, "applyBatch failed!", e);
         }
+
+        // only after the new version is written, so the old one can not be cached again
+        KeyRingCache.getKeyRingCache(context).invalidate(masterKeyId);
     }
 
     /**
@@ -275,6 +411,8 @@ public class ProviderHelper {
             ++userIdRank;
         }
 
+        operations.add(buildSearchIndexOperation(insertedUri, masterKey.getPublicKey()));
+
         try {
             context.getContentResolver().applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
         } catch (RemoteException e) {
@@ -282,6 +420,9 @@ public class ProviderHelper {
         } catch (OperationApplicationException e) {
             Log.e(Constants.TAG, "applyBatch failed!", e);
         }
+
+        // only after the new version is written, so the old one can not be cached again
+        KeyRingCache.getKeyRingCache(context).invalidate(masterKeyId);
     }
 
     /**
@@ -379,6 +520,20 @@ public class ProviderHelper {
         return ContentProviderOperation.newInsert(uri).withValues(values).build();
     }
 
+    /**
+     * Build ContentProviderOperation to add a keyRing to the search index, replacing its old row
+     */
+    @SuppressWarnings("unchecked")
+    private static ContentProviderOperation buildSearchIndexOperation(Uri keyRingUri,
+                                                                      PGPPublicKey masterKey) {
+        ContentValues values = KeyRingSearchIndex.buildValues(masterKey.getKeyID(),
+                masterKey.getFingerprint(), new IterableIterator<String>(masterKey.getUserIDs()));
+
+        Uri uri = KeyRings.buildSearchIndexUri(keyRingUri);
+
+        return ContentProviderOperation.newInsert(uri).withValues(values).build();
+    }
+
     /**
      * Private helper method
      */
@@ -462,11 +617,15 @@ public class ProviderHelper {
     public static void deletePublicKeyRing(Context context, long rowId) {
         ContentResolver cr = context.getContentResolver();
         cr.delete(KeyRings.buildPublicKeyRingsUri(Long.toString(rowId)), null, null);
+        // master key id is not known here
+        KeyRingCache.getKeyRingCache(context).invalidateAll();
     }
 
     public static void deleteSecretKeyRing(Context context, long rowId) {
         ContentResolver cr = context.getContentResolver();
         cr.delete(KeyRings.buildSecretKeyRingsUri(Long.toString(rowId)), null, null);
+        // master key id is not known here
+        KeyRingCache.getKeyRingCache(context).invalidateAll();
     }
 
     public static void deleteUnifiedKeyRing(Context context,String masterKeyId,boolean isSecretKey){
@@ -475,6 +634,7 @@ public class ProviderHelper {
         if(isSecretKey){
             cr.delete(KeyRings.buildSecretKeyRingsByMasterKeyIdUri(masterKeyId),null,null);
         }
+        KeyRingCache.getKeyRingCache(context).invalidate(Long.parseLong(masterKeyId));
 
     }
 
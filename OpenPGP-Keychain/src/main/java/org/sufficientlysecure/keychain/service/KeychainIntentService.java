@@ -125,6 +125,10 @@ public class KeychainIntentService extends IntentService
 
     // import key
     public static final String IMPORT_KEY_LIST = "import_key_list";
+    // alternatively, positions of the key rings in a key file which is read again on import
+    public static final String IMPORT_KEY_SOURCE_URI = "import_key_source_uri";
+    public static final String IMPORT_KEY_SOURCE_POSITIONS = "import_key_source_positions";
+    public static final String IMPORT_KEY_SOURCE_MASTER_KEY_IDS = "import_key_source_master_key_ids";
 
     // export key
     public static final String EXPORT_OUTPUT_STREAM = "export_output_stream";
@@ -167,6 +171,7 @@ public class KeychainIntentService extends IntentService
     // import
     public static final String RESULT_IMPORT_ADDED = "added";
     public static final String RESULT_IMPORT_UPDATED = "updated";
+    public static final String RESULT_IMPORT_UNCHANGED = "unchanged";
     public static final String RESULT_IMPORT_BAD = "bad";
 
     // export
@@ -221,6 +226,7 @@ public class KeychainIntentService extends IntentService
 
         // executeServiceMethod action from extra bundle
         if (ACTION_ENCRYPT_SIGN.equals(action)) {
+            InputData inputData = null;
             try {
                 /* Input */
                 int target = data.getInt(TARGET);
@@ -236,7 +242,6 @@ public class KeychainIntentService extends IntentService
 
                 InputStream inStream = null;
                 long inLength = -1;
-                InputData inputData = null;
                 OutputStream outStream = null;
                 String streamFilename = null;
                 switch (target) {
@@ -261,10 +266,8 @@ public class KeychainIntentService extends IntentService
                                     getString(R.string.error_external_storage_not_ready));
                         }
 
-                        inStream = new FileInputStream(inputFile);
-                        File file = new File(inputFile);
-                        inLength = file.length();
-                        inputData = new InputData(inStream, inLength);
+                        inputData = InputData.fromFile(inputFile);
+                        inLength = inputData.getSize();
 
                         outStream = new FileOutputStream(outputFile);
 
@@ -307,6 +310,7 @@ public class KeychainIntentService extends IntentService
                 if (generateSignature) {
                     Log.d(Constants.TAG, "generating signature...");
                     builder.enableAsciiArmorOutput(useAsciiArmor)
+                            .binaryInput(target == TARGET_URI)
                             .signatureForceV3(Preferences.getPreferences(this).getForceV3Signatures())
                             .signatureKeyId(secretKeyId)
                             .signatureHashAlgorithm(
@@ -318,6 +322,7 @@ public class KeychainIntentService extends IntentService
                 } else if (signOnly) {
                     Log.d(Constants.TAG, "sign only...");
                     builder.enableAsciiArmorOutput(useAsciiArmor)
+                            .binaryInput(target == TARGET_URI)
                             .signatureForceV3(Preferences.getPreferences(this).getForceV3Signatures())
                             .signatureKeyId(secretKeyId)
                             .signatureHashAlgorithm(
@@ -329,6 +334,9 @@ public class KeychainIntentService extends IntentService
                 } else {
                     Log.d(Constants.TAG, "encrypt...");
                     builder.enableAsciiArmorOutput(useAsciiArmor)
+                            // overlap compression and encryption of large files on multi-core
+                            .pipelined(target == TARGET_URI
+                                    && Runtime.getRuntime().availableProcessors() > 1)
                             .compressionId(compressionId)
                             .symmetricEncryptionAlgorithm(
                                     Preferences.getPreferences(this).getDefaultEncryptionAlgorithm())
@@ -386,8 +394,11 @@ public class KeychainIntentService extends IntentService
                 sendMessageToHandler(KeychainIntentServiceHandler.MESSAGE_OKAY, resultData);
             } catch (Exception e) {
                 sendErrorToHandler(e);
+            } finally {
+                closeInputData(inputData);
             }
         } else if (ACTION_DECRYPT_VERIFY.equals(action)) {
+            InputData inputData = null;
             try {
                 /* Input */
                 int target = data.getInt(TARGET);
@@ -399,7 +410,6 @@ public class KeychainIntentService extends IntentService
 
                 InputStream inStream = null;
                 long inLength = -1;
-                InputData inputData = null;
                 OutputStream outStream = null;
                 String streamFilename = null;
                 switch (target) {
@@ -424,11 +434,8 @@ public class KeychainIntentService extends IntentService
                         }
 
                         // InputStream
-                        inLength = -1;
-                        inStream = new FileInputStream(inputFile);
-                        File file = new File(inputFile);
-                        inLength = file.length();
-                        inputData = new InputData(inStream, inLength);
+                        inputData = InputData.fromFile(inputFile);
+                        inLength = inputData.getSize();
 
                         // OutputStream
                         outStream = new FileOutputStream(outputFile);
@@ -512,6 +519,8 @@ public class KeychainIntentService extends IntentService
                 sendMessageToHandler(KeychainIntentServiceHandler.MESSAGE_OKAY, resultData);
             } catch (Exception e) {
                 sendErrorToHandler(e);
+            } finally {
+                closeInputData(inputData);
             }
         } else if (ACTION_SAVE_KEYRING.equals(action)) {
             try {
@@ -651,12 +660,24 @@ public class KeychainIntentService extends IntentService
             }
         } else if (ACTION_IMPORT_KEYRING.equals(action)) {
             try {
-                List<ImportKeysListEntry> entries = data.getParcelableArrayList(IMPORT_KEY_LIST);
-
                 Bundle resultData = new Bundle();
 
                 PgpImportExport pgpImportExport = new PgpImportExport(this, this);
-                resultData = pgpImportExport.importKeyRings(entries);
+                if (data.containsKey(IMPORT_KEY_SOURCE_URI)) {
+                    Uri sourceUri = data.getParcelable(IMPORT_KEY_SOURCE_URI);
+                    int[] positions = data.getIntArray(IMPORT_KEY_SOURCE_POSITIONS);
+                    long[] masterKeyIds = data.getLongArray(IMPORT_KEY_SOURCE_MASTER_KEY_IDS);
+
+                    InputStream in = getContentResolver().openInputStream(sourceUri);
+                    try {
+                        resultData = pgpImportExport.importKeyRings(in, positions, masterKeyIds);
+                    } finally {
+                        in.close();
+                    }
+                } else {
+                    List<ImportKeysListEntry> entries = data.getParcelableArrayList(IMPORT_KEY_LIST);
+                    resultData = pgpImportExport.importKeyRings(entries);
+                }
 
                 sendMessageToHandler(KeychainIntentServiceHandler.MESSAGE_OKAY, resultData);
             } catch (Exception e) {
@@ -759,15 +780,29 @@ public class KeychainIntentService extends IntentService
 
                 // this downloads the keys and places them into the ImportKeysListEntry entries
                 HkpKeyServer server = new HkpKeyServer(keyServer);
+                // keys that did not change since the last download are taken from the cache
+                server.setCache(KeyServerCache.getKeyServerCache(this));
 
+                // if available use complete fingerprint for get request
+                ArrayList<String> keyIdHexes = new ArrayList<String>(entries.size());
                 for (ImportKeysListEntry entry : entries) {
-                    // if available use complete fingerprint for get request
-                    byte[] downloadedKeyBytes;
                     if (entry.getFingerPrintHex() != null) {
-                        downloadedKeyBytes = server.get("0x" + entry.getFingerPrintHex()).getBytes();
+                        keyIdHexes.add("0x" + entry.getFingerPrintHex());
                     } else {
-                        downloadedKeyBytes = server.get(entry.getKeyIdHex()).getBytes();
+                        keyIdHexes.add(entry.getKeyIdHex());
+                    }
+                }
+                // download all keys in parallel over kept-alive connections
+                List<String> armoredKeys = server.get(keyIdHexes);
+
+                for (int i = 0; i < entries.size(); ++i) {
+                    ImportKeysListEntry entry = entries.get(i);
+                    String armoredKey = armoredKeys.get(i);
+                    if (armoredKey == null) {
+                        throw new PgpGeneralException("Key " + keyIdHexes.get(i)
+                                + " not found on keyserver!");
                     }
+                    byte[] downloadedKeyBytes = armoredKey.getBytes();
 
                     // create PGPKeyRing object based on downloaded armored key
                     PGPKeyRing downloadedKey = null;
@@ -850,6 +885,20 @@ public class KeychainIntentService extends IntentService
         }
     }
 
+    /**
+     * Closes the input of an operation, also if the operation failed
+     */
+    private static void closeInputData(InputData inputData) {
+        if (inputData == null) {
+            return;
+        }
+        try {
+            inputData.close();
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Closing input failed", e);
+        }
+    }
+
     private void sendErrorToHandler(Exception e) {
         // Service was canceled. Do not send error to handler.
         if (this.mIsCanceled) {
@@ -21,12 +21,13 @@ import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.os.*;
 import android.util.Log;
-import android.support.v4.util.LongSparseArray;
 import org.spongycastle.openpgp.PGPException;
 import org.spongycastle.openpgp.PGPPrivateKey;
 import org.spongycastle.openpgp.PGPSecretKey;
@@ -36,16 +37,23 @@ import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.Id;
 import org.sufficientlysecure.keychain.helper.Preferences;
-import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
+import org.sufficientlysecure.keychain.provider.KeyInfo;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 
 import java.util.Date;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This service runs in its own process, but is available to all other processes as the main
  * passphrase cache. Use the static methods addCachedPassphrase and getCachedPassphrase for
- * convenience.
+ * convenience. Inside the process of the service, these access the cache directly. Other
+ * processes add passphrases using intents, which keeps the service started, and get them over
+ * a Messenger of the service they bind to once. The binding does not keep the service alive, so
+ * it still stops itself when the last passphrase times out.
  */
 public class PassphraseCacheService extends Service {
     public static final String TAG = Constants.TAG + ": PassphraseCacheService";
@@ -63,15 +71,34 @@ public class PassphraseCacheService extends Service {
     public static final String EXTRA_PASSPHRASE = "passphrase";
     public static final String EXTRA_MESSENGER = "messenger";
 
+    private static final int MSG_GET = 1;
+
     private static final int REQUEST_ID = 0;
     private static final long DEFAULT_TTL = 15;
 
     private BroadcastReceiver mIntentReceiver;
 
-    private LongSparseArray<String> mPassphraseCache = new LongSparseArray<String>();
+    private ConcurrentHashMap<Long, String> mPassphraseCache = new ConcurrentHashMap<Long, String>();
 
     Context mContext;
 
+    // running instance, if in the same process
+    private static volatile PassphraseCacheService sInstance;
+
+    // thread receiving the replies of the service for all getCachedPassphrase calls
+    private static HandlerThread sReplyThread;
+
+    // binding to the service, kept for the lifetime of other processes
+    private static final Object sBindLock = new Object();
+    private static ServiceConnection sConnection;
+    private static Messenger sService;
+
+    // latency counters, per process
+    private static final AtomicLong sGetCount = new AtomicLong();
+    private static final AtomicLong sGetTimeNanos = new AtomicLong();
+    private static final AtomicLong sPutCount = new AtomicLong();
+    private static final AtomicLong sPutTimeNanos = new AtomicLong();
+
     /**
      * This caches a new passphrase in memory by sending a new command to the service. An android
      * service is only run once. Thus, when the service is already started, new commands just add
@@ -83,19 +110,32 @@ public class PassphraseCacheService extends Service {
      */
     public static void addCachedPassphrase(Context context, long keyId, String passphrase) {
         Log.d(TAG, "cacheNewPassphrase() for " + keyId);
+        long startTime = System.nanoTime();
 
-        Intent intent = new Intent(context, PassphraseCacheService.class);
-        intent.setAction(ACTION_PASSPHRASE_CACHE_ADD);
-        intent.putExtra(EXTRA_TTL, Preferences.getPreferences(context).getPassPhraseCacheTtl());
-        intent.putExtra(EXTRA_PASSPHRASE, passphrase);
-        intent.putExtra(EXTRA_KEY_ID, keyId);
+        long ttl = Preferences.getPreferences(context).getPassPhraseCacheTtl();
 
-        context.startService(intent);
+        PassphraseCacheService service = sInstance;
+        if (service != null) {
+            service.addCachedPassphraseImpl(keyId, passphrase, ttl);
+        } else {
+            Intent intent = new Intent(context, PassphraseCacheService.class);
+            intent.setAction(ACTION_PASSPHRASE_CACHE_ADD);
+            intent.putExtra(EXTRA_TTL, ttl);
+            intent.putExtra(EXTRA_PASSPHRASE, passphrase);
+            intent.putExtra(EXTRA_KEY_ID, keyId);
+
+            context.startService(intent);
+        }
+
+        long count = sPutCount.incrementAndGet();
+        long total = sPutTimeNanos.addAndGet(System.nanoTime() - startTime);
+        Log.d(TAG, "addCachedPassphrase() average latency: " + (total / count / 1000) + "us");
     }
 
     /**
-     * Gets a cached passphrase from memory by sending an intent to the service. This method is
-     * designed to wait until the service returns the passphrase.
+     * Gets a cached passphrase from memory, directly if called in the process of the service,
+     * otherwise by asking the bound service. This method is designed to wait until the service
+     * returns the passphrase.
      *
      * @param context
      * @param keyId
@@ -103,49 +143,128 @@ public class PassphraseCacheService extends Service {
      */
     public static String getCachedPassphrase(Context context, long keyId) {
         Log.d(TAG, "getCachedPassphrase() get masterKeyId for " + keyId);
+        long startTime = System.nanoTime();
 
-        Intent intent = new Intent(context, PassphraseCacheService.class);
-        intent.setAction(ACTION_PASSPHRASE_CACHE_GET);
+        String passphrase;
+        PassphraseCacheService service = sInstance;
+        if (service != null) {
+            passphrase = service.getCachedPassphraseImpl(keyId);
+        } else {
+            passphrase = getCachedPassphraseFromService(context, keyId);
+        }
+
+        long count = sGetCount.incrementAndGet();
+        long total = sGetTimeNanos.addAndGet(System.nanoTime() - startTime);
+        Log.d(TAG, "getCachedPassphrase() average latency: " + (total / count / 1000) + "us");
+
+        return passphrase;
+    }
+
+    private static synchronized Looper getReplyLooper() {
+        if (sReplyThread == null) {
+            sReplyThread = new HandlerThread("getPassphraseThread");
+            sReplyThread.start();
+        }
+        return sReplyThread.getLooper();
+    }
 
-        final Object mutex = new Object();
+    /**
+     * Binds to the service on the first call and returns its Messenger. The binding is never
+     * released, but it is made without BIND_AUTO_CREATE: it neither starts the service nor keeps
+     * it alive after the last passphrase timed out. It connects whenever the service is started.
+     *
+     * @return null if the service is not running or not connected yet
+     */
+    private static Messenger getServiceMessenger(Context context) {
+        synchronized (sBindLock) {
+            if (sConnection == null) {
+                ServiceConnection connection = new ServiceConnection() {
+                    @Override
+                    public void onServiceConnected(ComponentName name, IBinder binder) {
+                        synchronized (sBindLock) {
+                            sService = new Messenger(binder);
+                        }
+                    }
+
+                    @Override
+                    public void onServiceDisconnected(ComponentName name) {
+                        synchronized (sBindLock) {
+                            sService = null;
+                        }
+                    }
+                };
+                Context appContext = context.getApplicationContext();
+                if (!appContext.bindService(new Intent(appContext, PassphraseCacheService.class),
+                        connection, 0)) {
+                    Log.e(Constants.TAG, "Binding to PassphraseCacheService failed!");
+                    return null;
+                }
+                sConnection = connection;
+            }
+            return sService;
+        }
+    }
+
+    /**
+     * Asks the service in its own process, waits until it returns the passphrase
+     */
+    private static String getCachedPassphraseFromService(Context context, long keyId) {
+        final CountDownLatch replyLatch = new CountDownLatch(1);
         final Bundle returnBundle = new Bundle();
 
-        HandlerThread handlerThread = new HandlerThread("getPassphraseThread");
-        handlerThread.start();
-        Handler returnHandler = new Handler(handlerThread.getLooper()) {
+        Handler returnHandler = new Handler(getReplyLooper()) {
             @Override
             public void handleMessage(Message message) {
-                if (message.obj != null) {
-                    String passphrase = ((Bundle) message.obj).getString(EXTRA_PASSPHRASE);
-                    returnBundle.putString(EXTRA_PASSPHRASE, passphrase);
-                }
-                synchronized (mutex) {
-                    mutex.notify();
+                Bundle data = message.getData();
+                if (data.containsKey(EXTRA_PASSPHRASE)) {
+                    synchronized (returnBundle) {
+                        returnBundle.putString(EXTRA_PASSPHRASE, data.getString(EXTRA_PASSPHRASE));
+                    }
                 }
-                // quit handlerThread
-                getLooper().quit();
+                replyLatch.countDown();
             }
         };
 
         // Create a new Messenger for the communication back
         Messenger messenger = new Messenger(returnHandler);
-        intent.putExtra(EXTRA_KEY_ID, keyId);
-        intent.putExtra(EXTRA_MESSENGER, messenger);
-        // send intent to this service
-        context.startService(intent);
 
-        // Wait on mutex until passphrase is returned to handlerThread
-        synchronized (mutex) {
+        boolean sent = false;
+        Messenger service = getServiceMessenger(context);
+        if (service != null) {
+            Message msg = Message.obtain(null, MSG_GET);
+            Bundle data = new Bundle();
+            data.putLong(EXTRA_KEY_ID, keyId);
+            msg.setData(data);
+            msg.replyTo = messenger;
             try {
-                mutex.wait(3000);
-            } catch (InterruptedException e) {
+                service.send(msg);
+                sent = true;
+            } catch (RemoteException e) {
+                Log.e(Constants.TAG, "Sending message to PassphraseCacheService failed", e);
             }
         }
+        if (!sent) {
+            // not running or not connected (yet), send intent to this service, which also
+            // starts it and thereby connects the binding
+            Intent intent = new Intent(context, PassphraseCacheService.class);
+            intent.setAction(ACTION_PASSPHRASE_CACHE_GET);
+            intent.putExtra(EXTRA_KEY_ID, keyId);
+            intent.putExtra(EXTRA_MESSENGER, messenger);
+            context.startService(intent);
+        }
 
-        if (returnBundle.containsKey(EXTRA_PASSPHRASE)) {
-            return returnBundle.getString(EXTRA_PASSPHRASE);
-        } else {
-            return null;
+        // Wait until passphrase is returned to the reply thread
+        try {
+            replyLatch.await(3000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+        }
+
+        synchronized (returnBundle) {
+            if (returnBundle.containsKey(EXTRA_PASSPHRASE)) {
+                return returnBundle.getString(EXTRA_PASSPHRASE);
+            } else {
+                return null;
+            }
         }
     }
 
@@ -161,15 +280,11 @@ public class PassphraseCacheService extends Service {
         // try to get master key id which is used as an identifier for cached passphrases
         long masterKeyId = keyId;
         if (masterKeyId != Id.key.symmetric) {
-            PGPSecretKeyRing keyRing = ProviderHelper.getPGPSecretKeyRingByKeyId(this, keyId);
-            if (keyRing == null) {
-                return null;
-            }
-            PGPSecretKey masterKey = PgpKeyHelper.getMasterKey(keyRing);
-            if (masterKey == null) {
+            KeyInfo keyInfo = ProviderHelper.getSecretKeyInfo(this, keyId);
+            if (keyInfo == null) {
                 return null;
             }
-            masterKeyId = masterKey.getKeyID();
+            masterKeyId = keyInfo.getMasterKeyId();
         }
         Log.d(TAG, "getCachedPassphraseImpl() for masterKeyId " + masterKeyId);
 
@@ -193,6 +308,31 @@ public class PassphraseCacheService extends Service {
         return cachedPassphrase;
     }
 
+    /**
+     * Internal implementation to add a passphrase to the cache
+     *
+     * @param keyId
+     * @param passphrase
+     * @param ttl
+     */
+    private void addCachedPassphraseImpl(long keyId, String passphrase, long ttl) {
+        Log.d(TAG, "addCachedPassphraseImpl() with keyId: " + keyId + ", ttl: " + ttl);
+
+        // add keyId and passphrase to memory
+        if (passphrase == null) {
+            mPassphraseCache.remove(keyId);
+            return;
+        }
+        mPassphraseCache.put(keyId, passphrase);
+
+        if (ttl > 0) {
+            // register new alarm with keyId for this passphrase
+            long triggerTime = new Date().getTime() + (ttl * 1000);
+            AlarmManager am = (AlarmManager) this.getSystemService(Context.ALARM_SERVICE);
+            am.set(AlarmManager.RTC_WAKEUP, triggerTime, buildIntent(this, keyId));
+        }
+    }
+
     /**
      * Checks if key has a passphrase.
      *
@@ -280,9 +420,6 @@ public class PassphraseCacheService extends Service {
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "onStartCommand()");
 
-        // register broadcastreceiver
-        registerReceiver();
-
         if (intent != null && intent.getAction() != null) {
             if (ACTION_PASSPHRASE_CACHE_ADD.equals(intent.getAction())) {
                 long ttl = intent.getLongExtra(EXTRA_TTL, DEFAULT_TTL);
@@ -293,30 +430,12 @@ public class PassphraseCacheService extends Service {
                         "Received ACTION_PASSPHRASE_CACHE_ADD intent in onStartCommand() with keyId: "
                                 + keyId + ", ttl: " + ttl);
 
-                // add keyId and passphrase to memory
-                mPassphraseCache.put(keyId, passphrase);
-
-                if (ttl > 0) {
-                    // register new alarm with keyId for this passphrase
-                    long triggerTime = new Date().getTime() + (ttl * 1000);
-                    AlarmManager am = (AlarmManager) this.getSystemService(Context.ALARM_SERVICE);
-                    am.set(AlarmManager.RTC_WAKEUP, triggerTime, buildIntent(this, keyId));
-                }
+                addCachedPassphraseImpl(keyId, passphrase, ttl);
             } else if (ACTION_PASSPHRASE_CACHE_GET.equals(intent.getAction())) {
                 long keyId = intent.getLongExtra(EXTRA_KEY_ID, -1);
                 Messenger messenger = intent.getParcelableExtra(EXTRA_MESSENGER);
 
-                String passphrase = getCachedPassphraseImpl(keyId);
-
-                Message msg = Message.obtain();
-                Bundle bundle = new Bundle();
-                bundle.putString(EXTRA_PASSPHRASE, passphrase);
-                msg.obj = bundle;
-                try {
-                    messenger.send(msg);
-                } catch (RemoteException e) {
-                    Log.e(Constants.TAG, "Sending message failed", e);
-                }
+                sendPassphrase(messenger, getCachedPassphraseImpl(keyId));
             } else {
                 Log.e(Constants.TAG, "Intent or Intent Action not supported!");
             }
@@ -325,6 +444,18 @@ public class PassphraseCacheService extends Service {
         return START_STICKY;
     }
 
+    private static void sendPassphrase(Messenger messenger, String passphrase) {
+        Message msg = Message.obtain();
+        Bundle bundle = new Bundle();
+        bundle.putString(EXTRA_PASSPHRASE, passphrase);
+        msg.setData(bundle);
+        try {
+            messenger.send(msg);
+        } catch (RemoteException e) {
+            Log.e(Constants.TAG, "Sending message failed", e);
+        }
+    }
+
     /**
      * Called when one specific passphrase for keyId timed out
      *
@@ -338,7 +469,7 @@ public class PassphraseCacheService extends Service {
         Log.d(TAG, "Timeout of keyId " + keyId + ", removed from memory!");
 
         // stop whole service if no cached passphrases remaining
-        if (mPassphraseCache.size() == 0) {
+        if (mPassphraseCache.isEmpty()) {
             Log.d(TAG, "No passphrases remaining in memory, stopping service!");
             stopSelf();
         }
@@ -349,6 +480,11 @@ public class PassphraseCacheService extends Service {
         super.onCreate();
         mContext = this;
         Log.d(Constants.TAG, "PassphraseCacheService, onCreate()");
+
+        // register broadcastreceiver
+        registerReceiver();
+
+        sInstance = this;
     }
 
     @Override
@@ -356,20 +492,32 @@ public class PassphraseCacheService extends Service {
         super.onDestroy();
         Log.d(Constants.TAG, "PassphraseCacheService, onDestroy()");
 
+        sInstance = null;
         unregisterReceiver(mIntentReceiver);
     }
 
-    @Override
-    public IBinder onBind(Intent intent) {
-        return mBinder;
-    }
-
-    public class PassphraseCacheBinder extends Binder {
-        public PassphraseCacheService getService() {
-            return PassphraseCacheService.this;
+    /**
+     * Handles requests of bound processes on the main thread of the service, like intents
+     */
+    private class IncomingHandler extends Handler {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_GET:
+                    long keyId = msg.getData().getLong(EXTRA_KEY_ID, -1);
+                    sendPassphrase(msg.replyTo, getCachedPassphraseImpl(keyId));
+                    break;
+                default:
+                    super.handleMessage(msg);
+            }
         }
     }
 
-    private final IBinder mBinder = new PassphraseCacheBinder();
+    private final Messenger mMessenger = new Messenger(new IncomingHandler());
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mMessenger.getBinder();
+    }
 
 }
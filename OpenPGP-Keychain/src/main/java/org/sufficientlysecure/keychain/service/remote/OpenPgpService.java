@@ -21,8 +21,10 @@ import android.app.PendingIntent;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Binder;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
+import android.text.TextUtils;
 import org.openintents.openpgp.IOpenPgpService;
 import org.openintents.openpgp.OpenPgpError;
 import org.openintents.openpgp.OpenPgpSignatureResult;
@@ -32,7 +34,9 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.Id;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerify;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncrypt;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptKeys;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.provider.KeychainContract;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
@@ -40,23 +44,39 @@ import org.sufficientlysecure.keychain.service.PassphraseCacheService;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
 
 public class OpenPgpService extends RemoteService {
 
     private static final int PRIVATE_REQUEST_CODE_PASSPHRASE = 551;
     private static final int PRIVATE_REQUEST_CODE_USER_IDS = 552;
     private static final int PRIVATE_REQUEST_CODE_GET_KEYS = 553;
+    // plus the index of the item, so each item of a batch gets its own PendingIntent
+    private static final int PRIVATE_REQUEST_CODE_BATCH_USER_IDS = 1000;
+
+    // clients of version 2 can still use execute, batches need version 3
+    private static final int MIN_API_VERSION = 2;
+    private static final int MIN_API_VERSION_BATCH = 3;
+
+    private RemoteRequestScheduler mScheduler;
 
     /**
      * Search database for key ids based on emails.
      *
      * @param encryptionUserIds
+     * @param requestCode        of the PendingIntent for selecting the keys
      * @return
      */
-    private Intent getKeyIdsFromEmails(Intent data, String[] encryptionUserIds) {
+    private Intent getKeyIdsFromEmails(Intent data, String[] encryptionUserIds, int requestCode) {
         // find key ids to given emails in database
         ArrayList<Long> keyIds = new ArrayList<Long>();
 
@@ -65,18 +85,17 @@ public class OpenPgpService extends RemoteService {
         ArrayList<String> missingUserIds = new ArrayList<String>();
         ArrayList<String> dublicateUserIds = new ArrayList<String>();
 
+        HashMap<String, ArrayList<Long>> keyIdsByEmail = queryKeyIdsByEmails(encryptionUserIds);
         for (String email : encryptionUserIds) {
-            Uri uri = KeychainContract.KeyRings.buildPublicKeyRingsByEmailsUri(email);
-            Cursor cur = getContentResolver().query(uri, null, null, null, null);
-            if (cur.moveToFirst()) {
-                long id = cur.getLong(cur.getColumnIndex(KeychainContract.KeyRings.MASTER_KEY_ID));
-                keyIds.add(id);
+            ArrayList<Long> ids = keyIdsByEmail.get(PgpKeyHelper.normalizeEmail(email));
+            if (ids != null) {
+                keyIds.add(ids.get(0));
             } else {
                 missingUserIdsCheck = true;
                 missingUserIds.add(email);
                 Log.d(Constants.TAG, "user id missing");
             }
-            if (cur.moveToNext()) {
+            if (ids != null && ids.size() > 1) {
                 dublicateUserIdsCheck = true;
                 dublicateUserIds.add(email);
                 Log.d(Constants.TAG, "more than one user id with the same email");
@@ -100,7 +119,7 @@ public class OpenPgpService extends RemoteService {
             intent.putExtra(RemoteServiceActivity.EXTRA_DATA, data);
 
             PendingIntent pi = PendingIntent.getActivity
-                    (getBaseContext(), PRIVATE_REQUEST_CODE_USER_IDS, intent, 0);
+                    (getBaseContext(), requestCode, intent, 0);
 
             // return PendingIntent to be executed by client
             Intent result = new Intent();
@@ -119,6 +138,37 @@ public class OpenPgpService extends RemoteService {
         return result;
     }
 
+    /**
+     * Looks up the public keys of all emails in one query
+     *
+     * @return normalized email -> master key ids, emails without key are missing
+     */
+    private HashMap<String, ArrayList<Long>> queryKeyIdsByEmails(String[] emails) {
+        HashMap<String, ArrayList<Long>> keyIdsByEmail = new HashMap<String, ArrayList<Long>>();
+        if (emails.length == 0) {
+            return keyIdsByEmail;
+        }
+
+        Uri uri = KeychainContract.UserIdEmails.buildPublicLookupUri(TextUtils.join(",", emails));
+        Cursor cur = getContentResolver().query(uri, new String[]{
+                KeychainContract.UserIdEmails.EMAIL, KeychainContract.KeyRings.MASTER_KEY_ID},
+                null, null, null);
+        try {
+            while (cur.moveToNext()) {
+                String email = cur.getString(0);
+                ArrayList<Long> ids = keyIdsByEmail.get(email);
+                if (ids == null) {
+                    ids = new ArrayList<Long>();
+                    keyIdsByEmail.put(email, ids);
+                }
+                ids.add(cur.getLong(1));
+            }
+        } finally {
+            cur.close();
+        }
+        return keyIdsByEmail;
+    }
+
     private Intent getPassphraseBundleIntent(Intent data, long keyId) {
         // build PendingIntent for passphrase input
         Intent intent = new Intent(getBaseContext(), RemoteServiceActivity.class);
@@ -136,18 +186,24 @@ public class OpenPgpService extends RemoteService {
         return result;
     }
 
+    /**
+     * Get passphrase from params or cache, if key has "no" passphrase, this returns an empty String
+     *
+     * @return null if the passphrase is unknown
+     */
+    private String getPassphrase(Intent data, AppSettings appSettings) {
+        if (data.hasExtra(OpenPgpApi.EXTRA_PASSPHRASE)) {
+            return data.getStringExtra(OpenPgpApi.EXTRA_PASSPHRASE);
+        }
+        return PassphraseCacheService.getCachedPassphrase(getContext(), appSettings.getKeyId());
+    }
+
     private Intent signImpl(Intent data, ParcelFileDescriptor input,
                             ParcelFileDescriptor output, AppSettings appSettings) {
         try {
             boolean asciiArmor = data.getBooleanExtra(OpenPgpApi.EXTRA_REQUEST_ASCII_ARMOR, true);
 
-            // get passphrase from cache, if key has "no" passphrase, this returns an empty String
-            String passphrase;
-            if (data.hasExtra(OpenPgpApi.EXTRA_PASSPHRASE)) {
-                passphrase = data.getStringExtra(OpenPgpApi.EXTRA_PASSPHRASE);
-            } else {
-                passphrase = PassphraseCacheService.getCachedPassphrase(getContext(), appSettings.getKeyId());
-            }
+            String passphrase = getPassphrase(data, appSettings);
             if (passphrase == null) {
                 // get PendingIntent for passphrase input, add it to given params and return to client
                 Intent passphraseBundle = getPassphraseBundleIntent(data, appSettings.getKeyId());
@@ -167,7 +223,8 @@ public class OpenPgpService extends RemoteService {
                         .signatureHashAlgorithm(appSettings.getHashAlgorithm())
                         .signatureForceV3(false)
                         .signatureKeyId(appSettings.getKeyId())
-                        .signaturePassphrase(passphrase);
+                        .signaturePassphrase(passphrase)
+                        .cachePrivateKey(true);
                 builder.build().execute();
             } finally {
                 is.close();
@@ -198,7 +255,7 @@ public class OpenPgpService extends RemoteService {
                 // get key ids based on given user ids
                 String[] userIds = data.getStringArrayExtra(OpenPgpApi.EXTRA_USER_IDS);
                 // give params through to activity...
-                Intent result = getKeyIdsFromEmails(data, userIds);
+                Intent result = getKeyIdsFromEmails(data, userIds, PRIVATE_REQUEST_CODE_USER_IDS);
 
                 if (result.getIntExtra(OpenPgpApi.RESULT_CODE, 0) == OpenPgpApi.RESULT_CODE_SUCCESS) {
                     keyIds = result.getLongArrayExtra(OpenPgpApi.EXTRA_KEY_IDS);
@@ -234,13 +291,7 @@ public class OpenPgpService extends RemoteService {
                         .encryptionKeyIds(keyIds);
 
                 if (sign) {
-                    String passphrase;
-                    if (data.hasExtra(OpenPgpApi.EXTRA_PASSPHRASE)) {
-                        passphrase = data.getStringExtra(OpenPgpApi.EXTRA_PASSPHRASE);
-                    } else {
-                        passphrase = PassphraseCacheService.getCachedPassphrase(getContext(),
-                                appSettings.getKeyId());
-                    }
+                    String passphrase = getPassphrase(data, appSettings);
                     if (passphrase == null) {
                         // get PendingIntent for passphrase input, add it to given params and return to client
                         Intent passphraseBundle = getPassphraseBundleIntent(data, appSettings.getKeyId());
@@ -251,7 +302,8 @@ public class OpenPgpService extends RemoteService {
                     builder.signatureHashAlgorithm(appSettings.getHashAlgorithm())
                             .signatureForceV3(false)
                             .signatureKeyId(appSettings.getKeyId())
-                            .signaturePassphrase(passphrase);
+                            .signaturePassphrase(passphrase)
+                            .cachePrivateKey(true);
                 } else {
                     // encrypt only
                     builder.signatureKeyId(Id.key.none);
@@ -275,6 +327,180 @@ public class OpenPgpService extends RemoteService {
         }
     }
 
+    /**
+     * Signs and/or encrypts every input into the output with the same index. The passphrase,
+     * the signing key and the keys of recipients are only looked up once for all items. Items
+     * may bring their own passphrase.
+     */
+    private Intent batchImpl(Intent data, ParcelFileDescriptor[] inputs,
+                             ParcelFileDescriptor[] outputs, AppSettings appSettings) {
+        String action = data.getAction();
+        boolean sign = !OpenPgpApi.ACTION_ENCRYPT.equals(action);
+        boolean encrypt = !OpenPgpApi.ACTION_SIGN.equals(action);
+
+        ArrayList<Intent> items = data.getParcelableArrayListExtra(OpenPgpApi.EXTRA_BATCH_ITEMS);
+        ArrayList<Intent> itemDatas = new ArrayList<Intent>(inputs.length);
+        LinkedHashSet<String> emails = new LinkedHashSet<String>();
+        for (int i = 0; i < inputs.length; i++) {
+            // the extras of an item override those of the batch
+            Intent itemData = new Intent(data);
+            itemData.removeExtra(OpenPgpApi.EXTRA_BATCH_ITEMS);
+            if (items != null && i < items.size() && items.get(i) != null) {
+                itemData.putExtras(items.get(i));
+            }
+            itemDatas.add(itemData);
+
+            if (encrypt && !itemData.hasExtra(OpenPgpApi.EXTRA_KEY_IDS)
+                    && itemData.hasExtra(OpenPgpApi.EXTRA_USER_IDS)) {
+                Collections.addAll(emails, itemData.getStringArrayExtra(OpenPgpApi.EXTRA_USER_IDS));
+            }
+        }
+
+        // one passphrase for all items without their own
+        String passphrase = null;
+        if (sign) {
+            for (Intent itemData : itemDatas) {
+                if (!itemData.hasExtra(OpenPgpApi.EXTRA_PASSPHRASE)) {
+                    passphrase = getPassphrase(data, appSettings);
+                    if (passphrase == null) {
+                        // get PendingIntent for passphrase input, the whole batch is repeated
+                        // afterwards
+                        return getPassphraseBundleIntent(data, appSettings.getKeyId());
+                    }
+                    break;
+                }
+            }
+        }
+
+        // recipients of all items in one query
+        HashMap<String, ArrayList<Long>> keyIdsByEmail =
+                queryKeyIdsByEmails(emails.toArray(new String[emails.size()]));
+        PgpSignEncryptKeys keys = new PgpSignEncryptKeys(getContext());
+
+        ArrayList<Intent> results = new ArrayList<Intent>(inputs.length);
+        for (int i = 0; i < inputs.length; i++) {
+            results.add(batchItemImpl(itemDatas.get(i), inputs[i], outputs[i], appSettings, sign,
+                    encrypt, passphrase, keys, keyIdsByEmail,
+                    PRIVATE_REQUEST_CODE_BATCH_USER_IDS + i));
+        }
+
+        Intent result = new Intent();
+        result.putParcelableArrayListExtra(OpenPgpApi.RESULT_BATCH_RESULTS, results);
+        result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+        return result;
+    }
+
+    /**
+     * @param passphrase  used if the item has no EXTRA_PASSPHRASE of its own
+     * @param requestCode of the PendingIntent for selecting the keys of this item
+     */
+    private Intent batchItemImpl(Intent data, ParcelFileDescriptor input,
+                                 ParcelFileDescriptor output, AppSettings appSettings,
+                                 boolean sign, boolean encrypt, String passphrase,
+                                 PgpSignEncryptKeys keys,
+                                 HashMap<String, ArrayList<Long>> keyIdsByEmail,
+                                 int requestCode) {
+        // Get Input- and OutputStream from ParcelFileDescriptor
+        InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(input);
+        OutputStream os = new ParcelFileDescriptor.AutoCloseOutputStream(output);
+        try {
+            boolean asciiArmor = data.getBooleanExtra(OpenPgpApi.EXTRA_REQUEST_ASCII_ARMOR, true);
+
+            long inputLength = is.available();
+            InputData inputData = new InputData(is, inputLength);
+
+            PgpSignEncrypt.Builder builder = new PgpSignEncrypt.Builder(getContext(), inputData, os);
+            builder.enableAsciiArmorOutput(asciiArmor)
+                    .keys(keys);
+
+            if (encrypt) {
+                long[] keyIds;
+                if (data.hasExtra(OpenPgpApi.EXTRA_KEY_IDS)) {
+                    keyIds = data.getLongArrayExtra(OpenPgpApi.EXTRA_KEY_IDS);
+                } else if (data.hasExtra(OpenPgpApi.EXTRA_USER_IDS)) {
+                    String[] userIds = data.getStringArrayExtra(OpenPgpApi.EXTRA_USER_IDS);
+                    keyIds = new long[userIds.length];
+                    for (int i = 0; i < userIds.length; i++) {
+                        ArrayList<Long> ids =
+                                keyIdsByEmail.get(PgpKeyHelper.normalizeEmail(userIds[i]));
+                        if (ids == null || ids.size() != 1) {
+                            // let the user select the keys for this item, as for a single call
+                            return getKeyIdsFromEmails(data, userIds, requestCode);
+                        }
+                        keyIds[i] = ids.get(0);
+                    }
+                } else {
+                    Intent result = new Intent();
+                    result.putExtra(OpenPgpApi.RESULT_ERROR,
+                            new OpenPgpError(OpenPgpError.GENERIC_ERROR,
+                                    "Missing parameter user_ids or key_ids!"));
+                    result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+                    return result;
+                }
+
+                // add own key for encryption
+                keyIds = Arrays.copyOf(keyIds, keyIds.length + 1);
+                keyIds[keyIds.length - 1] = appSettings.getKeyId();
+
+                builder.compressionId(appSettings.getCompression())
+                        .symmetricEncryptionAlgorithm(appSettings.getEncryptionAlgorithm())
+                        .encryptionKeyIds(keyIds);
+            }
+
+            if (sign) {
+                builder.signatureHashAlgorithm(appSettings.getHashAlgorithm())
+                        .signatureForceV3(false)
+                        .signatureKeyId(appSettings.getKeyId())
+                        .signaturePassphrase(data.hasExtra(OpenPgpApi.EXTRA_PASSPHRASE)
+                                ? data.getStringExtra(OpenPgpApi.EXTRA_PASSPHRASE) : passphrase)
+                        .cachePrivateKey(true);
+            } else {
+                // encrypt only
+                builder.signatureKeyId(Id.key.none);
+            }
+            // execute PGP operation!
+            builder.build().execute();
+
+            Intent result = new Intent();
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
+            return result;
+        } catch (Exception e) {
+            Intent result = new Intent();
+            result.putExtra(OpenPgpApi.RESULT_ERROR,
+                    new OpenPgpError(OpenPgpError.GENERIC_ERROR, e.getMessage()));
+            result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+            return result;
+        } finally {
+            // close right away, so the client can finish this item
+            closeQuietly(is);
+            closeQuietly(os);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Closing stream failed", e);
+        }
+    }
+
+    private static void closeAll(ParcelFileDescriptor[] fds) {
+        if (fds == null) {
+            return;
+        }
+        for (ParcelFileDescriptor fd : fds) {
+            if (fd == null) {
+                continue;
+            }
+            try {
+                fd.close();
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Closing ParcelFileDescriptor failed", e);
+            }
+        }
+    }
+
     private Intent decryptAndVerifyImpl(Intent data, ParcelFileDescriptor input,
                                         ParcelFileDescriptor output, AppSettings appSettings) {
         try {
@@ -293,7 +519,8 @@ public class OpenPgpService extends RemoteService {
                 builder.assumeSymmetric(false) // no support for symmetric encryption
                         // allow only the private key for this app for decryption
                         .enforcedKeyId(appSettings.getKeyId())
-                        .passphrase(passphrase);
+                        .passphrase(passphrase)
+                        .cachePrivateKey(true);
 
                 // TODO: currently does not support binary signed-only content
                 PgpDecryptVerifyResult decryptVerifyResult = builder.build().execute();
@@ -380,7 +607,7 @@ public class OpenPgpService extends RemoteService {
     private Intent getKeyIdsImpl(Intent data) {
         // get key ids based on given user ids
         String[] userIds = data.getStringArrayExtra(OpenPgpApi.EXTRA_USER_IDS);
-        Intent result = getKeyIdsFromEmails(data, userIds);
+        Intent result = getKeyIdsFromEmails(data, userIds, PRIVATE_REQUEST_CODE_USER_IDS);
         return result;
     }
 
@@ -391,9 +618,10 @@ public class OpenPgpService extends RemoteService {
      * - is allowed to call the service (access has been granted)
      *
      * @param data
+     * @param minApiVersion lowest API version of the client supporting the call
      * @return null if everything is okay, or a Bundle with an error/PendingIntent
      */
-    private Intent checkRequirements(Intent data) {
+    private Intent checkRequirements(Intent data, int minApiVersion) {
         // params Bundle is required!
         if (data == null) {
             Intent result = new Intent();
@@ -403,8 +631,9 @@ public class OpenPgpService extends RemoteService {
             return result;
         }
 
-        // version code is required and needs to correspond to version code of service!
-        if (data.getIntExtra(OpenPgpApi.EXTRA_API_VERSION, -1) != OpenPgpApi.API_VERSION) {
+        // version code is required and needs to be supported by the service!
+        int apiVersion = data.getIntExtra(OpenPgpApi.EXTRA_API_VERSION, -1);
+        if (apiVersion < minApiVersion || apiVersion > OpenPgpApi.API_VERSION) {
             Intent result = new Intent();
             OpenPgpError error = new OpenPgpError
                         (OpenPgpError.INCOMPATIBLE_API_VERSIONS, "Incompatible API versions!");
@@ -422,38 +651,149 @@ public class OpenPgpService extends RemoteService {
         return null;
     }
 
-    // TODO: multi-threading
+    private Intent executeImpl(Intent data, ParcelFileDescriptor input,
+                               ParcelFileDescriptor output, AppSettings appSettings) {
+        String action = data.getAction();
+        if (OpenPgpApi.ACTION_SIGN.equals(action)) {
+            return signImpl(data, input, output, appSettings);
+        } else if (OpenPgpApi.ACTION_ENCRYPT.equals(action)) {
+            return encryptAndSignImpl(data, input, output, appSettings, false);
+        } else if (OpenPgpApi.ACTION_SIGN_AND_ENCRYPT.equals(action)) {
+            return encryptAndSignImpl(data, input, output, appSettings, true);
+        } else if (OpenPgpApi.ACTION_DECRYPT_VERIFY.equals(action)) {
+            return decryptAndVerifyImpl(data, input, output, appSettings);
+        } else if (OpenPgpApi.ACTION_GET_KEY.equals(action)) {
+            return getKeyImpl(data);
+        } else if (OpenPgpApi.ACTION_GET_KEY_IDS.equals(action)) {
+            return getKeyIdsImpl(data);
+        } else {
+            return null;
+        }
+    }
+
+    private static Intent checkBatch(Intent data, ParcelFileDescriptor[] inputs,
+                                     ParcelFileDescriptor[] outputs) {
+        String action = data.getAction();
+        String message = null;
+        if (!OpenPgpApi.ACTION_SIGN.equals(action)
+                && !OpenPgpApi.ACTION_ENCRYPT.equals(action)
+                && !OpenPgpApi.ACTION_SIGN_AND_ENCRYPT.equals(action)) {
+            message = "Action not supported in batches!";
+        } else if (inputs == null || outputs == null || inputs.length != outputs.length) {
+            message = "Number of inputs and outputs differs!";
+        } else if (inputs.length > OpenPgpApi.MAX_BATCH_SIZE) {
+            message = "Batch exceeds " + OpenPgpApi.MAX_BATCH_SIZE + " items!";
+        }
+        if (message == null) {
+            return null;
+        }
+
+        Intent result = new Intent();
+        result.putExtra(OpenPgpApi.RESULT_ERROR,
+                new OpenPgpError(OpenPgpError.GENERIC_ERROR, message));
+        result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+        return result;
+    }
+
+    private static boolean isStreamAction(String action) {
+        return OpenPgpApi.ACTION_SIGN.equals(action)
+                || OpenPgpApi.ACTION_ENCRYPT.equals(action)
+                || OpenPgpApi.ACTION_SIGN_AND_ENCRYPT.equals(action)
+                || OpenPgpApi.ACTION_DECRYPT_VERIFY.equals(action);
+    }
+
     private final IOpenPgpService.Stub mBinder = new IOpenPgpService.Stub() {
 
         @Override
-        public Intent execute(Intent data, ParcelFileDescriptor input, ParcelFileDescriptor output) {
-            Intent errorResult = checkRequirements(data);
+        public Intent execute(final Intent data, final ParcelFileDescriptor input,
+                              final ParcelFileDescriptor output) {
+            // checks use the calling uid, so they need to be done on the Binder thread
+            Intent errorResult = checkRequirements(data, MIN_API_VERSION);
             if (errorResult != null) {
                 return errorResult;
             }
 
             final AppSettings appSettings = getAppSettings();
 
-            String action = data.getAction();
-            if (OpenPgpApi.ACTION_SIGN.equals(action)) {
-                return signImpl(data, input, output, appSettings);
-            } else if (OpenPgpApi.ACTION_ENCRYPT.equals(action)) {
-                return encryptAndSignImpl(data, input, output, appSettings, false);
-            } else if (OpenPgpApi.ACTION_SIGN_AND_ENCRYPT.equals(action)) {
-                return encryptAndSignImpl(data, input, output, appSettings, true);
-            } else if (OpenPgpApi.ACTION_DECRYPT_VERIFY.equals(action)) {
-                return decryptAndVerifyImpl(data, input, output, appSettings);
-            } else if (OpenPgpApi.ACTION_GET_KEY.equals(action)) {
-                return getKeyImpl(data);
-            } else if (OpenPgpApi.ACTION_GET_KEY_IDS.equals(action)) {
-                return getKeyIdsImpl(data);
-            } else {
-                return null;
+            // quick database lookups are answered right away, sign/encrypt/decrypt are run
+            // by the scheduler, so they do not occupy the Binder threads of other apps
+            if (!isStreamAction(data.getAction())) {
+                return executeImpl(data, input, output, appSettings);
+            }
+            return schedule(new Callable<Intent>() {
+                @Override
+                public Intent call() {
+                    return executeImpl(data, input, output, appSettings);
+                }
+            });
+        }
+
+        @Override
+        public Intent executeBatch(final Intent data, final ParcelFileDescriptor[] inputs,
+                                   final ParcelFileDescriptor[] outputs) {
+            try {
+                Intent errorResult = checkRequirements(data, MIN_API_VERSION_BATCH);
+                if (errorResult == null) {
+                    errorResult = checkBatch(data, inputs, outputs);
+                }
+                if (errorResult != null) {
+                    return errorResult;
+                }
+
+                final AppSettings appSettings = getAppSettings();
+
+                // the whole batch is one request for the scheduler, its items are processed
+                // one after another
+                return schedule(new Callable<Intent>() {
+                    @Override
+                    public Intent call() {
+                        return batchImpl(data, inputs, outputs, appSettings);
+                    }
+                });
+            } finally {
+                // items close their descriptors when done, this catches skipped ones
+                closeAll(inputs);
+                closeAll(outputs);
+            }
+        }
+
+        /**
+         * Runs the task in the scheduler, must be called on the Binder thread
+         */
+        private Intent schedule(Callable<Intent> task) {
+            try {
+                return mScheduler.execute(Binder.getCallingUid(), task);
+            } catch (RejectedExecutionException e) {
+                Log.e(Constants.TAG, "Rejected request", e);
+                Intent result = new Intent();
+                result.putExtra(OpenPgpApi.RESULT_ERROR,
+                        new OpenPgpError(OpenPgpError.GENERIC_ERROR,
+                                "Too many requests, try again later: " + e.getMessage()));
+                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+                return result;
+            } catch (Exception e) {
+                Intent result = new Intent();
+                result.putExtra(OpenPgpApi.RESULT_ERROR,
+                        new OpenPgpError(OpenPgpError.GENERIC_ERROR, e.getMessage()));
+                result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_ERROR);
+                return result;
             }
         }
 
     };
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mScheduler = new RemoteRequestScheduler("OpenPgpService");
+    }
+
+    @Override
+    public void onDestroy() {
+        mScheduler.shutdown();
+        super.onDestroy();
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return mBinder;
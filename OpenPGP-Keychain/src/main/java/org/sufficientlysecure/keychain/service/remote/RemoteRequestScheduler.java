@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service.remote;
+
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs requests of remote apps on a fixed number of worker threads. Each app has its own queue
+ * and the workers take requests from the apps in turn, so an app sending many requests does
+ * not delay the requests of other apps. An app can only queue a limited number of requests,
+ * further ones are rejected right away instead of holding on to a Binder thread.
+ * <p/>
+ * An app can run requests on all workers but one. A request blocks its worker while it waits
+ * for the streams of its app, so an app that does not read or write them can not block the
+ * requests of all other apps.
+ */
+class RemoteRequestScheduler {
+    // requests of one app waiting for a worker
+    static final int MAX_QUEUED_PER_APP = 4;
+    // a request waiting for the streams of its app must not block all other apps, even on a
+    // single core
+    static final int MIN_WORKERS = 2;
+
+    private final Object mLock = new Object();
+    private final SparseArray<ArrayDeque<FutureTask<?>>> mQueues =
+            new SparseArray<ArrayDeque<FutureTask<?>>>();
+    // running requests per app
+    private final SparseIntArray mRunning = new SparseIntArray();
+    // apps with queued requests that may run another one, in the order they get a worker next
+    private final ArrayDeque<Integer> mReadyApps = new ArrayDeque<Integer>();
+    private final Thread[] mWorkers;
+    private final int mMaxRunningPerApp;
+    private boolean mShutdown;
+
+    /**
+     * One worker per available processor, at least MIN_WORKERS
+     */
+    RemoteRequestScheduler(String name) {
+        this(name, Runtime.getRuntime().availableProcessors());
+    }
+
+    RemoteRequestScheduler(String name, int workerCount) {
+        mWorkers = new Thread[Math.max(workerCount, MIN_WORKERS)];
+        mMaxRunningPerApp = mWorkers.length - 1;
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, name + " #" + (i + 1));
+            mWorkers[i].setDaemon(true);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * Queues the request of the app with the given uid and waits for its result
+     *
+     * @throws RejectedExecutionException if too many requests of the app are queued already
+     * @throws Exception                  the exception thrown by the request
+     */
+    <T> T execute(int uid, Callable<T> request) throws Exception {
+        FutureTask<T> task = new FutureTask<T>(request);
+        synchronized (mLock) {
+            if (mShutdown) {
+                throw new RejectedExecutionException("scheduler has been shut down");
+            }
+            ArrayDeque<FutureTask<?>> queue = mQueues.get(uid);
+            if (queue == null) {
+                queue = new ArrayDeque<FutureTask<?>>();
+                mQueues.put(uid, queue);
+            }
+            if (queue.size() >= MAX_QUEUED_PER_APP) {
+                throw new RejectedExecutionException("too many requests queued");
+            }
+            if (queue.isEmpty() && mRunning.get(uid) < mMaxRunningPerApp) {
+                mReadyApps.add(uid);
+                mLock.notify();
+            }
+            queue.add(task);
+        }
+
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        } catch (InterruptedException e) {
+            task.cancel(true);
+            throw e;
+        }
+    }
+
+    private void work() {
+        while (true) {
+            FutureTask<?> task;
+            int uid;
+            synchronized (mLock) {
+                while (mReadyApps.isEmpty() && !mShutdown) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        // check mShutdown
+                    }
+                }
+                if (mShutdown) {
+                    return;
+                }
+
+                uid = mReadyApps.poll();
+                ArrayDeque<FutureTask<?>> queue = mQueues.get(uid);
+                task = queue.poll();
+                int running = mRunning.get(uid) + 1;
+                mRunning.put(uid, running);
+                if (queue.isEmpty()) {
+                    mQueues.remove(uid);
+                } else if (running < mMaxRunningPerApp) {
+                    // next request of this app after those of the other apps
+                    mReadyApps.add(uid);
+                }
+                // otherwise the app is ready again when one of its requests has finished
+            }
+            try {
+                task.run();
+            } finally {
+                finished(uid);
+            }
+        }
+    }
+
+    private void finished(int uid) {
+        synchronized (mLock) {
+            int running = mRunning.get(uid) - 1;
+            if (running > 0) {
+                mRunning.put(uid, running);
+            } else {
+                mRunning.delete(uid);
+            }
+            ArrayDeque<FutureTask<?>> queue = mQueues.get(uid);
+            if (queue != null && running == mMaxRunningPerApp - 1 && !mReadyApps.contains(uid)) {
+                mReadyApps.add(uid);
+                mLock.notify();
+            }
+        }
+    }
+
+    /**
+     * Stops the workers, queued requests are cancelled
+     */
+    void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            for (int i = 0; i < mQueues.size(); i++) {
+                for (FutureTask<?> task : mQueues.valueAt(i)) {
+                    task.cancel(false);
+                }
+            }
+            mQueues.clear();
+            mRunning.clear();
+            mReadyApps.clear();
+            mLock.notifyAll();
+        }
+    }
+}
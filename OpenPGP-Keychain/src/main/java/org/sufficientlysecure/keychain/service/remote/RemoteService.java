@@ -19,14 +19,18 @@ package org.sufficientlysecure.keychain.service.remote;
 
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.Signature;
+import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.Handler;
 import org.openintents.openpgp.OpenPgpError;
 import org.openintents.openpgp.util.OpenPgpApi;
 import org.sufficientlysecure.keychain.Constants;
@@ -47,6 +51,28 @@ public abstract class RemoteService extends Service {
     private static final int PRIVATE_REQUEST_CODE_REGISTER = 651;
     private static final int PRIVATE_REQUEST_CODE_ERROR = 652;
 
+    private final VerifiedCallerCache mCallerCache = new VerifiedCallerCache();
+
+    // registered apps or their settings changed
+    private final ContentObserver mApiAppsObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mCallerCache.clear();
+        }
+    };
+
+    // packages have been installed, updated or removed, possibly with another signature
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+            if (uid != -1) {
+                mCallerCache.remove(uid);
+            } else {
+                mCallerCache.clear();
+            }
+        }
+    };
 
     public Context getContext() {
         return mContext;
@@ -130,6 +156,11 @@ public abstract class RemoteService extends Service {
      * @return
      */
     protected AppSettings getAppSettings() {
+        VerifiedCallerCache.Caller caller = mCallerCache.get(Binder.getCallingUid());
+        if (caller != null) {
+            return caller.mAppSettings;
+        }
+
         String[] callingPackages = getPackageManager().getPackagesForUid(Binder.getCallingUid());
 
         // get app settings for this package
@@ -169,6 +200,12 @@ public abstract class RemoteService extends Service {
             return false;
         }
 
+        // verified before, skip PackageManager and database
+        if (mCallerCache.get(uid) != null) {
+            return true;
+        }
+        int generation = mCallerCache.getGeneration();
+
         String[] callingPackages = getPackageManager().getPackagesForUid(uid);
 
         // is calling package allowed to use this service?
@@ -176,6 +213,10 @@ public abstract class RemoteService extends Service {
             String currentPkg = callingPackages[i];
 
             if (isPackageAllowed(currentPkg)) {
+                AppSettings settings = ProviderHelper.getApiAppSettings(this,
+                        KeychainContract.ApiApps.buildByPackageNameUri(currentPkg));
+                mCallerCache.put(uid, new VerifiedCallerCache.Caller(currentPkg, settings),
+                        generation);
                 return true;
             }
         }
@@ -227,6 +268,22 @@ public abstract class RemoteService extends Service {
     public void onCreate() {
         super.onCreate();
         mContext = this;
+
+        getContentResolver().registerContentObserver(KeychainContract.ApiApps.CONTENT_URI, true,
+                mApiAppsObserver);
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        registerReceiver(mPackageReceiver, packageFilter);
+    }
+
+    @Override
+    public void onDestroy() {
+        getContentResolver().unregisterContentObserver(mApiAppsObserver);
+        unregisterReceiver(mPackageReceiver);
+        super.onDestroy();
     }
 
 }
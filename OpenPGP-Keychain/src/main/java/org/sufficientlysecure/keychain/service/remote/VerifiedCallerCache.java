@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service.remote;
+
+import android.util.SparseArray;
+
+/**
+ * Callers of the remote API that have been verified, i.e. one of the packages of their uid is
+ * registered and its signature equals the stored one.
+ * <p/>
+ * Entries are keyed by uid only, looking up the current signature would need the
+ * PackageManager call this cache avoids. So entries must be removed when packages of the uid
+ * change and cleared when registered apps change, the cache itself cannot notice that.
+ */
+class VerifiedCallerCache {
+
+    static class Caller {
+        final String mPackageName;
+        final AppSettings mAppSettings;
+
+        Caller(String packageName, AppSettings appSettings) {
+            mPackageName = packageName;
+            mAppSettings = appSettings;
+        }
+    }
+
+    private final SparseArray<Caller> mCallers = new SparseArray<Caller>();
+    // incremented on every invalidation, so verifications running meanwhile are not stored
+    private int mGeneration;
+
+    /**
+     * @return the verified caller, null if uid has not been verified yet
+     */
+    synchronized Caller get(int uid) {
+        return mCallers.get(uid);
+    }
+
+    /**
+     * @return generation to pass to put() after the caller has been verified
+     */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    synchronized void put(int uid, Caller caller, int generation) {
+        if (generation == mGeneration) {
+            mCallers.put(uid, caller);
+        }
+    }
+
+    synchronized void remove(int uid) {
+        ++mGeneration;
+        mCallers.remove(uid);
+    }
+
+    synchronized void clear() {
+        ++mGeneration;
+        mCallers.clear();
+    }
+}
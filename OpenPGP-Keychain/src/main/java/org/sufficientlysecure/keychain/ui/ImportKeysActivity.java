@@ -420,7 +420,24 @@ public class ImportKeysActivity extends DrawerActivity implements ActionBar.OnNa
 
             // get selected key entries
             ArrayList<ImportKeysListEntry> selectedEntries = mListFragment.getSelectedData();
-            data.putParcelableArrayList(KeychainIntentService.IMPORT_KEY_LIST, selectedEntries);
+            if (mListFragment.getKeyBytes() != null) {
+                data.putParcelableArrayList(KeychainIntentService.IMPORT_KEY_LIST, selectedEntries);
+            } else {
+                // entries from files only contain summaries, the service reads the key rings
+                // again from the file, so large files fit into an Intent. The master key ids make
+                // sure the listed key rings are imported, even if the file has changed meanwhile
+                int[] positions = new int[selectedEntries.size()];
+                long[] masterKeyIds = new long[selectedEntries.size()];
+                for (int i = 0; i < positions.length; ++i) {
+                    positions[i] = selectedEntries.get(i).getSourcePosition();
+                    masterKeyIds[i] = selectedEntries.get(i).getKeyId();
+                }
+                data.putParcelable(KeychainIntentService.IMPORT_KEY_SOURCE_URI,
+                        mListFragment.getDataUri());
+                data.putIntArray(KeychainIntentService.IMPORT_KEY_SOURCE_POSITIONS, positions);
+                data.putLongArray(KeychainIntentService.IMPORT_KEY_SOURCE_MASTER_KEY_IDS,
+                        masterKeyIds);
+            }
 
             intent.putExtra(KeychainIntentService.EXTRA_DATA, data);
 
@@ -183,7 +183,8 @@ public class ImportKeysListFragment extends ListFragment implements
         switch (id) {
             case LOADER_ID_BYTES: {
                 InputData inputData = getInputData(mKeyBytes, mDataUri);
-                return new ImportKeysListLoader(mActivity, inputData);
+                // key rings from files are not kept in memory, but read again on import
+                return new ImportKeysListLoader(mActivity, inputData, mKeyBytes != null);
             }
             case LOADER_ID_SERVER_QUERY: {
                 return new ImportKeysListServerLoader(getActivity(), mServerQuery, mKeyServer);
@@ -215,6 +216,11 @@ public class ImportKeysListFragment extends ListFragment implements
             setListShownNoAnimation(true);
         }
 
+        // more results are on the way, report errors and the number of keys at the end
+        if (data.isPartial()) {
+            return;
+        }
+
         Exception error = data.getError();
 
         switch (loader.getId()) {
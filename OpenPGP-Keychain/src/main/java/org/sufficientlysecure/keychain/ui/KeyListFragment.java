@@ -275,16 +275,16 @@ public class KeyListFragment extends Fragment
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         // This is called when a new Loader needs to be created. This
         // sample only has one Loader, so we don't care about the ID.
-        Uri baseUri = KeyRings.buildUnifiedKeyRingsUri();
-        String where = null;
-        String whereArgs[] = null;
+        Uri baseUri;
         if (mCurQuery != null) {
-            where = KeychainContract.UserIds.USER_ID + " LIKE ?";
-            whereArgs = new String[]{"%" + mCurQuery + "%"};
+            // prefix search in the full text index of all user ids and key ids
+            baseUri = KeyRings.buildUnifiedKeyRingsSearchUri(mCurQuery);
+        } else {
+            baseUri = KeyRings.buildUnifiedKeyRingsUri();
         }
         // Now create and return a CursorLoader that will take care of
         // creating a Cursor for the data being displayed.
-        return new CursorLoader(getActivity(), baseUri, PROJECTION, where, whereArgs, SORT_ORDER);
+        return new CursorLoader(getActivity(), baseUri, PROJECTION, null, null, SORT_ORDER);
     }
 
     @Override
@@ -250,7 +250,13 @@ public class SelectPublicKeyFragment extends ListFragmentWorkaround implements T
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         // This is called when a new Loader needs to be created. This
         // sample only has one Loader, so we don't care about the ID.
-        Uri baseUri = KeyRings.buildPublicKeyRingsUri();
+        Uri baseUri;
+        if (mCurQuery != null) {
+            // prefix search in the full text index of all user ids and key ids
+            baseUri = KeyRings.buildPublicKeyRingsSearchUri(mCurQuery);
+        } else {
+            baseUri = KeyRings.buildPublicKeyRingsUri();
+        }
 
         // These are the rows that we will retrieve.
         long now = new Date().getTime() / 1000;
@@ -290,16 +296,10 @@ public class SelectPublicKeyFragment extends ListFragmentWorkaround implements T
             // sort by selected master keys
             orderBy = inMasterKeyList + " DESC, " + orderBy;
         }
-        String where = null;
-        String whereArgs[] = null;
-        if (mCurQuery != null) {
-            where = UserIds.USER_ID + " LIKE ?";
-            whereArgs = new String[]{"%" + mCurQuery + "%"};
-        }
 
         // Now create and return a CursorLoader that will take care of
         // creating a Cursor for the data being displayed.
-        return new CursorLoader(getActivity(), baseUri, projection, where, whereArgs, orderBy);
+        return new CursorLoader(getActivity(), baseUri, projection, null, null, orderBy);
     }
 
     @Override
@@ -29,10 +29,20 @@ public class AsyncTaskResultWrapper<T> {
 
     private final T mResult;
     private final Exception mError;
+    private final boolean mPartial;
 
     public AsyncTaskResultWrapper(T result, Exception error) {
+        this(result, error, false);
+    }
+
+    /**
+     * @param partial true if the result is delivered while the task is still running and will
+     *                be followed by the complete result
+     */
+    public AsyncTaskResultWrapper(T result, Exception error, boolean partial) {
         this.mResult = result;
         this.mError = error;
+        this.mPartial = partial;
     }
 
     public T getResult() {
@@ -43,4 +53,8 @@ public class AsyncTaskResultWrapper<T> {
         return mError;
     }
 
+    public boolean isPartial() {
+        return mPartial;
+    }
+
 }
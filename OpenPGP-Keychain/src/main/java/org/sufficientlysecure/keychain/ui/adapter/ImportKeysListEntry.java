@@ -51,6 +51,9 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
 
     private byte[] mBytes = new byte[]{};
 
+    // position in the source file as split by PgpKeyRingSplitter, -1 if unknown
+    private int mSourcePosition = -1;
+
     public ImportKeysListEntry(ImportKeysListEntry b) {
         this.userIds = b.userIds;
         this.keyId = b.keyId;
@@ -63,6 +66,7 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
         this.secretKey = b.secretKey;
         this.mSelected = b.mSelected;
         this.mBytes = b.mBytes;
+        this.mSourcePosition = b.mSourcePosition;
     }
 
     public int describeContents() {
@@ -83,6 +87,7 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
         dest.writeByte((byte) (mSelected ? 1 : 0));
         dest.writeInt(mBytes.length);
         dest.writeByteArray(mBytes);
+        dest.writeInt(mSourcePosition);
     }
 
     public static final Creator<ImportKeysListEntry> CREATOR = new Creator<ImportKeysListEntry>() {
@@ -101,6 +106,7 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
             vr.mSelected = source.readByte() == 1;
             vr.mBytes = new byte[source.readInt()];
             source.readByteArray(vr.mBytes);
+            vr.mSourcePosition = source.readInt();
 
             return vr;
         }
@@ -122,6 +128,14 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
         this.mBytes = bytes;
     }
 
+    public int getSourcePosition() {
+        return mSourcePosition;
+    }
+
+    public void setSourcePosition(int sourcePosition) {
+        this.mSourcePosition = sourcePosition;
+    }
+
     public boolean isSelected() {
         return mSelected;
     }
@@ -212,13 +226,23 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
     /**
      * Constructor based on key object, used for import from NFC, QR Codes, files
      */
-    @SuppressWarnings("unchecked")
     public ImportKeysListEntry(PGPKeyRing pgpKeyRing) {
+        this(pgpKeyRing, true);
+    }
+
+    /**
+     * @param keepBytes if false, only the summary is kept and the key ring has to be read again
+     *                  from its source position on import
+     */
+    @SuppressWarnings("unchecked")
+    public ImportKeysListEntry(PGPKeyRing pgpKeyRing, boolean keepBytes) {
         // save actual key object into entry, used to import it later
-        try {
-            this.mBytes = pgpKeyRing.getEncoded();
-        } catch (IOException e) {
-            Log.e(Constants.TAG, "IOException on pgpKeyRing.getEncoded()", e);
+        if (keepBytes) {
+            try {
+                this.mBytes = pgpKeyRing.getEncoded();
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "IOException on pgpKeyRing.getEncoded()", e);
+            }
         }
 
         // selected is default
@@ -18,18 +18,19 @@
 package org.sufficientlysecure.keychain.ui.adapter;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.support.v4.content.AsyncTaskLoader;
 import org.spongycastle.openpgp.PGPKeyRing;
 import org.spongycastle.openpgp.PGPObjectFactory;
-import org.spongycastle.openpgp.PGPUtil;
 import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.PgpKeyRingSplitter;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.OrderedTaskExecutor;
 import org.sufficientlysecure.keychain.util.PositionAwareInputStream;
 
-import java.io.BufferedInputStream;
-import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
 
 public class ImportKeysListLoader
         extends AsyncTaskLoader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> {
@@ -54,13 +55,25 @@ public class ImportKeysListLoader
 
     InputData mInputData;
 
+    boolean mKeepBytes;
+
     ArrayList<ImportKeysListEntry> mData = new ArrayList<ImportKeysListEntry>();
     AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> mEntryListWrapper;
 
     public ImportKeysListLoader(Context context, InputData inputData) {
+        this(context, inputData, true);
+    }
+
+    /**
+     * @param keepBytes if false, entries only contain a summary and their position in inputData,
+     *                  so memory does not grow with the size of large key files. They have to be
+     *                  read again from the source on import.
+     */
+    public ImportKeysListLoader(Context context, InputData inputData, boolean keepBytes) {
         super(context);
         this.mContext = context;
         this.mInputData = inputData;
+        this.mKeepBytes = keepBytes;
     }
 
     @Override
@@ -109,44 +122,43 @@ public class ImportKeysListLoader
      */
     private void generateListOfKeyrings(InputData inputData) {
 
-        boolean isEmpty = true;
         int nonPgpCounter = 0;
+        int keyRingCount = 0;
 
         PositionAwareInputStream progressIn = new PositionAwareInputStream(
                 inputData.getInputStream());
 
-        // need to have access to the bufferedInput, so we can reuse it for the possible
-        // PGPObject chunks after the first one, e.g. files with several consecutive ASCII
-        // armor blocks
-        BufferedInputStream bufferedInput = new BufferedInputStream(progressIn);
+        OrderedTaskExecutor<ImportKeysListEntry> executor =
+                new OrderedTaskExecutor<ImportKeysListEntry>("ImportKeysListLoader");
         try {
-
-            // read all available blocks... (asc files can contain many blocks with BEGIN END)
-            while (bufferedInput.available() > 0) {
-                isEmpty = false;
-                InputStream in = PGPUtil.getDecoderStream(bufferedInput);
-                PGPObjectFactory objectFactory = new PGPObjectFactory(in);
-
-                // go through all objects in this block
-                Object obj;
-                while ((obj = objectFactory.nextObject()) != null) {
-                    Log.d(Constants.TAG, "Found class: " + obj.getClass());
-
-                    if (obj instanceof PGPKeyRing) {
-                        PGPKeyRing newKeyring = (PGPKeyRing) obj;
-                        addToData(newKeyring);
-                    } else {
-                        Log.e(Constants.TAG, "Object not recognized as PGPKeyRing!");
-                        nonPgpCounter++;
-                    }
+            long startTime = SystemClock.elapsedRealtime();
+
+            // read all objects, parse them in parallel, but keep their order
+            PgpKeyRingSplitter splitter = new PgpKeyRingSplitter(progressIn);
+            byte[] keyRingBytes;
+            while ((keyRingBytes = splitter.nextKeyRing()) != null) {
+                while (executor.isFull()) {
+                    nonPgpCounter += addToData(executor.take());
                 }
+                executor.submit(new ParseTask(keyRingBytes, splitter.getPosition(), mKeepBytes));
+                ++keyRingCount;
+            }
+            while (executor.hasPending()) {
+                nonPgpCounter += addToData(executor.take());
             }
+
+            Log.d(Constants.TAG, "Parsed " + keyRingCount + " objects on "
+                    + executor.getThreadCount() + " threads in "
+                    + (SystemClock.elapsedRealtime() - startTime) + " ms");
         } catch (Exception e) {
             Log.e(Constants.TAG, "Exception on parsing key file!", e);
             mEntryListWrapper = new AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>(mData, e);
             nonPgpCounter = 0;
+        } finally {
+            executor.shutdown();
         }
 
+        boolean isEmpty = (keyRingCount == 0);
         if (isEmpty) {
             Log.e(Constants.TAG, "File has no content!", new FileHasNoContent());
             mEntryListWrapper = new AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>
@@ -159,9 +171,44 @@ public class ImportKeysListLoader
         }
     }
 
-    private void addToData(PGPKeyRing keyring) {
-        ImportKeysListEntry item = new ImportKeysListEntry(keyring);
+    /**
+     * @return 1 if the object was not recognized as PGPKeyRing
+     */
+    private int addToData(ImportKeysListEntry item) {
+        if (item == null) {
+            return 1;
+        }
         mData.add(item);
+        return 0;
+    }
+
+    /**
+     * Parses the bytes of one key ring as split by PgpKeyRingSplitter
+     */
+    private static class ParseTask implements Callable<ImportKeysListEntry> {
+        private final byte[] mKeyRingBytes;
+        private final int mPosition;
+        private final boolean mKeepBytes;
+
+        ParseTask(byte[] keyRingBytes, int position, boolean keepBytes) {
+            mKeyRingBytes = keyRingBytes;
+            mPosition = position;
+            mKeepBytes = keepBytes;
+        }
+
+        @Override
+        public ImportKeysListEntry call() throws Exception {
+            Object obj = new PGPObjectFactory(mKeyRingBytes).nextObject();
+
+            if (obj instanceof PGPKeyRing) {
+                ImportKeysListEntry entry = new ImportKeysListEntry((PGPKeyRing) obj, mKeepBytes);
+                entry.setSourcePosition(mPosition);
+                return entry;
+            } else {
+                Log.e(Constants.TAG, "Object not recognized as PGPKeyRing!");
+                return null;
+            }
+        }
     }
 
 }
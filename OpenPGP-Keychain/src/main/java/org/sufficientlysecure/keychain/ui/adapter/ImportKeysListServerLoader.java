@@ -18,16 +18,23 @@
 package org.sufficientlysecure.keychain.ui.adapter;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.content.AsyncTaskLoader;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.util.HkpKeyServer;
 import org.sufficientlysecure.keychain.util.KeyServer;
+import org.sufficientlysecure.keychain.util.KeyServerCache;
 import org.sufficientlysecure.keychain.util.Log;
 
 import java.util.ArrayList;
 
 public class ImportKeysListServerLoader
         extends AsyncTaskLoader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> {
+    // minimum time between two partial results while the keyserver response is read
+    private static final long PARTIAL_RESULT_INTERVAL = 500;
+
     Context mContext;
 
     String mServerQuery;
@@ -36,6 +43,9 @@ public class ImportKeysListServerLoader
     private ArrayList<ImportKeysListEntry> mEntryList = new ArrayList<ImportKeysListEntry>();
     private AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> mEntryListWrapper;
 
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private long mLastPartialResult;
+
     public ImportKeysListServerLoader(Context context, String serverQuery, String keyServer) {
         super(context);
         mContext = context;
@@ -81,13 +91,43 @@ public class ImportKeysListServerLoader
         super.deliverResult(data);
     }
 
+    /**
+     * Shows the keys found so far while the keyserver response is still read
+     */
+    private void deliverPartialResult(final ArrayList<ImportKeysListEntry> entries) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isStarted() && !isAbandoned()) {
+                    deliverResult(new AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>(
+                            entries, null, true));
+                }
+            }
+        });
+    }
+
     /**
      * Query keyserver
      */
     private void queryServer(String query, String keyServer) {
         HkpKeyServer server = new HkpKeyServer(keyServer);
+        server.setCache(KeyServerCache.getKeyServerCache(mContext));
+        final ArrayList<ImportKeysListEntry> partialResult = new ArrayList<ImportKeysListEntry>();
+        mLastPartialResult = SystemClock.uptimeMillis();
         try {
-            ArrayList<ImportKeysListEntry> searchResult = server.search(query);
+            ArrayList<ImportKeysListEntry> searchResult = server.search(query,
+                    new HkpKeyServer.SearchListener() {
+                        @Override
+                        public void onEntry(ImportKeysListEntry entry) {
+                            partialResult.add(entry);
+                            long now = SystemClock.uptimeMillis();
+                            if (now - mLastPartialResult >= PARTIAL_RESULT_INTERVAL) {
+                                mLastPartialResult = now;
+                                deliverPartialResult(
+                                        new ArrayList<ImportKeysListEntry>(partialResult));
+                            }
+                        }
+                    });
 
             mEntryList.clear();
             // add result to data
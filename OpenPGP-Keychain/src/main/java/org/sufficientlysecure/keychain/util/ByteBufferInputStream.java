@@ -0,0 +1,67 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * InputStream reading from a ByteBuffer, e.g. a direct buffer. Data is copied with bulk gets
+ * directly into the caller's array.
+ */
+public class ByteBufferInputStream extends InputStream {
+    private ByteBuffer mBuffer;
+
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!mBuffer.hasRemaining()) {
+            return -1;
+        }
+        return mBuffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!mBuffer.hasRemaining()) {
+            return -1;
+        }
+        int n = Math.min(length, mBuffer.remaining());
+        mBuffer.get(b, offset, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        int skipped = (int) Math.min(n, mBuffer.remaining());
+        mBuffer.position(mBuffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return mBuffer.remaining();
+    }
+}
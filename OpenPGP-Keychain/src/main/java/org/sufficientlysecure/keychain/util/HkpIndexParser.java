@@ -0,0 +1,222 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import org.sufficientlysecure.keychain.ui.adapter.ImportKeysListEntry;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.sufficientlysecure.keychain.ui.adapter.ImportKeysListEntry.getAlgorithmFromId;
+
+/**
+ * Parses a machine readable HKP index line by line while it is read, instead of reading the
+ * whole response first.
+ * <p/>
+ * Keys are returned as soon as their last uid line has been read, keys without uids and
+ * malformed lines are skipped.
+ */
+public class HkpIndexParser {
+    private final BufferedReader mReader;
+
+    // line read ahead to find the end of the previous key
+    private String mNextLine;
+
+    public HkpIndexParser(InputStream in, String charset) throws UnsupportedEncodingException {
+        if (charset == null) {
+            charset = "utf8";
+        }
+        mReader = new BufferedReader(new InputStreamReader(in, charset));
+    }
+
+    /**
+     * @return the next key of the index, null at the end of the stream
+     */
+    public ImportKeysListEntry next() throws IOException {
+        while (true) {
+            String line = mNextLine != null ? mNextLine : mReader.readLine();
+            mNextLine = null;
+            if (line == null) {
+                return null;
+            }
+
+            ImportKeysListEntry entry = parsePubLine(line);
+            if (entry == null) {
+                continue;
+            }
+
+            ArrayList<String> userIds = new ArrayList<String>();
+            while ((line = mReader.readLine()) != null) {
+                if (isType(line, "pub")) {
+                    mNextLine = line;
+                    break;
+                }
+                if (isType(line, "uid")) {
+                    String userId = parseUidLine(line);
+                    if (userId != null) {
+                        userIds.add(userId);
+                    }
+                }
+            }
+
+            if (!userIds.isEmpty()) {
+                entry.setUserIds(userIds);
+                return entry;
+            }
+        }
+    }
+
+    private static boolean isType(String line, String type) {
+        return line.regionMatches(true, 0, type + ":", 0, type.length() + 1);
+    }
+
+    /**
+     * pub:%keyid%:%algo%:%keylen%:%creationdate%:%expirationdate%:%flags%
+     * <ul>
+     * <li>%<b>keyid</b>% = this is either the fingerprint or the key ID of the key. Either the 16-digit or 8-digit
+     * key IDs are acceptable, but obviously the fingerprint is best.</li>
+     * <li>%<b>algo</b>% = the algorithm number, (i.e. 1==RSA, 17==DSA, etc).
+     * See <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a></li>
+     * <li>%<b>keylen</b>% = the key length (i.e. 1024, 2048, 4096, etc.)</li>
+     * <li>%<b>creationdate</b>% = creation date of the key in standard
+     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of seconds since
+     * 1/1/1970 UTC time)</li>
+     * <li>%<b>expirationdate</b>% = expiration date of the key in standard
+     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of seconds since
+     * 1/1/1970 UTC time)</li>
+     * <li>%<b>flags</b>% = letter codes to indicate details of the key, if any. Flags may be in any order. The
+     * meaning of "disabled" is implementation-specific. Note that individual flags may be unimplemented, so
+     * the absence of a given flag does not necessarily mean the absence of the detail.
+     * <ul>
+     * <li>r == revoked</li>
+     * <li>d == disabled</li>
+     * <li>e == expired</li>
+     * </ul>
+     * </li>
+     * </ul>
+     *
+     * @see <a href="http://tools.ietf.org/html/draft-shaw-openpgp-hkp-00#section-5.2">5.2. Machine Readable Indexes</a>
+     * in Internet-Draft OpenPGP HTTP Keyserver Protocol Document
+     * @return entry without user ids, null if the line is no valid pub line
+     */
+    private static ImportKeysListEntry parsePubLine(String line) {
+        if (!isType(line, "pub")) {
+            return null;
+        }
+        String[] fields = line.trim().split(":", -1);
+        if (fields.length < 7 || !isHex(fields[1])) {
+            return null;
+        }
+
+        final ImportKeysListEntry entry = new ImportKeysListEntry();
+        try {
+            entry.setBitStrength(Integer.parseInt(fields[3]));
+            entry.setAlgorithm(getAlgorithmFromId(Integer.parseInt(fields[2])));
+
+            final long creationDate = Long.parseLong(fields[4]);
+            final GregorianCalendar tmpGreg = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+            tmpGreg.setTimeInMillis(creationDate * 1000);
+            entry.setDate(tmpGreg.getTime());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        // contains the full fingerprint (v4) or the long key id if available
+        // see https://bitbucket.org/skskeyserver/sks-keyserver/pull-request/12/fixes-for-machine-readable-indexes/diff
+        // and https://github.com/openpgp-keychain/openpgp-keychain/issues/259#issuecomment-38168176
+        String fingerprintOrKeyId = fields[1];
+        if (fingerprintOrKeyId.length() > 16) {
+            entry.setFingerPrintHex(fingerprintOrKeyId.toLowerCase(Locale.US));
+            entry.setKeyIdHex("0x" + fingerprintOrKeyId.substring(fingerprintOrKeyId.length()
+                    - 16, fingerprintOrKeyId.length()));
+        } else {
+            // set key id only
+            entry.setKeyIdHex("0x" + fingerprintOrKeyId);
+        }
+
+        entry.setRevoked(fields[6].toLowerCase(Locale.US).contains("r"));
+
+        return entry;
+    }
+
+    /**
+     * uid:%escaped uid string%:%creationdate%:%expirationdate%:%flags%
+     * <ul>
+     * <li>%<b>escaped uid string</b>% = the user ID string, with HTTP %-escaping for anything that isn't 7-bit
+     * safe as well as for the ":" character.  Any other characters may be escaped, as desired.</li>
+     * <li>%<b>creationdate</b>% = creation date of the key in standard
+     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of seconds since
+     * 1/1/1970 UTC time)</li>
+     * <li>%<b>expirationdate</b>% = expiration date of the key in standard
+     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of seconds since
+     * 1/1/1970 UTC time)</li>
+     * <li>%<b>flags</b>% = letter codes to indicate details of the key, if any. Flags may be in any order. The
+     * meaning of "disabled" is implementation-specific. Note that individual flags may be unimplemented, so
+     * the absence of a given flag does not necessarily mean the absence of the detail.
+     * <ul>
+     * <li>r == revoked</li>
+     * <li>d == disabled</li>
+     * <li>e == expired</li>
+     * </ul>
+     * </li>
+     * </ul>
+     *
+     * @return the user id, null if the line is no valid uid line
+     */
+    private static String parseUidLine(String line) {
+        // the user id should have its colons escaped, but do not rely on it and take the
+        // other fields from the end
+        int end = line.length();
+        for (int i = 0; i < 3; ++i) {
+            end = line.lastIndexOf(':', end - 1);
+            if (end < 4) {
+                return null;
+            }
+        }
+
+        String userId = line.substring(4, end).trim();
+        if (userId.contains("%")) {
+            try {
+                // converts Strings like "Universit%C3%A4t" to a proper encoding form "Universität".
+                userId = URLDecoder.decode(userId, "UTF8");
+            } catch (UnsupportedEncodingException ignored) {
+                // will never happen, because "UTF8" is supported
+            } catch (IllegalArgumentException ignored) {
+                // not %-escaped after all, keep it as it is
+            }
+        }
+        return userId;
+    }
+
+    private static boolean isHex(String s) {
+        if (s.length() == 0) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); ++i) {
+            if (Character.digit(s.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
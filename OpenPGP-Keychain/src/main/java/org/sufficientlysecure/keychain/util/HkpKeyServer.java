@@ -26,7 +26,6 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.util.EntityUtils;
 import org.sufficientlysecure.keychain.Constants;
@@ -35,15 +34,14 @@ import org.sufficientlysecure.keychain.pgp.PgpKeyHelper;
 import org.sufficientlysecure.keychain.ui.adapter.ImportKeysListEntry;
 
 import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import static org.sufficientlysecure.keychain.ui.adapter.ImportKeysListEntry.getAlgorithmFromId;
 
 public class HkpKeyServer extends KeyServer {
     private static class HttpError extends Exception {
@@ -66,67 +64,14 @@ public class HkpKeyServer extends KeyServer {
         }
     }
 
+    public interface SearchListener {
+        void onEntry(ImportKeysListEntry entry);
+    }
+
     private String mHost;
     private short mPort;
-
-    /**
-     * pub:%keyid%:%algo%:%keylen%:%creationdate%:%expirationdate%:%flags%
-     * <ul>
-     * <li>%<b>keyid</b>% = this is either the fingerprint or the key ID of the key. Either the 16-digit or 8-digit
-     * key IDs are acceptable, but obviously the fingerprint is best.</li>
-     * <li>%<b>algo</b>% = the algorithm number, (i.e. 1==RSA, 17==DSA, etc).
-     * See <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a></li>
-     * <li>%<b>keylen</b>% = the key length (i.e. 1024, 2048, 4096, etc.)</li>
-     * <li>%<b>creationdate</b>% = creation date of the key in standard
-     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of seconds since
-     * 1/1/1970 UTC time)</li>
-     * <li>%<b>expirationdate</b>% = expiration date of the key in standard
-     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of seconds since
-     * 1/1/1970 UTC time)</li>
-     * <li>%<b>flags</b>% = letter codes to indicate details of the key, if any. Flags may be in any order. The
-     * meaning of "disabled" is implementation-specific. Note that individual flags may be unimplemented, so
-     * the absence of a given flag does not necessarily mean the absence of the detail.
-     * <ul>
-     * <li>r == revoked</li>
-     * <li>d == disabled</li>
-     * <li>e == expired</li>
-     * </ul>
-     * </li>
-     * </ul>
-     *
-     * @see <a href="http://tools.ietf.org/html/draft-shaw-openpgp-hkp-00#section-5.2">5.2. Machine Readable Indexes</a>
-     * in Internet-Draft OpenPGP HTTP Keyserver Protocol Document
-     */
-    public static final Pattern PUB_KEY_LINE = Pattern
-            .compile("pub:([0-9a-fA-F]+):([0-9]+):([0-9]+):([0-9]+):([0-9]*):([rde]*)[ \n\r]*" // pub line
-                    + "(uid:(.*):([0-9]+):([0-9]*):([rde]*))+", // one or more uid lines
-                    Pattern.CASE_INSENSITIVE);
-
-    /**
-     * uid:%escaped uid string%:%creationdate%:%expirationdate%:%flags%
-     * <ul>
-     * <li>%<b>escaped uid string</b>% = the user ID string, with HTTP %-escaping for anything that isn't 7-bit
-     * safe as well as for the ":" character.  Any other characters may be escaped, as desired.</li>
-     * <li>%<b>creationdate</b>% = creation date of the key in standard
-     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of seconds since
-     * 1/1/1970 UTC time)</li>
-     * <li>%<b>expirationdate</b>% = expiration date of the key in standard
-     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of seconds since
-     * 1/1/1970 UTC time)</li>
-     * <li>%<b>flags</b>% = letter codes to indicate details of the key, if any. Flags may be in any order. The
-     * meaning of "disabled" is implementation-specific. Note that individual flags may be unimplemented, so
-     * the absence of a given flag does not necessarily mean the absence of the detail.
-     * <ul>
-     * <li>r == revoked</li>
-     * <li>d == disabled</li>
-     * <li>e == expired</li>
-     * </ul>
-     * </li>
-     * </ul>
-     */
-    public static final Pattern UID_LINE = Pattern
-            .compile("uid:(.*):([0-9]+):([0-9]*):([rde]*)",
-                    Pattern.CASE_INSENSITIVE);
+    private HttpClient mHttpClient;
+    private KeyServerCache mCache;
 
     private static final short PORT_DEFAULT = 11371;
 
@@ -147,11 +92,33 @@ public class HkpKeyServer extends KeyServer {
         }
         mHost = host;
         mPort = port;
+        mHttpClient = KeyServerHttpClient.getHttpClient();
     }
 
     public HkpKeyServer(String host, short port) {
+        this(host, port, KeyServerHttpClient.getHttpClient());
+    }
+
+    /**
+     * @param httpClient client used for all requests, should be pooled if the server is used
+     *                   from several threads, see {@link KeyServerHttpClient}
+     */
+    public HkpKeyServer(String host, short port, HttpClient httpClient) {
         mHost = host;
         mPort = port;
+        mHttpClient = httpClient;
+    }
+
+    /**
+     * @param cache cache for responses, which are then only downloaded again if they changed,
+     *              may be null
+     */
+    public void setCache(KeyServerCache cache) {
+        mCache = cache;
+    }
+
+    private String getCacheKey(String request) {
+        return mHost + ":" + mPort + request;
     }
 
     private static String readAll(InputStream in, String encoding) throws IOException {
@@ -169,44 +136,142 @@ public class HkpKeyServer extends KeyServer {
         return raw.toString(encoding);
     }
 
-    private String query(String request) throws QueryException, HttpError {
+    /**
+     * Requests the index and hands the parsed keys to the listener while they are read
+     *
+     * @return all keys of the index
+     */
+    private ArrayList<ImportKeysListEntry> queryIndex(String request, SearchListener listener)
+            throws QueryException, HttpError {
         InetAddress ips[];
         try {
             ips = InetAddress.getAllByName(mHost);
         } catch (UnknownHostException e) {
             throw new QueryException(e.toString());
         }
+        String cacheKey = getCacheKey(request);
         for (int i = 0; i < ips.length; ++i) {
+            ArrayList<ImportKeysListEntry> results = new ArrayList<ImportKeysListEntry>();
+            HttpEntity entity = null;
+            InputStream in = null;
             try {
                 String url = "http://" + ips[i].getHostAddress() + ":" + mPort + request;
                 Log.d(Constants.TAG, "hkp keyserver query: " + url);
-                URL realUrl = new URL(url);
-                HttpURLConnection conn = (HttpURLConnection) realUrl.openConnection();
-                conn.setConnectTimeout(5000);
-                conn.setReadTimeout(25000);
-                conn.connect();
-                int response = conn.getResponseCode();
-                if (response >= 200 && response < 300) {
-                    return readAll(conn.getInputStream(), conn.getContentEncoding());
+                HttpGet get = new HttpGet(url);
+                KeyServerCache.Entry cached = mCache != null ? mCache.get(cacheKey) : null;
+                if (cached != null) {
+                    KeyServerCache.addConditions(get, cached);
+                }
+                HttpResponse response = mHttpClient.execute(get);
+                entity = response.getEntity();
+                int code = response.getStatusLine().getStatusCode();
+                if (cached != null && code == HttpStatus.SC_NOT_MODIFIED) {
+                    in = openCachedBody(cached);
+                    if (in == null) {
+                        // evicted after the request was sent, download it again
+                        consume(entity);
+                        KeyServerCache.removeConditions(get);
+                        response = mHttpClient.execute(get);
+                        entity = response.getEntity();
+                        code = response.getStatusLine().getStatusCode();
+                    }
+                }
+                String charset;
+                if (in != null) {
+                    Log.d(Constants.TAG, "hkp keyserver index not modified, using cached one");
+                    charset = cached.getCharset();
+                } else if (code < 200 || code >= 300) {
+                    String data = "";
+                    if (entity != null) {
+                        data = EntityUtils.toString(entity, "utf8");
+                    }
+                    throw new HttpError(code, data);
+                } else if (entity == null) {
+                    return results;
                 } else {
-                    String data = readAll(conn.getErrorStream(), conn.getContentEncoding());
-                    throw new HttpError(response, data);
+                    charset = EntityUtils.getContentCharSet(entity);
+                    in = entity.getContent();
+                    if (mCache != null) {
+                        in = mCache.cacheWhileReading(cacheKey, response, charset, in);
+                    }
                 }
-            } catch (MalformedURLException e) {
-                // nothing to do, try next IP
+
+                HkpIndexParser parser = new HkpIndexParser(in, charset);
+                ImportKeysListEntry entry;
+                while ((entry = parser.next()) != null) {
+                    results.add(entry);
+                    if (listener != null) {
+                        listener.onEntry(entry);
+                    }
+                }
+                return results;
+            } catch (IllegalArgumentException e) {
+                // malformed url, nothing to do, try next IP
             } catch (IOException e) {
+                if (!results.isEmpty()) {
+                    // keys have already been handed out, another IP would hand them out again
+                    throw new QueryException("reading response of '" + mHost + "' failed");
+                }
                 // nothing to do, try next IP
+            } finally {
+                close(in);
+                consume(entity);
             }
         }
 
         throw new QueryException("querying server(s) for '" + mHost + "' failed");
     }
 
+    /**
+     * @return the body of a response the server reported as not modified, null if it has been
+     * evicted from the cache since the request was sent
+     */
+    private InputStream openCachedBody(KeyServerCache.Entry cached) throws IOException {
+        InputStream in;
+        try {
+            in = cached.openBody();
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        mCache.touch(cached);
+        return in;
+    }
+
+    private static void close(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Closing response failed", e);
+            }
+        }
+    }
+
+    /**
+     * Releases the connection of a response back to the pool
+     */
+    private static void consume(HttpEntity entity) {
+        if (entity != null) {
+            try {
+                entity.consumeContent();
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Releasing connection failed", e);
+            }
+        }
+    }
+
     @Override
     public ArrayList<ImportKeysListEntry> search(String query) throws QueryException, TooManyResponses,
             InsufficientQuery {
-        ArrayList<ImportKeysListEntry> results = new ArrayList<ImportKeysListEntry>();
+        return search(query, null);
+    }
 
+    /**
+     * @param listener gets the keys of the result one by one while the response is read,
+     *                 on the calling thread, may be null
+     */
+    public ArrayList<ImportKeysListEntry> search(String query, SearchListener listener)
+            throws QueryException, TooManyResponses, InsufficientQuery {
         if (query.length() < 3) {
             throw new InsufficientQuery();
         }
@@ -219,15 +284,14 @@ public class HkpKeyServer extends KeyServer {
         }
         String request = "/pks/lookup?op=index&options=mr&search=" + encodedQuery;
 
-        String data;
         try {
-            data = query(request);
+            return queryIndex(request, listener);
         } catch (HttpError e) {
             if (e.getCode() == 404) {
-                return results;
+                return new ArrayList<ImportKeysListEntry>();
             } else {
                 if (e.getData().toLowerCase(Locale.US).contains("no keys found")) {
-                    return results;
+                    return new ArrayList<ImportKeysListEntry>();
                 } else if (e.getData().toLowerCase(Locale.US).contains("too many")) {
                     throw new TooManyResponses();
                 } else if (e.getData().toLowerCase(Locale.US).contains("insufficient")) {
@@ -236,74 +300,51 @@ public class HkpKeyServer extends KeyServer {
             }
             throw new QueryException("querying server(s) for '" + mHost + "' failed");
         }
-
-        final Matcher matcher = PUB_KEY_LINE.matcher(data);
-        while (matcher.find()) {
-            final ImportKeysListEntry entry = new ImportKeysListEntry();
-
-            entry.setBitStrength(Integer.parseInt(matcher.group(3)));
-
-            final int algorithmId = Integer.decode(matcher.group(2));
-            entry.setAlgorithm(getAlgorithmFromId(algorithmId));
-
-            // group 1 contains the full fingerprint (v4) or the long key id if available
-            // see https://bitbucket.org/skskeyserver/sks-keyserver/pull-request/12/fixes-for-machine-readable-indexes/diff
-            // and https://github.com/openpgp-keychain/openpgp-keychain/issues/259#issuecomment-38168176
-            String fingerprintOrKeyId = matcher.group(1);
-            if (fingerprintOrKeyId.length() > 16) {
-                entry.setFingerPrintHex(fingerprintOrKeyId.toLowerCase(Locale.US));
-                entry.setKeyIdHex("0x" + fingerprintOrKeyId.substring(fingerprintOrKeyId.length()
-                        - 16, fingerprintOrKeyId.length()));
-            } else {
-                // set key id only
-                entry.setKeyIdHex("0x" + fingerprintOrKeyId);
-            }
-
-            final long creationDate = Long.parseLong(matcher.group(4));
-            final GregorianCalendar tmpGreg = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
-            tmpGreg.setTimeInMillis(creationDate * 1000);
-            entry.setDate(tmpGreg.getTime());
-
-            entry.setRevoked(matcher.group(6).contains("r"));
-
-            ArrayList<String> userIds = new ArrayList<String>();
-            final String uidLines = matcher.group(7);
-            final Matcher uidMatcher = UID_LINE.matcher(uidLines);
-            while (uidMatcher.find()) {
-                String tmp = uidMatcher.group(1).trim();
-                if (tmp.contains("%")) {
-                    try {
-                        // converts Strings like "Universit%C3%A4t" to a proper encoding form "Universität".
-                        tmp = (URLDecoder.decode(tmp, "UTF8"));
-                    } catch (UnsupportedEncodingException ignored) {
-                        // will never happen, because "UTF8" is supported
-                    }
-                }
-                userIds.add(tmp);
-            }
-            entry.setUserIds(userIds);
-
-            results.add(entry);
-        }
-        return results;
     }
 
     @Override
     public String get(String keyIdHex) throws QueryException {
-        HttpClient client = new DefaultHttpClient();
+        HttpEntity entity = null;
+        InputStream in = null;
         try {
-            String query = "http://" + mHost + ":" + mPort +
-                    "/pks/lookup?op=get&options=mr&search=" + keyIdHex;
+            String request = "/pks/lookup?op=get&options=mr&search=" + keyIdHex;
+            String query = "http://" + mHost + ":" + mPort + request;
             Log.d(Constants.TAG, "hkp keyserver get: " + query);
             HttpGet get = new HttpGet(query);
-            HttpResponse response = client.execute(get);
-            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+            String cacheKey = getCacheKey(request);
+            KeyServerCache.Entry cached = mCache != null ? mCache.get(cacheKey) : null;
+            if (cached != null) {
+                KeyServerCache.addConditions(get, cached);
+            }
+            HttpResponse response = mHttpClient.execute(get);
+            entity = response.getEntity();
+            int code = response.getStatusLine().getStatusCode();
+            if (cached != null && code == HttpStatus.SC_NOT_MODIFIED) {
+                in = openCachedBody(cached);
+                if (in == null) {
+                    // evicted after the request was sent, download it again
+                    consume(entity);
+                    KeyServerCache.removeConditions(get);
+                    response = mHttpClient.execute(get);
+                    entity = response.getEntity();
+                    code = response.getStatusLine().getStatusCode();
+                }
+            }
+            String charset;
+            if (in != null) {
+                Log.d(Constants.TAG, "hkp keyserver key not modified, using cached one");
+                charset = cached.getCharset();
+            } else if (code != HttpStatus.SC_OK) {
                 throw new QueryException("not found");
+            } else {
+                charset = EntityUtils.getContentCharSet(entity);
+                in = entity.getContent();
+                if (mCache != null) {
+                    in = mCache.cacheWhileReading(cacheKey, response, charset, in);
+                }
             }
 
-            HttpEntity entity = response.getEntity();
-            InputStream is = entity.getContent();
-            String data = readAll(is, EntityUtils.getContentCharSet(entity));
+            String data = readAll(in, charset);
             Matcher matcher = PgpHelper.PGP_PUBLIC_KEY.matcher(data);
             if (matcher.find()) {
                 return matcher.group(1);
@@ -311,15 +352,63 @@ public class HkpKeyServer extends KeyServer {
         } catch (IOException e) {
             // nothing to do, better luck on the next keyserver
         } finally {
-            client.getConnectionManager().shutdown();
+            close(in);
+            consume(entity);
         }
 
         return null;
     }
 
+    /**
+     * Downloads several keys in parallel, using at most
+     * {@link KeyServerHttpClient#MAX_CONNECTIONS_PER_HOST} kept-alive connections to the server.
+     *
+     * @return the armored keys in the order of keyIdHexes, null for keys that were not found
+     */
+    public List<String> get(List<String> keyIdHexes) throws QueryException {
+        ArrayList<String> results = new ArrayList<String>(keyIdHexes.size());
+        if (keyIdHexes.isEmpty()) {
+            return results;
+        }
+
+        OrderedTaskExecutor<String> executor = new OrderedTaskExecutor<String>("HkpKeyServer",
+                Math.min(KeyServerHttpClient.MAX_CONNECTIONS_PER_HOST, keyIdHexes.size()));
+        try {
+            for (final String keyIdHex : keyIdHexes) {
+                while (executor.isFull()) {
+                    results.add(takeResult(executor));
+                }
+                executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return get(keyIdHex);
+                    }
+                });
+            }
+            while (executor.hasPending()) {
+                results.add(takeResult(executor));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        return results;
+    }
+
+    private static String takeResult(OrderedTaskExecutor<String> executor) throws QueryException {
+        try {
+            return executor.take();
+        } catch (QueryException e) {
+            // single keys that were not found are reported as null
+            return null;
+        } catch (Exception e) {
+            throw new QueryException(e.toString());
+        }
+    }
+
     @Override
     public void add(String armoredKey) throws AddKeyException {
-        HttpClient client = new DefaultHttpClient();
+        HttpEntity entity = null;
         try {
             String query = "http://" + mHost + ":" + mPort + "/pks/add";
             HttpPost post = new HttpPost(query);
@@ -328,14 +417,15 @@ public class HkpKeyServer extends KeyServer {
             nameValuePairs.add(new BasicNameValuePair("keytext", armoredKey));
             post.setEntity(new UrlEncodedFormEntity(nameValuePairs));
 
-            HttpResponse response = client.execute(post);
+            HttpResponse response = mHttpClient.execute(post);
+            entity = response.getEntity();
             if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
                 throw new AddKeyException();
             }
         } catch (IOException e) {
             // nothing to do, better luck on the next keyserver
         } finally {
-            client.getConnectionManager().shutdown();
+            consume(entity);
         }
     }
 }
@@ -14,7 +14,11 @@
 
 package org.sufficientlysecure.keychain.util;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 public class InputData {
     private PositionAwareInputStream mInputStream;
@@ -25,6 +29,22 @@ public class InputData {
         mSize = size;
     }
 
+    /**
+     * Input backed by a ByteBuffer, e.g., a direct buffer
+     */
+    public InputData(ByteBuffer buffer) {
+        this(new ByteBufferInputStream(buffer), buffer.remaining());
+    }
+
+    /**
+     * Input read from a file. A plain FileInputStream reads straight into the chunk arrays of
+     * PgpSignEncrypt and PgpDecryptVerify, going through a FileChannel would add a copy.
+     */
+    public static InputData fromFile(String filename) throws IOException {
+        File file = new File(filename);
+        return new InputData(new FileInputStream(file), file.length());
+    }
+
     public InputStream getInputStream() {
         return mInputStream;
     }
@@ -36,4 +56,11 @@ public class InputData {
     public long getStreamPosition() {
         return mInputStream.position();
     }
+
+    /**
+     * Closes the underlying stream or file
+     */
+    public void close() throws IOException {
+        mInputStream.close();
+    }
 }
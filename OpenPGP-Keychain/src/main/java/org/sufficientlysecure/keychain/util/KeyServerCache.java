@@ -0,0 +1,377 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import android.content.Context;
+
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.sufficientlysecure.keychain.Constants;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Persistent cache of keyserver responses. Cached responses are not used blindly, but sent
+ * along as If-None-Match and If-Modified-Since conditions, so the server only sends the
+ * response again if it has changed. Only responses with an ETag or Last-Modified header are
+ * cached.
+ * <p/>
+ * Responses are stored in one file each, named after the hash of the request. If the cache
+ * grows beyond its maximum size, the least recently used responses are deleted.
+ */
+public class KeyServerCache {
+    private static final String DIR_NAME = "keyserver";
+    private static final String TMP_PREFIX = "tmp";
+
+    // enough for a few thousand keys
+    private static final long MAX_SIZE = 32 * 1024 * 1024;
+
+    private static KeyServerCache sKeyServerCache;
+
+    private final File mDir;
+    private final long mMaxSize;
+    // total size of all cached responses, -1 if not counted yet
+    private long mSize = -1;
+
+    public static class Entry {
+        private final File mFile;
+        private final String mETag;
+        private final String mLastModified;
+        private final String mCharset;
+
+        private Entry(File file, String eTag, String lastModified, String charset) {
+            mFile = file;
+            mETag = eTag;
+            mLastModified = lastModified;
+            mCharset = charset;
+        }
+
+        public String getCharset() {
+            return mCharset;
+        }
+
+        /**
+         * @return the cached body, must be closed
+         * @throws java.io.FileNotFoundException if the response has been evicted since get()
+         */
+        public InputStream openBody() throws IOException {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(mFile)));
+            try {
+                // skip header
+                in.readUTF();
+                in.readUTF();
+                in.readUTF();
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            return in;
+        }
+    }
+
+    public static synchronized KeyServerCache getKeyServerCache(Context context) {
+        if (sKeyServerCache == null) {
+            sKeyServerCache = new KeyServerCache(
+                    new File(context.getApplicationContext().getCacheDir(), DIR_NAME), MAX_SIZE);
+        }
+        return sKeyServerCache;
+    }
+
+    public KeyServerCache(File dir, long maxSize) {
+        mDir = dir;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * @return the cached response, null if there is none
+     */
+    public Entry get(String key) {
+        File file = getFile(key);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            String eTag = in.readUTF();
+            String lastModified = in.readUTF();
+            String charset = in.readUTF();
+            return new Entry(file, eTag.length() > 0 ? eTag : null,
+                    lastModified.length() > 0 ? lastModified : null,
+                    charset.length() > 0 ? charset : null);
+        } catch (IOException e) {
+            // not cached
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Asks the server to only send the response if it differs from the cached one
+     */
+    public static void addConditions(HttpRequest request, Entry entry) {
+        if (entry.mETag != null) {
+            request.addHeader("If-None-Match", entry.mETag);
+        }
+        if (entry.mLastModified != null) {
+            request.addHeader("If-Modified-Since", entry.mLastModified);
+        }
+    }
+
+    /**
+     * Sends the request unconditionally again, e.g. if the cached response has been evicted
+     */
+    public static void removeConditions(HttpRequest request) {
+        request.removeHeaders("If-None-Match");
+        request.removeHeaders("If-Modified-Since");
+    }
+
+    /**
+     * Marks the cached response as used, so it is evicted later
+     */
+    public void touch(Entry entry) {
+        entry.mFile.setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * Stores the body of the response in the cache while it is read from the returned stream.
+     * The response is only stored if the stream has been read to the end before it is closed.
+     *
+     * @param in the content of the response
+     * @return a stream to read the content from instead of in, in if the response can not be
+     * cached
+     */
+    public InputStream cacheWhileReading(String key, HttpResponse response, String charset,
+                                         InputStream in) {
+        String eTag = getHeader(response, "ETag");
+        String lastModified = getHeader(response, "Last-Modified");
+        if (eTag == null && lastModified == null) {
+            return in;
+        }
+
+        try {
+            if (!mDir.isDirectory() && !mDir.mkdirs()) {
+                return in;
+            }
+            File tmpFile = File.createTempFile(TMP_PREFIX, null, mDir);
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                out.writeUTF(eTag != null ? eTag : "");
+                out.writeUTF(lastModified != null ? lastModified : "");
+                out.writeUTF(charset != null ? charset : "");
+            } catch (IOException e) {
+                out.close();
+                tmpFile.delete();
+                throw e;
+            }
+            return new CachingInputStream(in, out, tmpFile, getFile(key));
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Caching keyserver response failed", e);
+            return in;
+        }
+    }
+
+    private static String getHeader(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header != null ? header.getValue() : null;
+    }
+
+    private File getFile(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16));
+                name.append(Character.forDigit(b & 0xf, 16));
+            }
+            return new File(mDir, name.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            // will never happen, because "UTF-8" is supported
+            throw new RuntimeException(e);
+        }
+    }
+
+    private synchronized void commit(File tmpFile, File file) {
+        if (mSize < 0) {
+            mSize = 0;
+            File[] files = mDir.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    if (!f.getName().startsWith(TMP_PREFIX)) {
+                        mSize += f.length();
+                    }
+                }
+            }
+        } else {
+            mSize -= file.length();
+        }
+
+        if (!tmpFile.renameTo(file)) {
+            Log.e(Constants.TAG, "Storing keyserver response in cache failed");
+            tmpFile.delete();
+            mSize = -1;
+            return;
+        }
+        mSize += file.length();
+
+        if (mSize > mMaxSize) {
+            evict();
+        }
+    }
+
+    /**
+     * Deletes the least recently used responses until the cache is below 90% of its maximum
+     * size, so not every new response leads to an eviction
+     */
+    private void evict() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        long targetSize = mMaxSize / 10 * 9;
+        for (File f : files) {
+            if (mSize <= targetSize) {
+                break;
+            }
+            if (f.getName().startsWith(TMP_PREFIX)) {
+                continue;
+            }
+            long length = f.length();
+            if (f.delete()) {
+                mSize -= length;
+            }
+        }
+        Log.d(Constants.TAG, "Evicted keyserver responses, cache size now " + mSize);
+    }
+
+    /**
+     * Copies everything read to the cache file, which is committed at the end of the stream
+     */
+    private class CachingInputStream extends FilterInputStream {
+        private DataOutputStream mOut;
+        private final File mTmpFile;
+        private final File mFile;
+
+        private CachingInputStream(InputStream in, DataOutputStream out, File tmpFile,
+                                   File file) {
+            super(in);
+            mOut = out;
+            mTmpFile = tmpFile;
+            mFile = file;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) {
+                finish(true);
+            } else {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n < 0) {
+                finish(true);
+            } else {
+                write(buffer, offset, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // skipped bytes are missing in the cache file
+            finish(false);
+            return super.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish(false);
+            super.close();
+        }
+
+        private void write(byte[] buffer, int offset, int count) {
+            if (mOut == null) {
+                return;
+            }
+            try {
+                mOut.write(buffer, offset, count);
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Caching keyserver response failed", e);
+                finish(false);
+            }
+        }
+
+        private void finish(boolean complete) {
+            if (mOut == null) {
+                return;
+            }
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Caching keyserver response failed", e);
+                complete = false;
+            }
+            mOut = null;
+
+            if (complete) {
+                commit(mTmpFile, mFile);
+            } else {
+                mTmpFile.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Shared HTTP client for keyserver requests. Connections are kept alive and pooled, so
+ * consecutive and parallel requests to the same keyserver do not need a new TCP connection
+ * each. Entities of responses must always be consumed or the connection is not returned to
+ * the pool.
+ */
+public class KeyServerHttpClient {
+    /**
+     * Connections per keyserver, also the number of parallel downloads from one keyserver
+     */
+    public static final int MAX_CONNECTIONS_PER_HOST = 4;
+    public static final int MAX_CONNECTIONS_TOTAL = 16;
+
+    public static final int CONNECT_TIMEOUT = 5000;
+    public static final int READ_TIMEOUT = 25000;
+
+    // keep connections without keep-alive header of the server only shortly
+    private static final long KEEP_ALIVE_DEFAULT = 30 * 1000;
+
+    private static HttpClient sHttpClient;
+
+    public static synchronized HttpClient getHttpClient() {
+        if (sHttpClient == null) {
+            sHttpClient = createHttpClient(MAX_CONNECTIONS_PER_HOST, MAX_CONNECTIONS_TOTAL);
+        }
+        return sHttpClient;
+    }
+
+    /**
+     * Creates a new pooled client, only use this if the shared one from getHttpClient() does
+     * not fit, e.g. to talk to a local stand-in keyserver with different limits.
+     */
+    public static HttpClient createHttpClient(int maxConnectionsPerHost, int maxConnectionsTotal) {
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(params, READ_TIMEOUT);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        ConnManagerParams.setMaxConnectionsPerRoute(params,
+                new ConnPerRouteBean(maxConnectionsPerHost));
+        ConnManagerParams.setMaxTotalConnections(params, maxConnectionsTotal);
+        // wait for a free connection of the pool at most as long as for a response
+        ConnManagerParams.setTimeout(params, READ_TIMEOUT);
+
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+
+        DefaultHttpClient client = new DefaultHttpClient(
+                new ThreadSafeClientConnManager(params, schemeRegistry), params);
+        client.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+            private final DefaultConnectionKeepAliveStrategy mDefault =
+                    new DefaultConnectionKeepAliveStrategy();
+
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = mDefault.getKeepAliveDuration(response, context);
+                return duration > 0 ? duration : KEEP_ALIVE_DEFAULT;
+            }
+        });
+        return client;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs independent tasks on a fixed pool of threads, but hands out their results in the order
+ * the tasks were submitted. Meant to be driven by a single thread, which submits tasks while
+ * !isFull() and takes results otherwise, so only a bounded number of tasks are in flight:
+ * <pre>
+ * for (...) {
+ *     while (executor.isFull()) {
+ *         consume(executor.take());
+ *     }
+ *     executor.submit(task);
+ * }
+ * while (executor.hasPending()) {
+ *     consume(executor.take());
+ * }
+ * </pre>
+ */
+public class OrderedTaskExecutor<T> {
+    private final ExecutorService mExecutor;
+    private final LinkedList<Future<T>> mPending = new LinkedList<Future<T>>();
+    private final int mMaxPending;
+    private final int mThreadCount;
+
+    /**
+     * One thread per available processor
+     */
+    public OrderedTaskExecutor(String name) {
+        this(name, Runtime.getRuntime().availableProcessors());
+    }
+
+    public OrderedTaskExecutor(final String name, int threadCount) {
+        mThreadCount = Math.max(threadCount, 1);
+        // enough work queued so no thread waits while the results of the others are taken
+        mMaxPending = mThreadCount * 4;
+        mExecutor = Executors.newFixedThreadPool(mThreadCount, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + " #" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public int getThreadCount() {
+        return mThreadCount;
+    }
+
+    public void submit(Callable<T> task) {
+        mPending.add(mExecutor.submit(task));
+    }
+
+    public boolean isFull() {
+        return mPending.size() >= mMaxPending;
+    }
+
+    public boolean hasPending() {
+        return !mPending.isEmpty();
+    }
+
+    /**
+     * Waits for the result of the oldest submitted task
+     *
+     * @throws Exception the exception thrown by the task
+     */
+    public T take() throws Exception {
+        Future<T> future = mPending.removeFirst();
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Stops all threads, results that have not been taken are dropped
+     */
+    public void shutdown() {
+        for (Future<T> future : mPending) {
+            future.cancel(true);
+        }
+        mPending.clear();
+        mExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import org.sufficientlysecure.keychain.Constants;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OutputStream that hands written data over to its own thread, which writes it to the
+ * underlying stream. This decouples a producer from an expensive consumer (e.g. compression or
+ * encryption) so both can run on different cores. Data is passed in a bounded pool of reusable
+ * buffers, so a slow consumer blocks the producer instead of letting memory grow.
+ *
+ * The order of bytes is preserved. close() waits until everything has been written, but does
+ * not close the underlying stream. If writing to the underlying stream fails with any exception,
+ * the next write(), flush() or close() throws it, wrapped in an IOException if necessary.
+ */
+public class PipelineOutputStream extends OutputStream {
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+    public static final int DEFAULT_BUFFER_COUNT = 4;
+
+    // how often a producer waiting for a free buffer checks that the pipeline thread still runs
+    private static final long POLL_INTERVAL_MS = 100;
+
+    private static class Chunk {
+        final byte[] mData;
+        int mLength;
+
+        Chunk(int size) {
+            mData = new byte[size];
+        }
+    }
+
+    private static final Chunk END = new Chunk(0);
+
+    private final OutputStream mOut;
+    private final BlockingQueue<Chunk> mFilled;
+    private final BlockingQueue<Chunk> mFree;
+    private final Thread mThread;
+
+    private Chunk mCurrent;
+    private volatile Throwable mError;
+    private boolean mClosed = false;
+
+    public PipelineOutputStream(OutputStream out, String name) {
+        this(out, name, DEFAULT_BUFFER_SIZE, DEFAULT_BUFFER_COUNT);
+    }
+
+    public PipelineOutputStream(OutputStream out, String name, int bufferSize, int bufferCount) {
+        mOut = out;
+        mFree = new ArrayBlockingQueue<Chunk>(bufferCount);
+        // all buffers and END fit, so putting never blocks
+        mFilled = new ArrayBlockingQueue<Chunk>(bufferCount + 1);
+        for (int i = 1; i < bufferCount; ++i) {
+            mFree.add(new Chunk(bufferSize));
+        }
+        mCurrent = new Chunk(bufferSize);
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                consume();
+            }
+        }, name);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    private void consume() {
+        try {
+            while (true) {
+                Chunk chunk = mFilled.take();
+                if (chunk == END) {
+                    return;
+                }
+                // after an error keep returning buffers, so the producer never blocks forever
+                if (mError == null) {
+                    try {
+                        mOut.write(chunk.mData, 0, chunk.mLength);
+                    } catch (Throwable e) {
+                        mError = e;
+                    }
+                }
+                chunk.mLength = 0;
+                mFree.put(chunk);
+            }
+        } catch (InterruptedException e) {
+            Log.d(Constants.TAG, "Pipeline stage " + mThread.getName() + " cancelled");
+        }
+    }
+
+    private void checkError() throws IOException {
+        Throwable error = mError;
+        if (error == null) {
+            return;
+        }
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        }
+        IOException e = new IOException("Pipeline stage " + mThread.getName() + " failed");
+        e.initCause(error);
+        throw e;
+    }
+
+    private void submit() throws IOException {
+        try {
+            mFilled.put(mCurrent);
+            Chunk free;
+            while ((free = mFree.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) == null) {
+                checkError();
+                if (!mThread.isAlive()) {
+                    throw new IOException("Pipeline stage " + mThread.getName() + " stopped");
+                }
+            }
+            mCurrent = free;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        checkError();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkError();
+        if (mCurrent.mLength == mCurrent.mData.length) {
+            submit();
+        }
+        mCurrent.mData[mCurrent.mLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkError();
+        while (len > 0) {
+            if (mCurrent.mLength == mCurrent.mData.length) {
+                submit();
+            }
+            int n = Math.min(len, mCurrent.mData.length - mCurrent.mLength);
+            System.arraycopy(b, off, mCurrent.mData, mCurrent.mLength, n);
+            mCurrent.mLength += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Hands pending data over to the pipeline thread, does not wait until it has been written
+     */
+    @Override
+    public void flush() throws IOException {
+        checkError();
+        if (mCurrent.mLength > 0) {
+            submit();
+        }
+    }
+
+    /**
+     * Waits until all data has been written to the underlying stream, which stays open. The
+     * pipeline thread is also stopped if writing failed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            if (mCurrent.mLength > 0 && mError == null) {
+                mFilled.put(mCurrent);
+            }
+            mFilled.put(END);
+            mThread.join();
+        } catch (InterruptedException e) {
+            mThread.interrupt();
+            throw new InterruptedIOException();
+        }
+        checkError();
+    }
+
+    /**
+     * Stops the pipeline thread without writing pending data, e.g. after an error occurred
+     */
+    public void cancel() {
+        mClosed = true;
+        mThread.interrupt();
+    }
+}
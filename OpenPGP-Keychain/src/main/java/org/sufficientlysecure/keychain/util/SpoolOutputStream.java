@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import org.sufficientlysecure.keychain.Constants;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * OutputStream that keeps data in memory up to a threshold and spools everything to a temporary
+ * file in the given directory once it grows larger. After writing, the data can be read back once
+ * using getInputStream(). Call delete() to remove the temporary file.
+ */
+public class SpoolOutputStream extends OutputStream {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final int mThreshold;
+    private final File mDirectory;
+
+    private ByteArrayOutputStream mMemory = new ByteArrayOutputStream();
+    private File mFile;
+    private OutputStream mOut;
+
+    public SpoolOutputStream(File directory, int threshold) {
+        mDirectory = directory;
+        mThreshold = threshold;
+        mOut = mMemory;
+    }
+
+    private void checkThreshold(int length) throws IOException {
+        if (mFile == null && mMemory.size() + length > mThreshold) {
+            mFile = File.createTempFile("spool", null, mDirectory);
+            mOut = new BufferedOutputStream(new FileOutputStream(mFile), BUFFER_SIZE);
+            mMemory.writeTo(mOut);
+            mMemory = null;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        checkThreshold(1);
+        mOut.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkThreshold(len);
+        mOut.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    /**
+     * Closes this stream and returns an InputStream over everything written to it
+     */
+    public InputStream getInputStream() throws IOException {
+        close();
+        if (mFile == null) {
+            return new ByteArrayInputStream(mMemory.toByteArray());
+        } else {
+            return new BufferedInputStream(new FileInputStream(mFile), BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * Removes the temporary file if the data has been spooled to disk
+     */
+    public void delete() {
+        if (mFile != null && !mFile.delete()) {
+            Log.w(Constants.TAG, "Spool file " + mFile + " could not be deleted!");
+        }
+    }
+}
@@ -315,6 +315,102 @@ private int readIgnoreSpace()
         return c;
     }
     
+    /**
+     * decode the next group of data into outBuf, checking the crc if it is reached.
+     *
+     * @return false if the end of the armored data has been reached.
+     */
+    private boolean decodeNext()
+        throws IOException
+    {
+        int    c;
+
+        c = readIgnoreSpace();
+        
+        if (c == '\r' || c == '\n')
+        {
+            c = readIgnoreSpace();
+            
+            while (c == '\n' || c == '\r')
+            {
+                c = readIgnoreSpace();
+            }
+
+            if (c < 0)                // EOF
+            {
+                isEndOfStream = true;
+                return false;
+            }
+
+            if (c == '=')            // crc reached
+            {
+                bufPtr = decode(readIgnoreSpace(), readIgnoreSpace(), readIgnoreSpace(), readIgnoreSpace(), outBuf);
+                if (bufPtr == 0)
+                {
+                    int i = ((outBuf[0] & 0xff) << 16)
+                            | ((outBuf[1] & 0xff) << 8)
+                            | (outBuf[2] & 0xff);
+
+                    crcFound = true;
+
+                    if (i != crc.getValue())
+                    {
+                        throw new IOException("crc check failed in armored message.");
+                    }
+                    return decodeNext();
+                }
+                else
+                {
+                    throw new IOException("no crc found in armored message.");
+                }
+            }
+            else if (c == '-')        // end of record reached
+            {
+                while ((c = in.read()) >= 0)
+                {
+                    if (c == '\n' || c == '\r')
+                    {
+                        break;
+                    }
+                }
+
+                if (!crcFound)
+                {
+                    throw new IOException("crc check not found.");
+                }
+
+                crcFound = false;
+                start = true;
+                bufPtr = 3;
+
+                if (c < 0)
+                {
+                    isEndOfStream = true;
+                }
+
+                return false;
+            }
+            else                   // data
+            {
+                bufPtr = decode(c, readIgnoreSpace(), readIgnoreSpace(), readIgnoreSpace(), outBuf);
+            }
+        }
+        else
+        {
+            if (c >= 0)
+            {
+                bufPtr = decode(c, readIgnoreSpace(), readIgnoreSpace(), readIgnoreSpace(), outBuf);
+            }
+            else
+            {
+                isEndOfStream = true;
+                return false;
+            }
+        }
+
+        return true;
+    }
+
     public int read()
         throws IOException
     {
@@ -374,97 +470,68 @@ else if (newLineFound && c == '-')
 
         if (bufPtr > 2 || crcFound)
         {
-            c = readIgnoreSpace();
-            
-            if (c == '\r' || c == '\n')
+            if (!decodeNext())
             {
-                c = readIgnoreSpace();
-                
-                while (c == '\n' || c == '\r')
-                {
-                    c = readIgnoreSpace();
-                }
-
-                if (c < 0)                // EOF
-                {
-                    isEndOfStream = true;
-                    return -1;
-                }
-
-                if (c == '=')            // crc reached
-                {
-                    bufPtr = decode(readIgnoreSpace(), readIgnoreSpace(), readIgnoreSpace(), readIgnoreSpace(), outBuf);
-                    if (bufPtr == 0)
-                    {
-                        int i = ((outBuf[0] & 0xff) << 16)
-                                | ((outBuf[1] & 0xff) << 8)
-                                | (outBuf[2] & 0xff);
+                return -1;
+            }
+        }
 
-                        crcFound = true;
+        c = outBuf[bufPtr++];
 
-                        if (i != crc.getValue())
-                        {
-                            throw new IOException("crc check failed in armored message.");
-                        }
-                        return read();
-                    }
-                    else
-                    {
-                        throw new IOException("no crc found in armored message.");
-                    }
-                }
-                else if (c == '-')        // end of record reached
-                {
-                    while ((c = in.read()) >= 0)
-                    {
-                        if (c == '\n' || c == '\r')
-                        {
-                            break;
-                        }
-                    }
+        crc.update(c);
 
-                    if (!crcFound)
-                    {
-                        throw new IOException("crc check not found.");
-                    }
+        return c;
+    }
+    
+    /**
+     * Bulk read of decoded data. In the data section whole groups are decoded directly into b,
+     * clear text and headers are handled by read().
+     */
+    public int read(
+        byte[]    b,
+        int       off,
+        int       len)
+        throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
 
-                    crcFound = false;
-                    start = true;
-                    bufPtr = 3;
+        if (start || clearText)
+        {
+            return super.read(b, off, len);
+        }
 
-                    if (c < 0)
-                    {
-                        isEndOfStream = true;
-                    }
+        int pos = off;
+        int end = off + len;
 
-                    return -1;
-                }
-                else                   // data
+        while (pos < end)
+        {
+            if (bufPtr > 2 || crcFound)
+            {
+                if (!decodeNext())
                 {
-                    bufPtr = decode(c, readIgnoreSpace(), readIgnoreSpace(), readIgnoreSpace(), outBuf);
+                    break;
                 }
             }
-            else
+
+            int groupStart = pos;
+            while (bufPtr < 3 && pos < end)
             {
-                if (c >= 0)
-                {
-                    bufPtr = decode(c, readIgnoreSpace(), readIgnoreSpace(), readIgnoreSpace(), outBuf);
-                }
-                else
-                {
-                    isEndOfStream = true;
-                    return -1;
-                }
+                b[pos++] = (byte)outBuf[bufPtr++];
             }
+            crc.update(b, groupStart, pos - groupStart);
         }
 
-        c = outBuf[bufPtr++];
-
-        crc.update(c);
+        if (pos == off)
+        {
+            return -1;
+        }
 
-        return c;
+        return pos - off;
     }
-    
+
     public void close()
         throws IOException
     {
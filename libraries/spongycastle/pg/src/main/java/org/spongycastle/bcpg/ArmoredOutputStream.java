@@ -74,6 +74,22 @@ private void encode(
         }
     }
 
+    /**
+     * encode a full group of three bytes into outBuf at outOff.
+     */
+    private static void encode(
+        byte[]  outBuf,
+        int     outOff,
+        int     d1,
+        int     d2,
+        int     d3)
+    {
+        outBuf[outOff] = encodingTable[(d1 >>> 2) & 0x3f];
+        outBuf[outOff + 1] = encodingTable[((d1 << 4) | (d2 >>> 4)) & 0x3f];
+        outBuf[outOff + 2] = encodingTable[((d2 << 2) | (d3 >>> 6)) & 0x3f];
+        outBuf[outOff + 3] = encodingTable[d3 & 0x3f];
+    }
+
     OutputStream    out;
     int[]           buf = new int[3];
     int             bufPtr = 0;
@@ -86,6 +102,8 @@ private void encode(
     boolean         newLine = false;
     
     String          nl = System.getProperty("line.separator");
+    byte[]          nlBytes;
+    byte[]          encodeBuf;
 
     String          type;
     String          headerStart = "-----BEGIN PGP ";
@@ -106,7 +124,13 @@ public ArmoredOutputStream(
         {
             nl = "\r\n";
         }
-        
+
+        nlBytes = new byte[nl.length()];
+        for (int i = 0; i != nlBytes.length; i++)
+        {
+            nlBytes[i] = (byte)nl.charAt(i);
+        }
+
         resetHeaders();
     }
     
@@ -347,6 +371,90 @@ public void write(
         buf[bufPtr++] = b & 0xff;
     }
     
+    /**
+     * Bulk write. Outside of clear text whole lines are encoded into a buffer, which is written
+     * to the underlying stream at once, producing the same output as writing byte by byte.
+     */
+    public void write(
+        byte[]  b,
+        int     off,
+        int     len)
+        throws IOException
+    {
+        if (clearText)
+        {
+            for (int i = 0; i != len; i++)
+            {
+                this.write(b[off + i]);
+            }
+            return;
+        }
+
+        if (len == 0)
+        {
+            return;
+        }
+
+        if (start)
+        {
+            // writes the armor header
+            this.write(b[off]);
+            off++;
+            len--;
+        }
+
+        crc.update(b, off, len);
+
+        if (encodeBuf == null)
+        {
+            encodeBuf = new byte[(64 + nlBytes.length) * 64];
+        }
+
+        int end = off + len;
+        int outPos = 0;
+
+        while (off < end)
+        {
+            if (bufPtr == 3)
+            {
+                encode(encodeBuf, outPos, buf[0], buf[1], buf[2]);
+                outPos += 4;
+                bufPtr = 0;
+                if ((++chunkCount & 0xf) == 0)
+                {
+                    System.arraycopy(nlBytes, 0, encodeBuf, outPos, nlBytes.length);
+                    outPos += nlBytes.length;
+                }
+            }
+
+            // full groups, the last group is kept in buf as close() has to encode it
+            while (bufPtr == 0 && end - off > 3 && outPos <= encodeBuf.length - 4 - nlBytes.length)
+            {
+                encode(encodeBuf, outPos, b[off] & 0xff, b[off + 1] & 0xff, b[off + 2] & 0xff);
+                outPos += 4;
+                off += 3;
+                if ((++chunkCount & 0xf) == 0)
+                {
+                    System.arraycopy(nlBytes, 0, encodeBuf, outPos, nlBytes.length);
+                    outPos += nlBytes.length;
+                }
+            }
+
+            if (outPos > encodeBuf.length - 4 - nlBytes.length)
+            {
+                out.write(encodeBuf, 0, outPos);
+                outPos = 0;
+            }
+
+            if (off < end && bufPtr < 3)
+            {
+                buf[bufPtr++] = b[off++] & 0xff;
+            }
+        }
+
+        out.write(encodeBuf, 0, outPos);
+    }
+
     public void flush()
         throws IOException
     {
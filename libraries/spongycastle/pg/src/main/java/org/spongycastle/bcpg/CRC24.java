@@ -4,9 +4,31 @@
 {
     private static final int CRC24_INIT = 0x0b704ce;
     private static final int CRC24_POLY = 0x1864cfb;
-                                                                                
+
+    /**
+     * lookup table holding the effect of the polynomial on each possible top byte of the register.
+     */
+    private static final int[] CRC24_TABLE = new int[256];
+
+    static
+    {
+        for (int i = 0; i < 256; i++)
+        {
+            int crc = i << 16;
+            for (int j = 0; j < 8; j++)
+            {
+                crc <<= 1;
+                if ((crc & 0x1000000) != 0)
+                {
+                    crc ^= CRC24_POLY;
+                }
+            }
+            CRC24_TABLE[i] = crc;
+        }
+    }
+
     private int crc = CRC24_INIT;
-                                                                                
+
     public CRC24()
     {
     }
@@ -14,15 +36,30 @@ public CRC24()
     public void update(
         int b)
     {
-        crc ^= b << 16;
-        for (int i = 0; i < 8; i++)
+        crc = ((crc << 8) ^ CRC24_TABLE[((crc >> 16) ^ b) & 0xff]) & 0xffffff;
+    }
+
+    /**
+     * Update the checksum with len bytes of data starting at off.
+     *
+     * @param data the data to be added.
+     * @param off offset of the first byte.
+     * @param len number of bytes.
+     */
+    public void update(
+        byte[] data,
+        int    off,
+        int    len)
+    {
+        int c = crc;
+        int end = off + len;
+
+        for (int i = off; i < end; i++)
         {
-            crc <<= 1;
-            if ((crc & 0x1000000) != 0)
-            {
-                crc ^= CRC24_POLY;
-            }
+            c = (c << 8) ^ CRC24_TABLE[((c >> 16) ^ data[i]) & 0xff];
         }
+
+        crc = c & 0xffffff;
     }
 
     public int getValue()
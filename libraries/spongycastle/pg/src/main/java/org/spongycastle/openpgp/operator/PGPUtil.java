@@ -15,6 +15,8 @@
 class PGPUtil
     implements HashAlgorithmTags
 {
+    private static final int ITERATED_BLOCK_SIZE = 8192;
+
     static byte[] makeKeyFromPassPhrase(
         PGPDigestCalculator digestCalculator,
         int     algorithm,
@@ -117,36 +119,7 @@ static byte[] makeKeyFromPassPhrase(
                         dOut.write(pBytes);
                         break;
                     case S2K.SALTED_AND_ITERATED:
-                        long    count = s2k.getIterationCount();
-                        dOut.write(iv);
-                        dOut.write(pBytes);
-
-                        count -= iv.length + pBytes.length;
-
-                        while (count > 0)
-                        {
-                            if (count < iv.length)
-                            {
-                                dOut.write(iv, 0, (int)count);
-                                break;
-                            }
-                            else
-                            {
-                                dOut.write(iv);
-                                count -= iv.length;
-                            }
-
-                            if (count < pBytes.length)
-                            {
-                                dOut.write(pBytes, 0, (int)count);
-                                count = 0;
-                            }
-                            else
-                            {
-                                dOut.write(pBytes);
-                                count -= pBytes.length;
-                            }
-                        }
+                        writeIterated(dOut, iv, pBytes, s2k.getIterationCount());
                         break;
                     default:
                         throw new PGPException("unknown S2K type: " + s2k.getType());
@@ -193,6 +166,45 @@ static byte[] makeKeyFromPassPhrase(
         return keyBytes;
     }
 
+    /**
+     * Feed the repeated sequence of iv and passphrase, at least once and otherwise truncated to
+     * count bytes, to the digest. The sequence is expanded into a block of whole repetitions,
+     * so the digest is updated with large chunks instead of many small writes.
+     */
+    private static void writeIterated(
+        OutputStream dOut,
+        byte[]       iv,
+        byte[]       pBytes,
+        long         count)
+        throws IOException
+    {
+        int  unitLength = iv.length + pBytes.length;
+        long remaining = Math.max(count, unitLength);
+
+        int     repetitions = (int)Math.min((remaining + unitLength - 1) / unitLength,
+                                    Math.max(1, ITERATED_BLOCK_SIZE / unitLength));
+        byte[]  block = new byte[repetitions * unitLength];
+
+        for (int off = 0; off != block.length; off += unitLength)
+        {
+            System.arraycopy(iv, 0, block, off, iv.length);
+            System.arraycopy(pBytes, 0, block, off + iv.length, pBytes.length);
+        }
+
+        while (remaining > 0)
+        {
+            int len = (int)Math.min(remaining, block.length);
+
+            dOut.write(block, 0, len);
+            remaining -= len;
+        }
+
+        for (int i = 0; i != block.length; i++)
+        {
+            block[i] = 0;
+        }
+    }
+
     public static byte[] makeKeyFromPassPhrase(
         PGPDigestCalculatorProvider digCalcProvider,
         int     algorithm,
@@ -0,0 +1,124 @@
+package org.spongycastle.openpgp.test;
+
+import java.security.SecureRandom;
+
+import org.spongycastle.bcpg.CRC24;
+import org.spongycastle.util.Strings;
+import org.spongycastle.util.test.SimpleTest;
+
+public class CRC24Test
+    extends SimpleTest
+{
+    /**
+     * the bit serial implementation the table driven one has to match.
+     */
+    private static int referenceCrc(byte[] data, int off, int len)
+    {
+        int crc = 0x0b704ce;
+
+        for (int i = off; i < off + len; i++)
+        {
+            crc ^= (data[i] & 0xff) << 16;
+            for (int j = 0; j < 8; j++)
+            {
+                crc <<= 1;
+                if ((crc & 0x1000000) != 0)
+                {
+                    crc ^= 0x1864cfb;
+                }
+            }
+        }
+
+        return crc & 0xffffff;
+    }
+
+    private void checkValue(String label, int expected, CRC24 crc)
+    {
+        if (crc.getValue() != expected)
+        {
+            fail(label + ": expected " + Integer.toHexString(expected)
+                + " got " + Integer.toHexString(crc.getValue()));
+        }
+    }
+
+    public void performTest()
+        throws Exception
+    {
+        CRC24 crc = new CRC24();
+
+        checkValue("initial value", 0x0b704ce, crc);
+
+        //
+        // check value of CRC-24/OpenPGP
+        //
+        byte[] check = Strings.toByteArray("123456789");
+
+        for (int i = 0; i != check.length; i++)
+        {
+            crc.update(check[i]);
+        }
+        checkValue("single byte check value", 0x21cf02, crc);
+
+        crc.reset();
+        crc.update(check, 0, check.length);
+        checkValue("bulk check value", 0x21cf02, crc);
+
+        //
+        // cross check against the bit serial implementation
+        //
+        SecureRandom random = new SecureRandom();
+        byte[] data = new byte[4096];
+
+        random.nextBytes(data);
+
+        for (int len = 0; len < 300; len++)
+        {
+            int off = random.nextInt(data.length - len);
+            int expected = referenceCrc(data, off, len);
+
+            crc.reset();
+            crc.update(data, off, len);
+            checkValue("bulk update of " + len + " bytes", expected, crc);
+
+            crc.reset();
+            for (int i = off; i < off + len; i++)
+            {
+                crc.update(data[i] & 0xff);
+            }
+            checkValue("unsigned byte update of " + len + " bytes", expected, crc);
+
+            crc.reset();
+            for (int i = off; i < off + len; i++)
+            {
+                crc.update(data[i]);
+            }
+            checkValue("signed byte update of " + len + " bytes", expected, crc);
+
+            // mixed single byte and bulk updates
+            crc.reset();
+            int split = len / 3;
+            crc.update(data, off, split);
+            if (split < len)
+            {
+                crc.update(data[off + split]);
+                crc.update(data, off + split + 1, len - split - 1);
+            }
+            checkValue("mixed update of " + len + " bytes", expected, crc);
+        }
+
+        crc.reset();
+        crc.update(data, 0, data.length);
+        checkValue("full buffer", referenceCrc(data, 0, data.length), crc);
+    }
+
+    public String getName()
+    {
+        return "CRC24";
+    }
+
+    public static void main(
+        String[] args)
+    {
+        runTest(new CRC24Test());
+    }
+}
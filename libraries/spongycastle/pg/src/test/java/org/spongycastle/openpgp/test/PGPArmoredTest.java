@@ -2,6 +2,8 @@
 
 import java.io.ByteArrayOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
 
 import org.spongycastle.bcpg.ArmoredOutputStream;
 import org.spongycastle.bcpg.ArmoredInputStream;
@@ -108,6 +110,87 @@ private void blankLineTest() throws Exception
         }
     }
 
+    private void bulkTest() throws Exception
+    {
+        SecureRandom random = new SecureRandom();
+
+        for (int length = 0; length < 1000; length += 1 + random.nextInt(37))
+        {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+
+            //
+            // bulk write has to produce the same output as byte by byte
+            //
+            ByteArrayOutputStream singleOut = new ByteArrayOutputStream();
+            ArmoredOutputStream aOut = new ArmoredOutputStream(singleOut);
+            for (int i = 0; i != data.length; i++)
+            {
+                aOut.write(data[i]);
+            }
+            aOut.close();
+
+            ByteArrayOutputStream bulkOut = new ByteArrayOutputStream();
+            aOut = new ArmoredOutputStream(bulkOut);
+            int off = 0;
+            while (off < data.length)
+            {
+                int chunk = Math.min(data.length - off, 1 + random.nextInt(200));
+                aOut.write(data, off, chunk);
+                off += chunk;
+            }
+            aOut.close();
+
+            if (!Arrays.areEqual(singleOut.toByteArray(), bulkOut.toByteArray()))
+            {
+                fail("bulk write differs from single byte write for length " + length);
+            }
+
+            //
+            // bulk read has to return the original data
+            //
+            ArmoredInputStream aIn = new ArmoredInputStream(new ByteArrayInputStream(bulkOut.toByteArray()));
+            ByteArrayOutputStream dataOut = new ByteArrayOutputStream();
+            byte[] buf = new byte[1 + random.nextInt(100)];
+            int n;
+            while ((n = aIn.read(buf, 0, 1 + random.nextInt(buf.length))) >= 0)
+            {
+                dataOut.write(buf, 0, n);
+            }
+
+            if (!Arrays.areEqual(data, dataOut.toByteArray()))
+            {
+                fail("bulk read failed for length " + length);
+            }
+        }
+
+        //
+        // crc failures are detected by bulk reads
+        //
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+        ArmoredOutputStream aOut = new ArmoredOutputStream(bOut);
+        aOut.write(sample);
+        aOut.close();
+
+        byte[] armored = bOut.toByteArray();
+        int crcPos = Strings.fromByteArray(armored).lastIndexOf('=');
+        armored[crcPos + 1] = (byte)(armored[crcPos + 1] == 'A' ? 'B' : 'A');
+
+        ArmoredInputStream aIn = new ArmoredInputStream(new ByteArrayInputStream(armored));
+        try
+        {
+            byte[] buf = new byte[sample.length + 100];
+            while (aIn.read(buf, 0, buf.length) >= 0)
+            {
+            }
+            fail("crc failure not detected");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+    }
+
     public void performTest()
         throws Exception
     {
@@ -240,6 +323,7 @@ public void performTest()
         }
 
         blankLineTest();
+        bulkTest();
     }
 
     public String getName()
@@ -27,7 +27,8 @@
         new PGPNoPrivateKeyTest(),
         new PGPECDSATest(),
         new PGPECDHTest(),
-        new PGPParsingTest()
+        new PGPParsingTest(),
+        new CRC24Test()
     };
 
     public static void main(